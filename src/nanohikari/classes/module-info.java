@@ -19,6 +19,7 @@ module nanohikari
 {
     requires albanlafuente.physicstools;
     requires com.github.kilian;
+    requires java.desktop;
     requires java.logging;
     requires jdk.jdi;
     requires net.opentsdb.tools;
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.benchmark;
+
+import com.github.kilianB.pcg.fast.PcgRSFast;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import nanohikari.luminescencegenerator.QuantumDot;
+import nanohikari.luminescencegenerator.ReachingProbabilityTable;
+import org.nevec.rjm.BigDecimalMath;
+
+/**
+ * Compare the probability for an electron to reach a QD computed with BigDecimal, as capture used to do, with doubles, and read in ReachingProbabilityTable.
+ * The distances, spans and radii are drawn in the range met during a simulation: radii of a few nanometers, spans of the distance travelled in a time step, and distances up to the span.
+ * It reports the mean time of a call for each version, the largest difference with the BigDecimal version, and the number of draws for which the BigDecimal version failed.
+ * The benchmark fails if the double version differs from the BigDecimal version by more than MAX_DIFFERENCE, or the table by more than MAX_TABLE_DIFFERENCE.
+ * Usage: CaptureOverlapBenchmark [number of draws, default 100000]
+ * @author Alban Lafuente
+ */
+public class CaptureOverlapBenchmark
+{
+    //highest difference between the double probability and the BigDecimal one, both being exact up to the rounding errors
+    static final double MAX_DIFFERENCE = 1e-9;
+    //highest difference between the tabulated probability and the BigDecimal one, a few times the interpolation error of the table
+    static final double MAX_TABLE_DIFFERENCE = 5e-4;
+    
+    public static void main(String[] args)
+    {
+        int numberOfDraws = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        PcgRSFast RNG = new PcgRSFast(42, 1);
+        double[] distances = new double[numberOfDraws];
+        double[] spans = new double[numberOfDraws];
+        double[] radii = new double[numberOfDraws];
+        
+        for (int i = 0 ; i < numberOfDraws ; i += 1)
+        {
+            radii[i] = (2 + 13 * RNG.nextDouble()) * 1e-9;
+            spans[i] = (0.5 + 20 * RNG.nextDouble()) * 1e-9;
+            distances[i] = (2 * RNG.nextDouble() - 1) * spans[i];
+        }
+        
+        double[] reference = new double[numberOfDraws];
+        int failures = 0;
+        long start = System.nanoTime();
+        for (int i = 0 ; i < numberOfDraws ; i += 1)
+        {
+            try
+            {
+                reference[i] = bigDecimalProbability(new BigDecimal(distances[i]), new BigDecimal(spans[i]), new BigDecimal(radii[i]));
+            }
+            catch (ArithmeticException ex)
+            {
+                reference[i] = Double.NaN;
+                failures += 1;
+            }
+        }
+        long bigDecimalTime = System.nanoTime() - start;
+        
+        //several passes, the first one not being timed so that the double versions are measured once compiled
+        double[] fast = new double[numberOfDraws];
+        int numberOfPasses = 20;
+        start = System.nanoTime();
+        for (int pass = -1 ; pass < numberOfPasses ; pass += 1)
+        {
+            if (pass == 0)
+            {
+                start = System.nanoTime();
+            }
+            for (int i = 0 ; i < numberOfDraws ; i += 1)
+            {
+                fast[i] = QuantumDot.reachingProbability(distances[i], spans[i], radii[i]);
+            }
+        }
+        long doubleTime = System.nanoTime() - start;
+        
+        double[] tabulated = new double[numberOfDraws];
+        start = System.nanoTime();
+        for (int pass = -1 ; pass < numberOfPasses ; pass += 1)
+        {
+            if (pass == 0)
+            {
+                start = System.nanoTime();
+            }
+            for (int i = 0 ; i < numberOfDraws ; i += 1)
+            {
+                tabulated[i] = ReachingProbabilityTable.getProbability(distances[i], spans[i], radii[i]);
+            }
+        }
+        long tableTime = System.nanoTime() - start;
+        
+        double maximumDifference = 0;
+        double maximumTableDifference = 0;
+        for (int i = 0 ; i < numberOfDraws ; i += 1)
+        {
+            if (!Double.isNaN(reference[i]))
+            {
+                maximumDifference = Math.max(maximumDifference, Math.abs(reference[i] - fast[i]));
+                maximumTableDifference = Math.max(maximumTableDifference, Math.abs(reference[i] - tabulated[i]));
+            }
+        }
+        
+        System.out.println("draws\tBigDecimal (ns)\tdouble (ns)\ttable (ns)\tmax difference double\tmax difference table\tBigDecimal failures");
+        System.out.println(numberOfDraws + "\t" + bigDecimalTime / numberOfDraws + "\t" + (double) doubleTime / (numberOfDraws * numberOfPasses) + "\t" + (double) tableTime / (numberOfDraws * numberOfPasses) + "\t" + maximumDifference + "\t" + maximumTableDifference + "\t" + failures);
+        
+        if (maximumDifference > MAX_DIFFERENCE)
+        {
+            Logger.getLogger(CaptureOverlapBenchmark.class.getName()).log(Level.SEVERE, "The double probabilities differ by more than " + MAX_DIFFERENCE);
+            System.exit(1);
+        }
+        if (maximumTableDifference > MAX_TABLE_DIFFERENCE)
+        {
+            Logger.getLogger(CaptureOverlapBenchmark.class.getName()).log(Level.SEVERE, "The tabulated probabilities differ by more than " + MAX_TABLE_DIFFERENCE);
+            System.exit(1);
+        }
+    }
+    
+    //same calculation as the one done by QuantumDot.capture before it used doubles
+    private static double bigDecimalProbability(BigDecimal p_distance, BigDecimal p_span, BigDecimal p_radius)
+    {
+        double reachingProbability;
+        
+        if (p_distance.add(p_span).compareTo(p_radius) <= 0)
+        {
+            reachingProbability = 1;
+        }
+        else if (p_distance.add(p_radius).compareTo(p_span) <= 0)
+        {
+            reachingProbability = (p_radius.pow(2).divide(p_span.pow(2), MathContext.DECIMAL128)).doubleValue();
+        }
+        else
+        {
+            BigDecimal overlapArea;
+            BigDecimal radiusDiff = BigDecimalMath.sqrt(((p_radius.pow(2)).subtract(p_span.pow(2))).abs(), MathContext.DECIMAL128);
+            
+            if (p_distance.compareTo(radiusDiff) >= 0)
+            {
+                BigDecimal triangleBase = (p_span.pow(2).add(p_distance.pow(2)).subtract(p_radius.pow(2))).divide(p_distance.multiply(new BigDecimal("2")), MathContext.DECIMAL128);
+                
+                BigDecimal electronSlice = p_span.pow(2).multiply(BigDecimalMath.acos(triangleBase.divide(p_span, MathContext.DECIMAL128)));
+                BigDecimal QDSlice = p_radius.pow(2).multiply(BigDecimalMath.acos((p_distance.subtract(triangleBase)).divide(p_radius, MathContext.DECIMAL128)));
+                BigDecimal triangleCorrection = p_distance.multiply(BigDecimalMath.sqrt(p_span.pow(2).subtract(triangleBase.pow(2)), MathContext.DECIMAL128));
+                
+                overlapArea = electronSlice.add(QDSlice).subtract(triangleCorrection);
+            }
+            else
+            {
+                BigDecimal triangleBase = (p_span.pow(2).subtract(p_distance.pow(2)).subtract(p_radius.pow(2))).divide(p_distance.multiply(new BigDecimal("2")), MathContext.DECIMAL128);
+                
+                BigDecimal electronSlice = p_span.pow(2).multiply(BigDecimalMath.acos((triangleBase.add(p_distance)).divide(p_span, MathContext.DECIMAL128)));
+                BigDecimal QDSlice = p_radius.pow(2).multiply(BigDecimalMath.pi(MathContext.DECIMAL128).subtract(BigDecimalMath.acos(triangleBase.divide(p_radius, MathContext.DECIMAL128))));
+                BigDecimal triangleCorrection = p_distance.multiply(BigDecimalMath.sqrt(p_radius.pow(2).subtract(triangleBase.pow(2)), MathContext.DECIMAL128));
+                
+                overlapArea = electronSlice.add(QDSlice).subtract(triangleCorrection);
+            }
+            
+            reachingProbability = overlapArea.divide(BigDecimalMath.pi(MathContext.DECIMAL128).multiply(p_span.pow(2)), MathContext.DECIMAL128).doubleValue();
+        }
+        
+        return reachingProbability;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.benchmark;
+
+import albanlafuente.physicstools.physics.Metamaterial;
+import albanlafuente.physicstools.physics.PhysicsVariables;
+import com.github.kilianB.pcg.fast.PcgRSFast;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import nanohikari.executionmanager.MaterialDatabase;
+import nanohikari.executionmanager.RandomQDGenerator;
+import nanohikari.executionmanager.SCSVLoader;
+import nanohikari.luminescencegenerator.Electron;
+import nanohikari.luminescencegenerator.ElectronMover;
+import nanohikari.luminescencegenerator.ElectronSorter;
+import nanohikari.luminescencegenerator.GeneratorManager;
+import nanohikari.luminescencegenerator.MortonOrder;
+import nanohikari.luminescencegenerator.QDDistanceField;
+import nanohikari.luminescencegenerator.QDSpatialGrid;
+import nanohikari.luminescencegenerator.QuantumDot;
+
+/**
+ * Measure the time of the electron steps with the electrons and the QDs in creation order, the electrons being dealt to the workers in turn as GeneratorManager used to do, then sorted in Morton order, each worker getting a contiguous range of electrons sorted again every 16 steps.
+ * Both runs start from the same electrons in the same sample, and are done twice so that the second pass is measured once compiled. The QDs are made of InAsGaAs, so it has to be run from the folder containing ressources.
+ * Usage: ElectronOrderBenchmark [number of electrons, default 100000] [sample side in µm, default 3] [density in µm^-2, default 400]
+ * @author Alban Lafuente
+ */
+public class ElectronOrderBenchmark
+{
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException
+    {
+        int numberOfElectrons = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        double side = (args.length > 1 ? Double.parseDouble(args[1]) : 3) * 1e-6;
+        double densityPerMicron2 = args.length > 2 ? Double.parseDouble(args[2]) : 400;
+        int numberOfSteps = 200;
+        int sortPeriod = 16;
+        int numberOfWorkers = Runtime.getRuntime().availableProcessors();
+        BigDecimal timeStep = new BigDecimal("1e-13");
+        BigDecimal temperature = new BigDecimal("300");
+        BigDecimal vth = (PhysicsVariables.KB.multiply(temperature).divide(PhysicsVariables.ME, MathContext.DECIMAL128)).sqrt(MathContext.DECIMAL128);
+        Metamaterial material = new MaterialDatabase(new File("ressources/materials/"), new File("ressources/metamaterials/"), new SCSVLoader()).getMetamaterial("InAsGaAs");
+        
+        RandomQDGenerator generator = new RandomQDGenerator(side, side, new PcgRSFast(42, 1));
+        generator.generate((int) (densityPerMicron2 * side * side * 1e12));
+        QDSpatialGrid creationGrid = generator.getGrid();
+        QuantumDot[] creationQDs = new QuantumDot[creationGrid.size()];
+        long[] keys = new long[creationGrid.size()];
+        for (int i = 0 ; i < creationGrid.size() ; i += 1)
+        {
+            creationQDs[i] = new QuantumDot(BigDecimal.valueOf(creationGrid.getX(i)), BigDecimal.valueOf(creationGrid.getY(i)), BigDecimal.valueOf(creationGrid.getRadius(i)), BigDecimal.valueOf(generator.getHeight(i)), timeStep, material);
+            keys[i] = MortonOrder.key(creationGrid.getX(i), creationGrid.getY(i), side, side);
+        }
+        
+        //the same QDs, added in Morton order
+        QDSpatialGrid mortonGrid = new QDSpatialGrid(side, side, creationGrid.getCellSize());
+        QuantumDot[] mortonQDs = new QuantumDot[creationGrid.size()];
+        for (int i: MortonOrder.sortedIndices(keys))
+        {
+            mortonQDs[mortonGrid.add(creationGrid.getX(i), creationGrid.getY(i), creationGrid.getRadius(i))] = creationQDs[i];
+        }
+        
+        System.out.println("pass\telectrons\tQDs\tworkers\tcreation order (ns/step)\tMorton order (ns/step)");
+        for (int pass = 1 ; pass <= 2 ; pass += 1)
+        {
+            double creationTime = run(creationGrid, copy(creationQDs), electrons(numberOfElectrons, side, vth), numberOfWorkers, numberOfSteps, 0, side, timeStep, vth);
+            double mortonTime = run(mortonGrid, copy(mortonQDs), electrons(numberOfElectrons, side, vth), numberOfWorkers, numberOfSteps, sortPeriod, side, timeStep, vth);
+            System.out.println(pass + "\t" + numberOfElectrons + "\t" + creationGrid.size() + "\t" + numberOfWorkers + "\t" + creationTime + "\t" + mortonTime);
+        }
+    }
+    
+    //each run moves copies of the QDs, so that all the runs start with the same free levels
+    private static QuantumDot[] copy(QuantumDot[] p_QDArray)
+    {
+        QuantumDot[] copies = new QuantumDot[p_QDArray.length];
+        
+        for (int i = 0 ; i < p_QDArray.length ; i += 1)
+        {
+            copies[i] = p_QDArray[i].copy();
+        }
+        
+        return copies;
+    }
+    
+    private static List<Electron> electrons(int p_numberOfElectrons, double p_side, BigDecimal p_vth)
+    {
+        PcgRSFast RNG = new PcgRSFast(43, 1);
+        List<Electron> electrons = new ArrayList<>();
+        
+        for (int i = 0 ; i < p_numberOfElectrons ; i += 1)
+        {
+            BigDecimal x = BigDecimal.valueOf(RNG.nextDouble() * p_side);
+            BigDecimal y = BigDecimal.valueOf(RNG.nextDouble() * p_side);
+            BigDecimal v_x = BigDecimal.valueOf(RNG.nextGaussian()).multiply(p_vth);
+            BigDecimal v_y = BigDecimal.valueOf(RNG.nextGaussian()).multiply(p_vth);
+            
+            electrons.add(new Electron(i, x, y, v_x, v_y));
+        }
+        
+        return electrons;
+    }
+    
+    /**
+     * Move the electrons as GeneratorManager does, the last chunk being moved by the running thread and the others by a pool of workers
+     * @param p_sortPeriod the number of steps between two sorts of the electrons, 0 to deal them in turn and never sort them
+     * @return the mean time of an electron step, in ns
+     */
+    private static double run(QDSpatialGrid p_grid, QuantumDot[] p_QDArray, List<Electron> p_electrons, int p_numberOfWorkers, int p_numberOfSteps, int p_sortPeriod, double p_side, BigDecimal p_timeStep, BigDecimal p_vth) throws InterruptedException, ExecutionException
+    {
+        BigDecimal side = BigDecimal.valueOf(p_side);
+        QDDistanceField field = new QDDistanceField(p_grid);
+        ElectronMover[] movers = new ElectronMover[p_numberOfWorkers];
+        List<List<Electron>> chunks = new ArrayList<>();
+        for (int i = 0 ; i < p_numberOfWorkers ; i += 1)
+        {
+            chunks.add(new ArrayList<>());
+        }
+        for (int i = 0 ; i < p_electrons.size() ; i += 1)
+        {
+            chunks.get(i % p_numberOfWorkers).add(p_electrons.get(i));
+        }
+        for (int i = 0 ; i < p_numberOfWorkers ; i += 1)
+        {
+            movers[i] = new ElectronMover(side, side, p_timeStep, p_vth, chunks.get(i), p_grid, field, p_QDArray, false);
+        }
+        
+        Electron[] electrons = p_electrons.toArray(new Electron[0]);
+        ElectronSorter electronSorter = new ElectronSorter(electrons.length);
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, p_numberOfWorkers - 1));
+        Future<?>[] moves = new Future<?>[p_numberOfWorkers - 1];
+        long start = System.nanoTime();
+        for (int step = 0 ; step < p_numberOfSteps ; step += 1)
+        {
+            if (p_sortPeriod > 0 && step % p_sortPeriod == 0)
+            {
+                GeneratorManager.dealElectrons(electrons, movers, electronSorter, p_side, p_side);
+            }
+            
+            for (int i = 0 ; i < p_numberOfWorkers - 1 ; i += 1)
+            {
+                moves[i] = workers.submit(movers[i]);
+            }
+            movers[p_numberOfWorkers - 1].run();
+            for (int i = 0 ; i < p_numberOfWorkers - 1 ; i += 1)
+            {
+                moves[i].get();
+            }
+        }
+        double stepTime = (double) (System.nanoTime() - start) / ((long) p_numberOfSteps * p_electrons.size());
+        workers.shutdown();
+        
+        return stepTime;
+    }
+}
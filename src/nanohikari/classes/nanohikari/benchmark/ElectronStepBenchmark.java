@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.benchmark;
+
+import albanlafuente.physicstools.physics.Metamaterial;
+import albanlafuente.physicstools.physics.PhysicsVariables;
+import com.github.kilianB.pcg.fast.PcgRSFast;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import nanohikari.executionmanager.MaterialDatabase;
+import nanohikari.executionmanager.RandomQDGenerator;
+import nanohikari.executionmanager.SCSVLoader;
+import nanohikari.luminescencegenerator.Electron;
+import nanohikari.luminescencegenerator.ElectronMover;
+import nanohikari.luminescencegenerator.GeneratorManager;
+import nanohikari.luminescencegenerator.ImageBuffer;
+import nanohikari.luminescencegenerator.QDDistanceField;
+import nanohikari.luminescencegenerator.QDSpatialGrid;
+import nanohikari.luminescencegenerator.QuantumDot;
+import nanohikari.luminescencegenerator.RecombinationRecorder;
+
+/**
+ * Measure the time and the memory allocated by the steps of the electrons, as done by a worker of GeneratorManager, then by the whole step loop of GeneratorManager.
+ * The allocated memory is given by the JVM for the running thread, after a warm up so that the steps are compiled.
+ * The steps of a worker are measured on a sample without QDs, where all the electrons stay free and a step should allocate nothing, then on a sample with QDs, where only the captures, escapes and recombinations allocate.
+ * The loop of GeneratorManager is measured on the sample with QDs under single shot illumination, until all the electrons recombined, with a single worker so that all the steps are done by the running thread. Sorting the electrons, dealing them to the workers and logging their recombinations should not add anything to the allocations of the steps.
+ * The benchmark fails if the steps without QDs allocate, or if the steps with QDs allocate more than MAX_STEP_ALLOCATION.
+ * The thread bean of the JDK is looked up by reflection, so that the application does not require jdk.management: if it is not loaded, as when the application is run as a module, run with --add-modules jdk.management.
+ * The QDs are made of InAsGaAs, so it has to be run from the folder containing ressources.
+ * Usage: ElectronStepBenchmark [density in µm^-2, default 400]
+ * @author Alban Lafuente
+ */
+public class ElectronStepBenchmark
+{
+    //highest mean allocation of a step without QDs that is taken as no allocation, in bytes, leaving room for the measurement itself
+    static final double MAX_FREE_STEP_ALLOCATION = 0.01;
+    //highest mean allocation of a step with QDs, in bytes, a few times the BigDecimals and sets of the captures, escapes and recombinations
+    static final double MAX_STEP_ALLOCATION = 64;
+    
+    private static Object threadBean;
+    private static Method allocatedBytes;
+    
+    public static void main(String[] args) throws IOException, ReflectiveOperationException, DataFormatException
+    {
+        double densityPerMicron2 = args.length > 0 ? Double.parseDouble(args[0]) : 400;
+        double side = 1e-6;
+        int numberOfElectrons = 1000;
+        int numberOfSteps = 2000;
+        BigDecimal timeStep = new BigDecimal("1e-13");
+        BigDecimal temperature = new BigDecimal("300");
+        BigDecimal vth = (PhysicsVariables.KB.multiply(temperature).divide(PhysicsVariables.ME, MathContext.DECIMAL128)).sqrt(MathContext.DECIMAL128);
+        Metamaterial material = new MaterialDatabase(new File("ressources/materials/"), new File("ressources/metamaterials/"), new SCSVLoader()).getMetamaterial("InAsGaAs");
+        threadBean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+        allocatedBytes = Class.forName("com.sun.management.ThreadMXBean").getMethod("getCurrentThreadAllocatedBytes");
+        boolean allocationFree = true;
+        boolean allocationBounded = true;
+        //copies of the QDs of the last sample, taken before the worker moves electrons in them, for the loop of GeneratorManager
+        List<QuantumDot> QDList = new ArrayList<>();
+        
+        System.out.println("QDs\tstep (ns)\tallocated (B/step)\trecombined electrons");
+        for (int numberOfQDs: new int[] {0, (int) (densityPerMicron2 * side * side * 1e12)})
+        {
+            RandomQDGenerator generator = new RandomQDGenerator(side, side, new PcgRSFast(42, 1));
+            generator.generate(numberOfQDs);
+            QDSpatialGrid grid = generator.getGrid();
+            QuantumDot[] QDArray = new QuantumDot[grid.size()];
+            for (int i = 0 ; i < grid.size() ; i += 1)
+            {
+                QDArray[i] = new QuantumDot(BigDecimal.valueOf(grid.getX(i)), BigDecimal.valueOf(grid.getY(i)), BigDecimal.valueOf(grid.getRadius(i)), BigDecimal.valueOf(generator.getHeight(i)), timeStep, material);
+            }
+            QDList.clear();
+            for (QuantumDot QD: QDArray)
+            {
+                QDList.add(QD.copy());
+            }
+            
+            PcgRSFast RNG = new PcgRSFast(43, 1);
+            List<Electron> electrons = new ArrayList<>();
+            for (int i = 0 ; i < numberOfElectrons ; i += 1)
+            {
+                BigDecimal x = BigDecimal.valueOf(RNG.nextDouble() * side);
+                BigDecimal y = BigDecimal.valueOf(RNG.nextDouble() * side);
+                BigDecimal v_x = BigDecimal.valueOf(RNG.nextGaussian()).multiply(vth);
+                BigDecimal v_y = BigDecimal.valueOf(RNG.nextGaussian()).multiply(vth);
+                
+                electrons.add(new Electron(i, x, y, v_x, v_y));
+            }
+            ElectronMover mover = new ElectronMover(BigDecimal.valueOf(side), BigDecimal.valueOf(side), timeStep, vth, electrons, grid, new QDDistanceField(grid), QDArray, false);
+            
+            //warming up
+            for (int step = 0 ; step < numberOfSteps ; step += 1)
+            {
+                mover.run();
+            }
+            
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            for (int step = 0 ; step < numberOfSteps ; step += 1)
+            {
+                mover.run();
+            }
+            long stepTime = System.nanoTime() - start;
+            long allocated = allocatedBytes() - allocatedBefore;
+            
+            int recombined = 0;
+            for (Electron electron: mover.getElectronList())
+            {
+                recombined += electron.isRecombined() ? 1 : 0;
+            }
+            
+            long electronSteps = (long) numberOfSteps * numberOfElectrons;
+            System.out.println(grid.size() + "\t" + (double) stepTime / electronSteps + "\t" + (double) allocated / electronSteps + "\t" + recombined);
+            
+            if (numberOfQDs == 0 && (double) allocated / electronSteps > MAX_FREE_STEP_ALLOCATION)
+            {
+                allocationFree = false;
+            }
+            if ((double) allocated / electronSteps > MAX_STEP_ALLOCATION)
+            {
+                allocationBounded = false;
+            }
+        }
+        
+        //the whole loop, the simulation stopping once all the electrons recombined, a few thousands of steps later, so that its warm up is shorter
+        int loopWarmUpSteps = numberOfSteps / 10;
+        StepMeter meter = new StepMeter(loopWarmUpSteps);
+        GeneratorManager simulation = new GeneratorManager(BigDecimal.valueOf(side), BigDecimal.valueOf(side), timeStep, temperature, false, meter, numberOfElectrons, numberOfElectrons, QDList, new RecombinationRecorder()
+        {
+            @Override
+            public void record(double p_time, double p_energy, int p_QDIndex, int p_electronID)
+            {
+            }
+            
+            @Override
+            public void close()
+            {
+            }
+        }, 1);
+        long start = System.nanoTime();
+        simulation.run();
+        long loopTime = System.nanoTime() - start;
+        long allocated = allocatedBytes() - meter.getAllocatedBefore();
+        long electronSteps = (long) (meter.getNumberOfSteps() - loopWarmUpSteps) * numberOfElectrons;
+        System.out.println("GeneratorManager loop: " + QDList.size() + " QDs\t" + (double) loopTime / ((long) meter.getNumberOfSteps() * numberOfElectrons) + " ns/step\t" + (double) allocated / electronSteps + " B/step after the first " + loopWarmUpSteps + " steps\t" + meter.getNumberOfSteps() + " steps");
+        if ((double) allocated / electronSteps > MAX_STEP_ALLOCATION)
+        {
+            allocationBounded = false;
+        }
+        
+        if (!allocationFree)
+        {
+            Logger.getLogger(ElectronStepBenchmark.class.getName()).log(Level.SEVERE, "The steps of the free electrons allocate memory");
+            System.exit(1);
+        }
+        if (!allocationBounded)
+        {
+            Logger.getLogger(ElectronStepBenchmark.class.getName()).log(Level.SEVERE, "The steps allocate more than " + MAX_STEP_ALLOCATION + " bytes");
+            System.exit(1);
+        }
+    }
+    
+    private static long allocatedBytes() throws ReflectiveOperationException
+    {
+        return (long) allocatedBytes.invoke(threadBean);
+    }
+    
+    /**
+     * Count the steps of a GeneratorManager, which logs its objects once before the first step then after each step, and note the memory allocated after the warm up
+     */
+    private static class StepMeter implements ImageBuffer
+    {
+        private final int m_warmUpSteps;
+        private int m_numberOfSteps = -1;
+        private long m_allocatedBefore = 0;
+        
+        StepMeter (int p_warmUpSteps)
+        {
+            m_warmUpSteps = p_warmUpSteps;
+        }
+        
+        @Override
+        public void logObjects(List<Electron> p_electronsList, int p_numberOfRecombinations, int p_neededRecombinations, List<QuantumDot> p_qdsToDraw, double p_time)
+        {
+            m_numberOfSteps += 1;
+            if (m_numberOfSteps == m_warmUpSteps)
+            {
+                try
+                {
+                    m_allocatedBefore = allocatedBytes();
+                }
+                catch (ReflectiveOperationException ex)
+                {
+                    Logger.getLogger(ElectronStepBenchmark.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+        
+        long getAllocatedBefore()
+        {
+            return m_allocatedBefore;
+        }
+        
+        int getNumberOfSteps()
+        {
+            return m_numberOfSteps;
+        }
+    }
+}
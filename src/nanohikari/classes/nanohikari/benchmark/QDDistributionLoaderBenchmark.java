@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.benchmark;
+
+import com.github.kilianB.pcg.fast.PcgRSFast;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import nanohikari.executionmanager.QDDistributionLoader;
+import nanohikari.executionmanager.TextFileWriter;
+
+/**
+ * Measure the reading speed of QD distribution files, in lines per second.
+ * For each file size, a random distribution is written in a temporary file, then read with QDDistributionLoader and with the line by line reading it replaced (regex test, split and BigDecimal conversion).
+ * Usage: QDDistributionLoaderBenchmark [largest number of lines, default 4000000]
+ * @author Alban Lafuente
+ */
+public class QDDistributionLoaderBenchmark
+{
+    public static void main(String[] args) throws DataFormatException, IOException
+    {
+        int maxLines = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+        
+        System.out.println("lines\tfile (MB)\tloader (lines/s)\tline by line (lines/s)");
+        for (int numberOfLines = maxLines / 16 ; numberOfLines <= maxLines ; numberOfLines *= 4)
+        {
+            File distribution = File.createTempFile("QDs", ".csv");
+            distribution.deleteOnExit();
+            writeDistribution(distribution, numberOfLines);
+            
+            //first read to get the file in the page cache and the code compiled
+            new QDDistributionLoader(distribution);
+            
+            long start = System.nanoTime();
+            QDDistributionLoader loader = new QDDistributionLoader(distribution);
+            long loaderTime = System.nanoTime() - start;
+            
+            start = System.nanoTime();
+            int readLines = readLineByLine(distribution);
+            long lineByLineTime = System.nanoTime() - start;
+            
+            if (readLines != loader.size())
+            {
+                System.out.println("WARNING: the loader found " + loader.size() + " QDs instead of " + readLines);
+            }
+            
+            System.out.println(numberOfLines + "\t" + distribution.length() / (1024 * 1024) + "\t" + (long) (numberOfLines / (loaderTime * 1e-9)) + "\t" + (long) (numberOfLines / (lineByLineTime * 1e-9)));
+            distribution.delete();
+        }
+    }
+    
+    //same format as the files written by the simulation: x, y, radius and height in nm
+    private static void writeDistribution(File p_file, int p_numberOfLines) throws IOException
+    {
+        PcgRSFast RNG = new PcgRSFast(42, 1);
+        
+        try (TextFileWriter writer = new TextFileWriter(p_file))
+        {
+            writer.write("x (nm)\ty (nm)\tradius (nm)\theight (nm)");
+            for (int i = 0 ; i < p_numberOfLines ; i += 1)
+            {
+                writer.newLine().writeDecimal(RNG.nextDouble() * 1e5, 10).tab().writeDecimal(RNG.nextDouble() * 1e5, 10).tab().writeDecimal(RNG.nextGaussian() * 2.1 + 12, 10).tab().writeDecimal(RNG.nextDouble() * 3 + 2, 10);
+            }
+        }
+    }
+    
+    //reading as ExecutionManager used to do, without building the QDs
+    private static int readLineByLine(File p_file) throws IOException
+    {
+        int readLines = 0;
+        BigDecimal nano = new BigDecimal("1e-9");
+        Pattern numberRegex = Pattern.compile("^\\-?\\d+(\\.\\d+(e(\\+|\\-)\\d+)?)?");
+        
+        try (BufferedReader fileReader = new BufferedReader(new FileReader(p_file)))
+        {
+            String line;
+            while ((line = fileReader.readLine()) != null)
+            {
+                String[] lineSplit = line.strip().split("[,;\t]");
+                
+                if (numberRegex.matcher(lineSplit[0]).matches())
+                {
+                    for (int i = 0 ; i < 4 ; i += 1)
+                    {
+                        (new BigDecimal(lineSplit[i].strip())).multiply(nano);
+                    }
+                    readLines += 1;
+                }
+            }
+        }
+        
+        return readLines;
+    }
+}
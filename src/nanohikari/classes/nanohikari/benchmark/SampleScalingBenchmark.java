@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.benchmark;
+
+import com.github.kilianB.pcg.fast.PcgRSFast;
+import nanohikari.executionmanager.RandomQDGenerator;
+import nanohikari.luminescencegenerator.QDSpatialGrid;
+
+/**
+ * Measure how the sample generation and the QD neighbourhood search scale with the sample area.
+ * For each area, it reports the time to place the QDs, the heap used by the placement, and the mean time of a neighbourhood scan as done by a free electron.
+ * Usage: SampleScalingBenchmark [density in µm^-2, default 400]
+ * @author Alban Lafuente
+ */
+public class SampleScalingBenchmark
+{
+    public static void main(String[] args)
+    {
+        double densityPerMicron2 = args.length > 0 ? Double.parseDouble(args[0]) : 400;
+        double[] areasMicron2 = {1, 10, 100, 1000};
+        int numberOfScans = 1000000;
+        //the distance travelled by a thermal electron in 1 ps, in meters
+        double electronVision = 1e-10;
+        
+        System.out.println("area (µm^2)\tQDs\tplacement (ms)\theap (MB)\tscan (ns)");
+        for (double area: areasMicron2)
+        {
+            double side = Math.sqrt(area) * 1e-6;
+            int numberOfQDs = (int) (densityPerMicron2 * area);
+            
+            long heapBefore = usedHeap();
+            long start = System.nanoTime();
+            RandomQDGenerator generator = new RandomQDGenerator(side, side, new PcgRSFast(42, 1));
+            generator.generate(numberOfQDs);
+            long placementTime = System.nanoTime() - start;
+            long heapAfter = usedHeap();
+            
+            QDSpatialGrid grid = generator.getGrid();
+            PcgRSFast RNG = new PcgRSFast(43, 1);
+            int foundQDs = 0;
+            start = System.nanoTime();
+            for (int i = 0 ; i < numberOfScans ; i += 1)
+            {
+                foundQDs += scan(grid, RNG.nextDouble() * side, RNG.nextDouble() * side, electronVision);
+            }
+            long scanTime = System.nanoTime() - start;
+            
+            System.out.println(area + "\t" + generator.size() + "\t" + placementTime / 1000000 + "\t" + (heapAfter - heapBefore) / (1024 * 1024) + "\t" + scanTime / numberOfScans + "\t(" + foundQDs + " QDs in reach)");
+        }
+    }
+    
+    //same scan as the one done in Electron.move
+    private static int scan(QDSpatialGrid p_grid, double p_x, double p_y, double p_vision)
+    {
+        int found = 0;
+        double range = p_vision + p_grid.getMaxRadius();
+        int lastColumn = p_grid.column(p_x + range);
+        int lastRow = p_grid.row(p_y + range);
+        
+        for (int row = p_grid.row(p_y - range) ; row <= lastRow ; row += 1)
+        {
+            for (int column = p_grid.column(p_x - range) ; column <= lastColumn ; column += 1)
+            {
+                int cell = p_grid.cellIndex(column, row);
+                int[] content = p_grid.getCellContent(cell);
+                for (int k = 0 ; k < p_grid.getCellCount(cell) ; k += 1)
+                {
+                    double deltaX = p_grid.getX(content[k]) - p_x;
+                    double deltaY = p_grid.getY(content[k]) - p_y;
+                    if (Math.sqrt(deltaX * deltaX + deltaY * deltaY) - p_grid.getRadius(content[k]) <= p_vision)
+                    {
+                        found += 1;
+                    }
+                }
+            }
+        }
+        
+        return found;
+    }
+    
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.executionmanager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Minimize the mismatch between the simulated and the experimental luminescence over the parameters of the QD distribution, with the Nelder-Mead simplex method.
+ * The simplex works on the parameters divided by their starting value, so that all of them are close to 1 whatever their unit.
+ * The points are rounded to RESOLUTION before being simulated and the results are cached, so that a point already visited does not cost a new simulation.
+ * @author Alban Lafuente
+ */
+public class DistributionFitter
+{
+    //resolution of the parameters, relative to their starting value
+    static final double RESOLUTION = 1e-3;
+    
+    private final double[] m_scales;
+    private final Predicate<double[]> m_isValid;
+    private final ToDoubleFunction<double[]> m_simulation;
+    private final HashMap<List<Double>, Double> m_cache = new HashMap<>();
+    
+    private int m_numberOfSimulations = 0;
+    private double[] m_best;
+    private double m_bestMismatch = Double.POSITIVE_INFINITY;
+    
+    /**
+     * @param p_start the starting parameters, which must all be different from 0
+     * @param p_isValid tells if parameters can be simulated. The invalid ones are given an infinite mismatch without simulation.
+     * @param p_simulation simulate the distribution with the given parameters and return its mismatch with the experiment
+     */
+    public DistributionFitter (double[] p_start, Predicate<double[]> p_isValid, ToDoubleFunction<double[]> p_simulation)
+    {
+        m_scales = p_start.clone();
+        m_isValid = p_isValid;
+        m_simulation = p_simulation;
+        m_best = p_start.clone();
+    }
+    
+    /**
+     * Run the simplex until the mismatch reaches p_target, the simulation budget is spent or the simplex is smaller than the resolution
+     * @param p_initialStep the size of the starting simplex, relative to the starting parameters
+     * @param p_target the mismatch under which the fit is good
+     * @param p_maximumSimulations the maximum number of simulations
+     * @return the best parameters found
+     */
+    public double[] minimize (double p_initialStep, double p_target, int p_maximumSimulations)
+    {
+        int dimension = m_scales.length;
+        double[][] simplex = new double[dimension + 1][];
+        double[] mismatches = new double[dimension + 1];
+        for (int i = 0 ; i <= dimension ; i += 1)
+        {
+            simplex[i] = new double[dimension];
+            Arrays.fill(simplex[i], 1);
+            if (i > 0)
+            {
+                simplex[i][i - 1] += p_initialStep;
+            }
+            mismatches[i] = evaluate(simplex[i], p_maximumSimulations);
+        }
+        
+        while (m_bestMismatch > p_target && m_numberOfSimulations < p_maximumSimulations && diameter(simplex) > RESOLUTION)
+        {
+            sort(simplex, mismatches);
+            
+            int worst = dimension;
+            double[] centroid = new double[dimension];
+            for (int i = 0 ; i < dimension ; i += 1)
+            {
+                for (int j = 0 ; j < dimension ; j += 1)
+                {
+                    centroid[j] += simplex[i][j] / dimension;
+                }
+            }
+            
+            double[] reflected = along(centroid, simplex[worst], -1);
+            double reflectedMismatch = evaluate(reflected, p_maximumSimulations);
+            if (reflectedMismatch < mismatches[0])
+            {
+                double[] expanded = along(centroid, simplex[worst], -2);
+                double expandedMismatch = evaluate(expanded, p_maximumSimulations);
+                
+                simplex[worst] = expandedMismatch < reflectedMismatch ? expanded : reflected;
+                mismatches[worst] = Math.min(expandedMismatch, reflectedMismatch);
+            }
+            else if (reflectedMismatch < mismatches[worst - 1])
+            {
+                simplex[worst] = reflected;
+                mismatches[worst] = reflectedMismatch;
+            }
+            else
+            {
+                //contracting outside the simplex if the reflected point is still better than the worst, inside otherwise
+                boolean outside = reflectedMismatch < mismatches[worst];
+                double[] contracted = along(centroid, simplex[worst], outside ? -0.5 : 0.5);
+                double contractedMismatch = evaluate(contracted, p_maximumSimulations);
+                
+                if (contractedMismatch < Math.min(reflectedMismatch, mismatches[worst]))
+                {
+                    simplex[worst] = contracted;
+                    mismatches[worst] = contractedMismatch;
+                }
+                else
+                {
+                    //shrinking the whole simplex toward the best point
+                    for (int i = 1 ; i <= dimension ; i += 1)
+                    {
+                        simplex[i] = along(simplex[0], simplex[i], 0.5);
+                        mismatches[i] = evaluate(simplex[i], p_maximumSimulations);
+                    }
+                }
+            }
+        }
+        
+        return getBestParameters();
+    }
+    
+    public double[] getBestParameters ()
+    {
+        return m_best.clone();
+    }
+    
+    public double getBestMismatch ()
+    {
+        return m_bestMismatch;
+    }
+    
+    public int getNumberOfSimulations ()
+    {
+        return m_numberOfSimulations;
+    }
+    
+    /**
+     * @return p_center + p_factor * (p_point - p_center)
+     */
+    private static double[] along (double[] p_center, double[] p_point, double p_factor)
+    {
+        double[] result = new double[p_center.length];
+        
+        for (int i = 0 ; i < p_center.length ; i += 1)
+        {
+            result[i] = p_center[i] + p_factor * (p_point[i] - p_center[i]);
+        }
+        
+        return result;
+    }
+    
+    private static double diameter (double[][] p_simplex)
+    {
+        double diameter = 0;
+        
+        for (int i = 1 ; i < p_simplex.length ; i += 1)
+        {
+            for (int j = 0 ; j < p_simplex[i].length ; j += 1)
+            {
+                diameter = Math.max(diameter, Math.abs(p_simplex[i][j] - p_simplex[0][j]));
+            }
+        }
+        
+        return diameter;
+    }
+    
+    /**
+     * Sort the points of the simplex from the best to the worst
+     */
+    private static void sort (double[][] p_simplex, double[] p_mismatches)
+    {
+        //insertion sort, the simplex having only a few points mostly already in order
+        for (int i = 1 ; i < p_simplex.length ; i += 1)
+        {
+            double[] point = p_simplex[i];
+            double mismatch = p_mismatches[i];
+            int j = i - 1;
+            
+            while (j >= 0 && p_mismatches[j] > mismatch)
+            {
+                p_simplex[j + 1] = p_simplex[j];
+                p_mismatches[j + 1] = p_mismatches[j];
+                j -= 1;
+            }
+            p_simplex[j + 1] = point;
+            p_mismatches[j + 1] = mismatch;
+        }
+    }
+    
+    /**
+     * Give the mismatch of a point of the simplex, simulating it only if it has not been done yet
+     * @param p_point the scaled parameters
+     * @param p_maximumSimulations the simulation budget. Once it is spent, new points are given an infinite mismatch.
+     * @return
+     */
+    private double evaluate (double[] p_point, int p_maximumSimulations)
+    {
+        double[] parameters = new double[p_point.length];
+        List<Double> key = new ArrayList<>(p_point.length);
+        for (int i = 0 ; i < p_point.length ; i += 1)
+        {
+            double rounded = Math.round(p_point[i] / RESOLUTION) * RESOLUTION;
+            
+            key.add(rounded);
+            parameters[i] = rounded * m_scales[i];
+        }
+        
+        Double mismatch = m_cache.get(key);
+        if (mismatch == null)
+        {
+            if (!m_isValid.test(parameters))
+            {
+                mismatch = Double.POSITIVE_INFINITY;
+            }
+            else if (m_numberOfSimulations >= p_maximumSimulations)
+            {
+                //not cached, so that it could be simulated by a later call with a bigger budget
+                return Double.POSITIVE_INFINITY;
+            }
+            else
+            {
+                m_numberOfSimulations += 1;
+                mismatch = m_simulation.applyAsDouble(parameters);
+                
+                if (mismatch < m_bestMismatch)
+                {
+                    m_bestMismatch = mismatch;
+                    m_best = parameters;
+                }
+            }
+            
+            m_cache.put(key, mismatch);
+        }
+        
+        return mismatch;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.executionmanager;
+
+import albanlafuente.physicstools.physics.PhysicsVariables;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import nanohikari.luminescencegenerator.QuantumDot;
+
+/**
+ * Predict the spectrum of a modified QD distribution from a simulation of the original one, without simulating again.
+ * Each QD of the simulation gives its number of recombinations and its emission kernel, the energies of its recombinations relative to its mean energy.
+ * The spectrum of a new distribution is the sum of the kernels of its QDs, shifted to their new mean energy.
+ * A QD that kept its size keeps its number of recombinations. A QD whose size changed takes the mean number of recombinations of the QDs of its new radius, times the ratio between its own number and the mean of its old radius, which accounts for its surroundings.
+ * The QDs are matched by position, which the fitting does not change.
+ * @author Alban Lafuente
+ */
+public class EmissionSurrogate
+{
+    //width of the radius classes, in m
+    static final double RADIUS_CLASS = 0.5e-9;
+    
+    private final Map<List<Double>, Integer> m_QDIndices = new HashMap<>();
+    private final double[] m_meanEnergies;
+    private final double[] m_radii;
+    private final double[] m_environmentFactors;
+    private final int[] m_recombinations;
+    //energies relative to the mean energy of their QD, grouped by QD: the kernel of QD i goes from m_kernelStarts[i] to m_kernelStarts[i + 1]
+    private final int[] m_kernelStarts;
+    private final double[] m_energyOffsets;
+    //mean number of recombinations of the QDs, by radius class
+    private final TreeMap<Long, Double> m_classRecombinations = new TreeMap<>();
+    
+    /**
+     * @param p_QDList the simulated QDs
+     * @param p_QDIndices the index in p_QDList of the QD of each recombination
+     * @param p_energies the energy of each recombination, in J
+     */
+    public EmissionSurrogate (List<QuantumDot> p_QDList, int[] p_QDIndices, double[] p_energies)
+    {
+        int numberOfQDs = p_QDList.size();
+        m_meanEnergies = new double[numberOfQDs];
+        m_radii = new double[numberOfQDs];
+        m_environmentFactors = new double[numberOfQDs];
+        m_recombinations = new int[numberOfQDs];
+        m_kernelStarts = new int[numberOfQDs + 1];
+        m_energyOffsets = new double[p_QDIndices.length];
+        
+        double[] geometry = new double[4];
+        for (int i = 0 ; i < numberOfQDs ; i += 1)
+        {
+            QuantumDot QD = p_QDList.get(i);
+            QD.copyGeometryTo(geometry, 0);
+            m_QDIndices.put(List.of(geometry[0], geometry[1]), i);
+            m_meanEnergies[i] = QD.getMeanEnergy().doubleValue();
+            m_radii[i] = geometry[2];
+        }
+        
+        //grouping the recombinations by QD with a counting sort
+        for (int QDIndex: p_QDIndices)
+        {
+            m_recombinations[QDIndex] += 1;
+        }
+        for (int i = 0 ; i < numberOfQDs ; i += 1)
+        {
+            m_kernelStarts[i + 1] = m_kernelStarts[i] + m_recombinations[i];
+        }
+        int[] filled = new int[numberOfQDs];
+        for (int i = 0 ; i < p_QDIndices.length ; i += 1)
+        {
+            int QDIndex = p_QDIndices[i];
+            m_energyOffsets[m_kernelStarts[QDIndex] + filled[QDIndex]] = p_energies[i] - m_meanEnergies[QDIndex];
+            filled[QDIndex] += 1;
+        }
+        
+        //mean number of recombinations of each radius class, then the place of each QD compared to its class
+        TreeMap<Long, Integer> classSizes = new TreeMap<>();
+        for (int i = 0 ; i < numberOfQDs ; i += 1)
+        {
+            m_classRecombinations.merge(radiusClass(m_radii[i]), (double) m_recombinations[i], Double::sum);
+            classSizes.merge(radiusClass(m_radii[i]), 1, Integer::sum);
+        }
+        for (Long radiusClass: classSizes.keySet())
+        {
+            m_classRecombinations.put(radiusClass, m_classRecombinations.get(radiusClass) / classSizes.get(radiusClass));
+        }
+        for (int i = 0 ; i < numberOfQDs ; i += 1)
+        {
+            double classMean = m_classRecombinations.get(radiusClass(m_radii[i]));
+            m_environmentFactors[i] = classMean > 0 ? m_recombinations[i] / classMean : 1;
+        }
+    }
+    
+    /**
+     * Predict the spectrum of a QD distribution
+     * @param p_QDList the QDs, obtained by changing the size of some QDs of the simulated distribution
+     * @param p_wavelengthAbscissa true to get the spectrum as a function of the wavelength, false as a function of the energy
+     * @param p_binWidth the width of the bins of the spectrum, in m or J
+     * @return the spectrum, in number of recombinations
+     */
+    public Histogram predict (List<QuantumDot> p_QDList, boolean p_wavelengthAbscissa, double p_binWidth)
+    {
+        double planckTimesLightSpeed = PhysicsVariables.h.multiply(PhysicsVariables.c).doubleValue();
+        Histogram spectrum = new Histogram(p_binWidth);
+        double[] geometry = new double[4];
+        
+        for (QuantumDot QD: p_QDList)
+        {
+            //a QD without states cannot capture, so it does not emit
+            if (QD.getNumberOfStates() > 0)
+            {
+                QD.copyGeometryTo(geometry, 0);
+                double meanEnergy = QD.getMeanEnergy().doubleValue();
+                Integer originalIndex = m_QDIndices.get(List.of(geometry[0], geometry[1]));
+                
+                double weight;
+                int kernelStart = 0;
+                int kernelEnd = 0;
+                if (originalIndex == null)
+                {
+                    //a QD unknown to the simulation emits at its mean energy
+                    weight = classRecombinations(geometry[2]);
+                }
+                else
+                {
+                    kernelStart = m_kernelStarts[originalIndex];
+                    kernelEnd = m_kernelStarts[originalIndex + 1];
+                    weight = geometry[2] == m_radii[originalIndex] && meanEnergy == m_meanEnergies[originalIndex] ? m_recombinations[originalIndex] : classRecombinations(geometry[2]) * m_environmentFactors[originalIndex];
+                }
+                
+                if (weight > 0 && kernelEnd > kernelStart)
+                {
+                    double eventWeight = weight / (kernelEnd - kernelStart);
+                    for (int i = kernelStart ; i < kernelEnd ; i += 1)
+                    {
+                        double energy = meanEnergy + m_energyOffsets[i];
+                        spectrum.add(p_wavelengthAbscissa ? planckTimesLightSpeed / energy : energy, eventWeight);
+                    }
+                }
+                else if (weight > 0)
+                {
+                    spectrum.add(p_wavelengthAbscissa ? planckTimesLightSpeed / meanEnergy : meanEnergy, weight);
+                }
+            }
+        }
+        
+        return spectrum;
+    }
+    
+    /**
+     * @param p_radius in m
+     * @return the mean number of recombinations of the QDs of the radius class, or of the closest class with QDs
+     */
+    private double classRecombinations (double p_radius)
+    {
+        long radiusClass = radiusClass(p_radius);
+        Map.Entry<Long, Double> lower = m_classRecombinations.floorEntry(radiusClass);
+        Map.Entry<Long, Double> higher = m_classRecombinations.ceilingEntry(radiusClass);
+        
+        double recombinations;
+        if (lower == null)
+        {
+            recombinations = higher.getValue();
+        }
+        else if (higher == null || radiusClass - lower.getKey() <= higher.getKey() - radiusClass)
+        {
+            recombinations = lower.getValue();
+        }
+        else
+        {
+            recombinations = higher.getValue();
+        }
+        
+        return recombinations;
+    }
+    
+    private static long radiusClass (double p_radius)
+    {
+        return (long) Math.floor(p_radius / RADIUS_CLASS);
+    }
+}
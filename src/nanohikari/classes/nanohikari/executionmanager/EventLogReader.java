@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.executionmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ * Read a file written by EventLogWriter.
+ * Each block of the file is memory mapped, and the columns are copied in bulk from the mapped blocks when asked.
+ * @author Alban Lafuente
+ */
+public class EventLogReader
+{
+    private final List<MappedByteBuffer> m_blocks = new ArrayList<>();
+    private final List<Integer> m_blockSizes = new ArrayList<>();
+    private final int m_numberOfEvents;
+    
+    public EventLogReader (File p_file) throws DataFormatException, IOException
+    {
+        long numberOfEvents = 0;
+        
+        try (FileChannel channel = FileChannel.open(p_file.toPath(), StandardOpenOption.READ))
+        {
+            long fileSize = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != EventLogWriter.FORMAT_ID || header.getInt(Integer.BYTES) != EventLogWriter.FORMAT_VERSION)
+            {
+                throw new DataFormatException(p_file + " is not an event file.");
+            }
+            
+            long position = header.capacity();
+            ByteBuffer blockHeader = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (position < fileSize)
+            {
+                blockHeader.clear();
+                readFully(channel, blockHeader, position);
+                int blockSize = blockHeader.getInt(0);
+                long blockBytes = (long) blockSize * EventLogWriter.EVENT_BYTES;
+                position += Integer.BYTES;
+                
+                if (blockSize < 0 || position + blockBytes > fileSize)
+                {
+                    throw new DataFormatException(p_file + " is truncated.");
+                }
+                
+                m_blocks.add(channel.map(FileChannel.MapMode.READ_ONLY, position, blockBytes));
+                m_blockSizes.add(blockSize);
+                numberOfEvents += blockSize;
+                position += blockBytes;
+            }
+        }
+        
+        if (numberOfEvents > Integer.MAX_VALUE)
+        {
+            throw new DataFormatException(p_file + " contains too many events to be loaded at once.");
+        }
+        m_numberOfEvents = (int) numberOfEvents;
+    }
+    
+    /**
+     * @return the recombination times, in s
+     */
+    public double[] getTimes()
+    {
+        return readDoubleColumn(0);
+    }
+    
+    /**
+     * @return the recombination energies, in J
+     */
+    public double[] getEnergies()
+    {
+        return readDoubleColumn(1);
+    }
+    
+    /**
+     * @return the index of the QDs in which the recombinations happened
+     */
+    public int[] getQDIndices()
+    {
+        return readIntColumn(0);
+    }
+    
+    public int[] getElectronIDs()
+    {
+        return readIntColumn(1);
+    }
+    
+    public int size()
+    {
+        return m_numberOfEvents;
+    }
+    
+    private double[] readDoubleColumn(int p_column)
+    {
+        double[] column = new double[m_numberOfEvents];
+        int offset = 0;
+        
+        for (int i = 0 ; i < m_blocks.size() ; i += 1)
+        {
+            int blockSize = m_blockSizes.get(i);
+            ByteBuffer block = m_blocks.get(i).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            block.position(p_column * blockSize * Double.BYTES);
+            block.asDoubleBuffer().get(column, offset, blockSize);
+            offset += blockSize;
+        }
+        
+        return column;
+    }
+    
+    private int[] readIntColumn(int p_column)
+    {
+        int[] column = new int[m_numberOfEvents];
+        int offset = 0;
+        
+        for (int i = 0 ; i < m_blocks.size() ; i += 1)
+        {
+            int blockSize = m_blockSizes.get(i);
+            ByteBuffer block = m_blocks.get(i).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            block.position(2 * blockSize * Double.BYTES + p_column * blockSize * Integer.BYTES);
+            block.asIntBuffer().get(column, offset, blockSize);
+            offset += blockSize;
+        }
+        
+        return column;
+    }
+    
+    private static void readFully(FileChannel p_channel, ByteBuffer p_buffer, long p_position) throws IOException
+    {
+        while (p_buffer.hasRemaining())
+        {
+            if (p_channel.read(p_buffer, p_position + p_buffer.position()) < 0)
+            {
+                throw new IOException("Unexpected end of file.");
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.executionmanager;
+
+import nanohikari.luminescencegenerator.RecombinationRecorder;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write the recombination events to a binary file, in columns.
+ * The file starts with FORMAT_ID and FORMAT_VERSION, followed by blocks of at most BLOCK_SIZE events.
+ * A block is the number of events n it contains, then n times (s), n energies (J), n QD indices and n electron ids.
+ * Everything is written in little endian.
+ * @author Alban Lafuente
+ */
+public class EventLogWriter implements RecombinationRecorder
+{
+    static final int FORMAT_ID = 0x4E484556;
+    static final int FORMAT_VERSION = 1;
+    static final int BLOCK_SIZE = 1 << 16;
+    static final int EVENT_BYTES = 2 * Double.BYTES + 2 * Integer.BYTES;
+    
+    private final File m_file;
+    private final FileChannel m_channel;
+    private final ByteBuffer m_buffer = ByteBuffer.allocateDirect(Integer.BYTES + BLOCK_SIZE * EVENT_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final double[] m_times = new double[BLOCK_SIZE];
+    private final double[] m_energies = new double[BLOCK_SIZE];
+    private final int[] m_QDIndices = new int[BLOCK_SIZE];
+    private final int[] m_electronIDs = new int[BLOCK_SIZE];
+    
+    private int m_blockCount = 0;
+    private long m_numberOfEvents = 0;
+    
+    public EventLogWriter (File p_file) throws IOException
+    {
+        m_file = p_file;
+        if (p_file.getParentFile() != null)
+        {
+            p_file.getParentFile().mkdirs();
+        }
+        
+        m_channel = FileChannel.open(p_file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        m_buffer.putInt(FORMAT_ID).putInt(FORMAT_VERSION).flip();
+        writeBuffer();
+    }
+    
+    @Override
+    public void record(double p_time, double p_energy, int p_QDIndex, int p_electronID)
+    {
+        m_times[m_blockCount] = p_time;
+        m_energies[m_blockCount] = p_energy;
+        m_QDIndices[m_blockCount] = p_QDIndex;
+        m_electronIDs[m_blockCount] = p_electronID;
+        m_blockCount += 1;
+        m_numberOfEvents += 1;
+        
+        if (m_blockCount == BLOCK_SIZE)
+        {
+            writeBlock();
+        }
+    }
+    
+    @Override
+    public void close()
+    {
+        if (m_channel.isOpen())
+        {
+            if (m_blockCount > 0)
+            {
+                writeBlock();
+            }
+            
+            try
+            {
+                m_channel.close();
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(EventLogWriter.class.getName()).log(Level.SEVERE, "Impossible to close " + m_file, ex);
+            }
+        }
+    }
+    
+    public File getFile()
+    {
+        return m_file;
+    }
+    
+    public long getNumberOfEvents()
+    {
+        return m_numberOfEvents;
+    }
+    
+    private void writeBlock()
+    {
+        m_buffer.clear();
+        m_buffer.putInt(m_blockCount);
+        for (int i = 0 ; i < m_blockCount ; i += 1)
+        {
+            m_buffer.putDouble(m_times[i]);
+        }
+        for (int i = 0 ; i < m_blockCount ; i += 1)
+        {
+            m_buffer.putDouble(m_energies[i]);
+        }
+        for (int i = 0 ; i < m_blockCount ; i += 1)
+        {
+            m_buffer.putInt(m_QDIndices[i]);
+        }
+        for (int i = 0 ; i < m_blockCount ; i += 1)
+        {
+            m_buffer.putInt(m_electronIDs[i]);
+        }
+        m_buffer.flip();
+        m_blockCount = 0;
+        
+        writeBuffer();
+    }
+    
+    private void writeBuffer()
+    {
+        try
+        {
+            while (m_buffer.hasRemaining())
+            {
+                m_channel.write(m_buffer);
+            }
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(EventLogWriter.class.getName()).log(Level.SEVERE, "Impossible to write the events to " + m_file, ex);
+        }
+    }
+}
@@ -17,32 +17,39 @@
 package nanohikari.executionmanager;
 
 import nanohikari.luminescencegenerator.GeneratorManager;
+import nanohikari.luminescencegenerator.ImageBuffer;
+import nanohikari.luminescencegenerator.QDSpatialGrid;
 import static nanohikari.luminescencegenerator.GeneratorManager.formatBigDecimal;
 import nanohikari.luminescencegenerator.QuantumDot;
-import albanlafuente.physicstools.math.ContinuousFunction;
-import albanlafuente.physicstools.physics.Material;
 import albanlafuente.physicstools.physics.Metamaterial;
 import albanlafuente.physicstools.physics.PhysicsVariables;
 import com.github.kilianB.pcg.fast.PcgRSFast;
+import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.MathContext;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.InvalidParameterException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -56,33 +63,65 @@ import javafx.scene.image.Image;
  */
 public class ExecutionManager implements Runnable
 {
+    //number of fitting steps done on the predicted spectra between two simulations, when the surrogate is used
+    static final int SURROGATE_ITERATIONS = 20;
+    //biggest radius of the transition tables, in nm: the mean radius plus three deviations of a fitted distribution has to stay under it
+    static final double MAX_FITTED_RADIUS = 50;
+    //highest fraction of the sample covered by a fitted distribution. The random placement jams around 0.55 and slows down long before.
+    static final double MAX_FITTED_COVERAGE = 0.3;
+    
     private final BigDecimal m_sampleXSize;
     private final BigDecimal m_sampleYSize;
     private final BigDecimal m_timeStep;
     private final boolean m_autoexit;
-    private final boolean m_gnuplotInstalled;
     private final boolean m_isContinuousIntegration;
     private final boolean m_isFittingMode;
+    //true if the fit is done on the parameters of the distribution instead of moving the QDs one by one
+    private final boolean m_isParametricFit;
+    //true if the fitting steps are done on spectra predicted from the last simulation, only the final distribution being simulated
+    private final boolean m_useSurrogate;
     private final boolean m_wavelengthAbscissa;
-    private final ContinuousFunction m_luminescence;
-    private final File m_luminescenceFile;
+    private final BigDecimal m_QDDensity;
+    //experimental luminescence in SI units, normalized to its maximum
+    private final SampledSpectrum m_luminescence;
+    //experimental luminescence in the unit of the plots (nm or eV), sorted by abscissa
+    private final double[] m_experimentalAbscissa;
+    private final double[] m_experimentalIntensity;
     private final GUIUpdater m_gui;
+    //density of states of m_QDList, updated each time a QD is added or replaced
+    private final Histogram m_densityOfStates = new Histogram(SimulationSorter.DOS_INTERVAL);
     private final int m_maxLoop;
     private final int m_numberElectron;
     private final int m_numberRecombinations;
+    //relative error on the results at which the simulations stop before m_numberRecombinations, 0 to always reach it
+    private final double m_convergenceTarget;
+    //true if the free electrons far from the QDs do several time steps at once
+    private final boolean m_adaptiveStep;
+    //number of candidate distributions simulated at the same time in fitting mode
+    private final int m_populationSize;
     private final Metamaterial m_sampleMaterial;
     private final PcgRSFast m_RNGenerator = new PcgRSFast();
+    //files and pictures are written in the background by a single thread, in the order the results are computed
+    private final ExecutorService m_outputExecutor = Executors.newSingleThreadExecutor();
+    //the spectra picture of each simulation, for the final gif. Only used by the output thread.
+    private final List<BufferedImage> m_spectraPictures = new ArrayList<>();
     private final String m_resultDirectory = "Results/";
     private final String m_calculatedSpectraDirectory = m_resultDirectory + "Spectra/";
     private final String m_calculatedTimeResolvedPLDirectory = m_resultDirectory + "TRPL/";
     private final String m_fittedQDListsDirectory = m_resultDirectory + "QDLists/";
     private final String m_DOSDirectory = m_resultDirectory + "DOS/";
+    private final String m_eventsDirectory = m_resultDirectory + "Events/";
     private int m_loopCounter = 0;
     private List<QuantumDot> m_QDList = new ArrayList<>();
+    //the generator of the last simulation, whose grid and QDs are reused by the next one. Released when the simulation ends, so that the QDs and electrons it holds can be freed
+    private GeneratorManager m_lastGenerator = null;
+    //the number and the mismatch of the best simulation of a distribution fit, which is the one shown at the end
+    private int m_bestDistributionIndex = 0;
+    private double m_bestDistributionMismatch = Double.POSITIVE_INFINITY;
     
     private Instant startTime;
     
-    public ExecutionManager (GUIUpdater p_gui, Properties p_configuration, BigDecimal p_sampleXSize, BigDecimal p_sampleYSize)
+    public ExecutionManager (GUIUpdater p_gui, Properties p_configuration)
     {
         //testing if the property file has the correct fields
         Set<String> configKeys = p_configuration.stringPropertyNames();
@@ -127,24 +166,41 @@ public class ExecutionManager implements Runnable
             Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, new IOException("define if the simulation should autoexit"));
         }
             
-        boolean containsTimestepKey = false;
-        Pattern timeStepKeyPattern = Pattern.compile("simulation_timestep_.{0,1}s");
-        String timeStepKey = "";
-        for (String key: configKeys)
+        String timeStepKey = findKey(configKeys, Pattern.compile("simulation_timestep_.{0,1}s"));
+        if (timeStepKey.equals(""))
         {
-            if (containsTimestepKey = timeStepKeyPattern.matcher(key).matches())
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, new IOException("timestep not defined"));
+        }
+        
+        //initializing the sample size and QD density. Those are optional, the default being a 1 µm x 1 µm sample with 400 QDs
+        String sampleXSizeKey = findKey(configKeys, Pattern.compile("sample_size_x_.{0,1}m"));
+        String sampleYSizeKey = findKey(configKeys, Pattern.compile("sample_size_y_.{0,1}m"));
+        String densityKey = findKey(configKeys, Pattern.compile("QD_density_.{0,1}m-2"));
+        BigDecimal tempXSize = PhysicsVariables.UnitsPrefix.MICRO.getMultiplier();
+        BigDecimal tempYSize = PhysicsVariables.UnitsPrefix.MICRO.getMultiplier();
+        BigDecimal tempDensity = new BigDecimal("4e14");
+        try
+        {
+            if (!sampleXSizeKey.equals(""))
             {
-                timeStepKey = key;
-                break;
+                tempXSize = (new BigDecimal(p_configuration.getProperty(sampleXSizeKey))).multiply(unitMultiplier(sampleXSizeKey, "m"));
+            }
+            if (!sampleYSizeKey.equals(""))
+            {
+                tempYSize = (new BigDecimal(p_configuration.getProperty(sampleYSizeKey))).multiply(unitMultiplier(sampleYSizeKey, "m"));
+            }
+            if (!densityKey.equals(""))
+            {
+                tempDensity = (new BigDecimal(p_configuration.getProperty(densityKey))).divide(unitMultiplier(densityKey, "m-2").pow(2), MathContext.DECIMAL128);
             }
         }
-        if (!containsTimestepKey)
+        catch(NumberFormatException ex)
         {
-            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, new IOException("timestep not defined"));
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, "sample size and QD density have to be numbers", ex);
         }
-        
-        m_sampleXSize = p_sampleXSize;
-        m_sampleYSize = p_sampleYSize;
+        m_sampleXSize = tempXSize;
+        m_sampleYSize = tempYSize;
+        m_QDDensity = tempDensity;
         
         m_gui = p_gui;
         
@@ -153,7 +209,7 @@ public class ExecutionManager implements Runnable
         m_isFittingMode = executionMode.equals("fitting");
         if (!m_isFittingMode && !executionMode.equals("simulation"))
         {
-            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, new IOException("Please select an execution mode between \"fitting\" and \"simulation\""));
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, new IOException("Please select an execution mode between \"fitting\", \"simulation\" and \"rebinning\""));
         }
         
         //select the integration mode
@@ -244,21 +300,60 @@ public class ExecutionManager implements Runnable
         }
         m_maxLoop = tempnLoops;
         
-        //testing if gnuplot is installed
-        boolean gnuplotExist;
+        //initializing the relative error at which the simulations stop. It is optional, the default being to always wait for the expected number of recombinations
+        double tempConvergenceTarget = 0;
         try
         {
-            //testing if gnuplot is on the computer
-            Runtime.getRuntime().exec("gnuplot");
-            gnuplotExist = true;
+            tempConvergenceTarget = Double.parseDouble(p_configuration.getProperty("convergence_target", "0"));
         }
-        catch (IOException ex)
+        catch(NumberFormatException ex)
         {
-            gnuplotExist = false;
-            Logger.getLogger(ExecutionManager.class.getName()).log(Level.FINEST, "Gnuplot is missing.", ex);
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, "convergence target has to be a number", ex);
         }
-        m_gnuplotInstalled = gnuplotExist;
-
+        //under single shot illumination, an early stop would cut the end of the decay, where the slow QDs emit, and the estimated errors cannot see it
+        if (tempConvergenceTarget > 0 && !m_isContinuousIntegration)
+        {
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, "convergence target is only used under continuous illumination, the simulations wait for the expected number of recombinations", new IOException());
+            tempConvergenceTarget = 0;
+        }
+        m_convergenceTarget = tempConvergenceTarget;
+        
+        //say if the free electrons far from the QDs can do several steps at once. It is optional, the default being a single step each time
+        String adaptiveValue = p_configuration.getProperty("adaptive_timestep", "false");
+        if (!adaptiveValue.equals("true") && !adaptiveValue.equals("false"))
+        {
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, new IOException("Please select if the time step should be adaptive (value \"true\") or not (value \"false\")"));
+        }
+        m_adaptiveStep = Boolean.valueOf(adaptiveValue);
+        
+        //initializing the number of candidates of each fitting loop. It is optional, the default being a single candidate
+        int tempPopulation = 1;
+        try
+        {
+            tempPopulation = Integer.parseInt(p_configuration.getProperty("fitting_population", "1"));
+        }
+        catch(NumberFormatException ex)
+        {
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, "fitting population has to be an integer", ex);
+        }
+        m_populationSize = Math.max(1, tempPopulation);
+        
+        //select the fitting algorithm. It is optional, the default being to move the QDs one by one
+        String fittingAlgorithm = p_configuration.getProperty("fitting_algorithm", "heuristic");
+        m_isParametricFit = fittingAlgorithm.equals("nelder_mead");
+        if (!m_isParametricFit && !fittingAlgorithm.equals("heuristic"))
+        {
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, new IOException("Please select a fitting algorithm between \"heuristic\" and \"nelder_mead\""));
+        }
+        
+        //say if the fitting steps should be done on predicted spectra. It is optional, the default being to simulate each step
+        String surrogateValue = p_configuration.getProperty("fitting_surrogate", "false");
+        if (!surrogateValue.equals("true") && !surrogateValue.equals("false"))
+        {
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, new IOException("Please select if the fit should use predicted spectra (value \"true\") or not (value \"false\")"));
+        }
+        m_useSurrogate = Boolean.valueOf(surrogateValue);
+        
         //getting the luminescence as a function if in fitting mode, else the object is initialized to null
         if (m_isFittingMode)
         {
@@ -312,108 +407,63 @@ public class ExecutionManager implements Runnable
                 lumValues.put(abscissa, lumValues.get(abscissa).divide(maxCounts, MathContext.DECIMAL128));
             }
 
-            m_luminescence = new ContinuousFunction(lumValues);
-            
-            //if gnuplot is installed, we will use the luminescence to generate spectra image, so we save it in a format we know is readable by gnuplot
-            m_luminescenceFile = new File(m_calculatedSpectraDirectory + "/Luminescence.dat");
-            m_luminescenceFile.mkdirs();
-            if (m_gnuplotInstalled)
+            //the experimental luminescence is drawn with each calculated spectra
+            double abscissaUnit = m_wavelengthAbscissa ? PhysicsVariables.UnitsPrefix.NANO.getMultiplier().doubleValue() : PhysicsVariables.EV.doubleValue();
+            BigDecimal[] sortedAbscissa = lumValues.keySet().toArray(new BigDecimal[0]);
+            Arrays.sort(sortedAbscissa);
+            double[] abscissa = new double[sortedAbscissa.length];
+            m_experimentalAbscissa = new double[sortedAbscissa.length];
+            m_experimentalIntensity = new double[sortedAbscissa.length];
+            for (int i = 0 ; i < sortedAbscissa.length ; i += 1)
             {
-                try
-                {
-                    //creating the luminescence file for gnuplot
-                    Set<BigDecimal> energySet = m_luminescence.getAbscissa();
-                    BufferedWriter lumWriter = new BufferedWriter(new FileWriter(m_luminescenceFile));
-                    lumWriter.write("Wavelength (nm)\tIntensity (cps)");
-                    for (BigDecimal abscissa: energySet)
-                    {
-                        BigDecimal sacledAbscissa;
-                        if (m_wavelengthAbscissa)
-                        {
-                            sacledAbscissa = abscissa.divide(PhysicsVariables.UnitsPrefix.NANO.getMultiplier(), MathContext.DECIMAL128);
-                        }
-                        else
-                        {
-                            sacledAbscissa = abscissa.divide(PhysicsVariables.EV, MathContext.DECIMAL128);
-                        }
-
-                        lumWriter.newLine();
-                        lumWriter.write(sacledAbscissa.toPlainString() + "\t" + m_luminescence.getValueAtPosition(abscissa));
-                    }
-                    lumWriter.flush();
-                    lumWriter.close();
-                }
-                catch (IOException ex)
-                {
-                    Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, "Impossible to create the luminescence file.", ex);
-                }
+                abscissa[i] = sortedAbscissa[i].doubleValue();
+                m_experimentalAbscissa[i] = abscissa[i] / abscissaUnit;
+                m_experimentalIntensity[i] = lumValues.get(sortedAbscissa[i]).doubleValue();
             }
+            
+            //the experimental luminescence never changes, so it is sampled once for all the fitting loops
+            m_luminescence = SampledSpectrum.resample(abscissa, m_experimentalIntensity);
         }
         else
         {
             m_luminescence = null;
-            m_luminescenceFile = null;
+            m_experimentalAbscissa = null;
+            m_experimentalIntensity = null;
         }
         
-        //creating the material and metamaterial database
-        String materialDirectoryPath = "ressources/materials/";
-        Map<String, Material> materialList = new HashMap<>();
-        File materialDirectory = new File(materialDirectoryPath);
+        //only the metamaterial of the sample and its materials are loaded, the time functions being taken from the snapshot when one is given and still up to date
         SCSVLoader functionLoader = new SCSVLoader();
-        for (String fileName: materialDirectory.list())
+        String snapshotPath = p_configuration.getProperty("materials_snapshot", "");
+        MaterialSnapshot materialSnapshot = snapshotPath.equals("") ? null : new MaterialSnapshot(new File(snapshotPath), functionLoader);
+        MaterialDatabase materialDatabase = new MaterialDatabase(new File("ressources/materials/"), new File("ressources/metamaterials/"), materialSnapshot != null ? materialSnapshot : functionLoader);
+        
+        //Loading the material or matematerial in the sample
+        String sampleMaterialID = p_configuration.getProperty("material");
+        if (sampleMaterialID.equals(""))
         {
-            String[] fileNameSplit = fileName.split("\\.");
-            if (fileNameSplit.length > 0 && fileNameSplit[fileNameSplit.length-1].equals("mat"))
-            {
-                try
-                {
-                    FileReader parameterReader = new FileReader(new File(materialDirectoryPath + fileName));
-                    Properties materialParameters = new Properties();
-                    materialParameters.load(parameterReader);
-
-                    materialList.put(materialParameters.getProperty("name"), new Material(materialParameters, functionLoader));
-                }
-                catch (IOException ex)
-                {
-                    Logger.getLogger(getClass().getName()).log(Level.SEVERE, null, ex);
-                }
-            }
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, new InvalidParameterException("Sample material not given."));
         }
-
-        String metamaterialDirectoryPath = "ressources/metamaterials/";
-        Map<String, Metamaterial> metamaterialList = new HashMap<>();
-        File metamaterialDirectory = new File(metamaterialDirectoryPath);
-        for (String fileName: metamaterialDirectory.list())
+        Metamaterial sampleMaterial = null;
+        try
         {
-            String[] fileNameSplit = fileName.split("\\.");
-            if (fileNameSplit.length > 0 && fileNameSplit[fileNameSplit.length-1].equals("metamat"))
-            {
-                try
-                {
-                    FileReader parameterReader = new FileReader(new File(metamaterialDirectoryPath + fileName));
-                    Properties metamaterialParameters = new Properties();
-                    metamaterialParameters.load(parameterReader);
-
-                    metamaterialList.put(metamaterialParameters.getProperty("name"), new Metamaterial(metamaterialParameters, materialList));
-                }
-                catch (IOException ex)
-                {
-                    Logger.getLogger(getClass().getName()).log(Level.SEVERE, null, ex);
-                }
-            }
+            sampleMaterial = materialDatabase.getMetamaterial(sampleMaterialID);
         }
-        
-        //Loading the material or matematerial in the sample
-        String sampleMaterialID = p_configuration.getProperty("material");
-        if (!metamaterialList.keySet().contains(sampleMaterialID))
+        catch (IOException ex)
         {
-            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, new InvalidParameterException("Material(s) in the sample are not defined"));
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, "Material(s) in the sample are not defined", ex);
         }
-        if (sampleMaterialID.equals(""))
+        if (materialSnapshot != null)
         {
-            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, new InvalidParameterException("Sample material not given."));
+            try
+            {
+                materialSnapshot.save();
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(ExecutionManager.class.getName()).log(Level.WARNING, "The material snapshot could not be saved.", ex);
+            }
         }
-        m_sampleMaterial = metamaterialList.get(sampleMaterialID);
+        m_sampleMaterial = sampleMaterial;
         
         //generating the QDs to be send
         String qdsPath = p_configuration.getProperty("QDs_distribution");
@@ -427,75 +477,164 @@ public class ExecutionManager implements Runnable
             System.out.println("Generating the QD distribution\n");
             m_gui.sendMessage("Generating the QD distribution\n");
 
-            //QDs are randomly generated with size following a normal distribution
-            int nQDs = 400;
-            BigDecimal three = new BigDecimal("3");
-            for (int i = 0 ; i < nQDs ; i += 1)
+            //QDs are randomly generated with size following a normal distribution, their number given by the density
+            int nQDs = m_QDDensity.multiply(m_sampleXSize).multiply(m_sampleYSize).intValue();
+            RandomQDGenerator QDGenerator = new RandomQDGenerator(m_sampleXSize.doubleValue(), m_sampleYSize.doubleValue(), m_RNGenerator);
+            QDGenerator.generate(nQDs);
+            
+            buildGeneratedQuantumDots(QDGenerator, m_QDList, m_densityOfStates);
+        }
+        else
+        {
+            try
             {
-                BigDecimal x, y, radiusNano, radius, height;
-                QuantumDot createdQD;
-
-                do
+                //QDs are extracted from file, the values being given in nm
+                QDDistributionLoader loadedQDs = new QDDistributionLoader(new File(qdsPath));
+                BigDecimal nano = PhysicsVariables.UnitsPrefix.NANO.getMultiplier();
+                
+                buildQuantumDots(loadedQDs.size(), m_QDList, m_densityOfStates, i ->
                 {
-                    x = formatBigDecimal((new BigDecimal(m_RNGenerator.nextDouble())).multiply(p_sampleXSize));
-                    y = formatBigDecimal((new BigDecimal(m_RNGenerator.nextDouble())).multiply(p_sampleYSize));
-
-                    do
-                    {
-                        radiusNano = new BigDecimal(m_RNGenerator.nextGaussian() * 2.1 + 12);
-                        radius = formatBigDecimal(radiusNano.multiply(PhysicsVariables.UnitsPrefix.NANO.getMultiplier()));
-
-                    }while (radius.compareTo(BigDecimal.ZERO) <= 0);
-
-                    do
-                    {
-                        /**
-                         * the height is correlated to the radius with the relation
-                         * height = radius / 3 - 1.5
-                         * with a variation of about +/- 0.5 around the line. To reproduce that variation, we use the relation
-                         * height = radius / 3 + GaussianRNG*0.5 - 1.5
-                         * GaussianRNG giving a number on a gaussian centered on 0 with a variance of 1.
-                         */
-                        height = formatBigDecimal((radiusNano.divide(three, MathContext.DECIMAL128)).add(new BigDecimal(m_RNGenerator.nextGaussian()*0.5 - 1.5)).multiply(PhysicsVariables.UnitsPrefix.NANO.getMultiplier()));
-                    }while(height.compareTo(BigDecimal.ZERO) <= 0);
-
-                    createdQD = new QuantumDot(x, y, radius, height, m_timeStep, m_sampleMaterial);
-
-                }while(!validPosition(createdQD, m_QDList));
-
-                m_QDList.add(createdQD);
+                    BigDecimal x = formatBigDecimal(BigDecimal.valueOf(loadedQDs.getX(i)).multiply(nano));
+                    BigDecimal y = formatBigDecimal(BigDecimal.valueOf(loadedQDs.getY(i)).multiply(nano));
+                    BigDecimal radius = formatBigDecimal(BigDecimal.valueOf(loadedQDs.getRadius(i)).multiply(nano));
+                    BigDecimal height = formatBigDecimal(BigDecimal.valueOf(loadedQDs.getHeight(i)).multiply(nano));
+                    
+                    return new QuantumDot(x, y, radius, height, m_timeStep, m_sampleMaterial);
+                });
+            }
+            catch (DataFormatException | IOException ex)
+            {
+                Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
-        else
+    }
+    
+    /**
+     * Build the QDs placed by a generator
+     * @param p_generator
+     * @param p_QDList the list the QDs are added to
+     * @param p_densityOfStates the density of states the states of the QDs are added to
+     */
+    private void buildGeneratedQuantumDots (RandomQDGenerator p_generator, List<QuantumDot> p_QDList, Histogram p_densityOfStates)
+    {
+        QDSpatialGrid generatedQDs = p_generator.getGrid();
+        
+        buildQuantumDots(generatedQDs.size(), p_QDList, p_densityOfStates, i ->
         {
-            try
+            BigDecimal x = formatBigDecimal(BigDecimal.valueOf(generatedQDs.getX(i)));
+            BigDecimal y = formatBigDecimal(BigDecimal.valueOf(generatedQDs.getY(i)));
+            BigDecimal radius = formatBigDecimal(BigDecimal.valueOf(generatedQDs.getRadius(i)));
+            BigDecimal height = formatBigDecimal(BigDecimal.valueOf(p_generator.getHeight(i)));
+            
+            return new QuantumDot(x, y, radius, height, m_timeStep, m_sampleMaterial);
+        });
+    }
+    
+    /**
+     * Build p_numberOfQDs QDs in parallel and add them to p_QDList and p_densityOfStates, in the order of their index.
+     * The QDs are built by batches, and only a limited number of batches are queued at the same time, so that the built QDs are added to the list as the construction goes instead of all being kept waiting.
+     * @param p_numberOfQDs
+     * @param p_QDList the list the QDs are added to
+     * @param p_densityOfStates the density of states the states of the QDs are added to
+     * @param p_QDFactory build the QD of a given index. It is called from several threads at the same time.
+     */
+    private void buildQuantumDots (int p_numberOfQDs, List<QuantumDot> p_QDList, Histogram p_densityOfStates, IntFunction<QuantumDot> p_QDFactory)
+    {
+        int batchSize = 64;
+        int numberOfThreads = Runtime.getRuntime().availableProcessors();
+        ExecutorService builders = Executors.newFixedThreadPool(numberOfThreads);
+        ArrayDeque<Future<QuantumDot[]>> queuedBatches = new ArrayDeque<>();
+        
+        try
+        {
+            for (int batchStart = 0 ; batchStart < p_numberOfQDs || !queuedBatches.isEmpty() ; batchStart += batchSize)
             {
-                //QDs are extracted from file
-                BufferedReader fileReader = new BufferedReader(new FileReader(new File(qdsPath)));
-                Pattern numberRegex = Pattern.compile("^\\-?\\d+(\\.\\d+(e(\\+|\\-)\\d+)?)?");
-
-                String line;
-                while (((line = fileReader.readLine()) != null))
-                {	    
-                    String[] lineSplit = line.strip().split("[,;\t]");
-
-                    if(numberRegex.matcher(lineSplit[0]).matches())
+                if (batchStart < p_numberOfQDs)
+                {
+                    int start = batchStart;
+                    int end = Math.min(p_numberOfQDs, batchStart + batchSize);
+                    queuedBatches.add(builders.submit(() ->
                     {
-                        BigDecimal x = GeneratorManager.formatBigDecimal((new BigDecimal(lineSplit[0].strip())).multiply(PhysicsVariables.UnitsPrefix.NANO.getMultiplier()));
-                        BigDecimal y = GeneratorManager.formatBigDecimal((new BigDecimal(lineSplit[1].strip())).multiply(PhysicsVariables.UnitsPrefix.NANO.getMultiplier()));
-                        BigDecimal radius = GeneratorManager.formatBigDecimal((new BigDecimal(lineSplit[2].strip())).multiply(PhysicsVariables.UnitsPrefix.NANO.getMultiplier()));
-                        BigDecimal height = GeneratorManager.formatBigDecimal((new BigDecimal(lineSplit[3].strip())).multiply(PhysicsVariables.UnitsPrefix.NANO.getMultiplier()));
-
-                        QuantumDot currentQD = new QuantumDot(x, y, radius, height, m_timeStep, m_sampleMaterial);
-                        m_QDList.add(currentQD);
+                        QuantumDot[] batch = new QuantumDot[end - start];
+                        for (int i = start ; i < end ; i += 1)
+                        {
+                            batch[i - start] = p_QDFactory.apply(i);
+                        }
+                        
+                        return batch;
+                    }));
+                }
+                
+                //when the queue is full or everything is submitted, the oldest batch is waited for, which keeps the QDs in order
+                if (queuedBatches.size() >= 2 * numberOfThreads || batchStart + batchSize >= p_numberOfQDs)
+                {
+                    for (QuantumDot currentQD: queuedBatches.poll().get())
+                    {
+                        p_QDList.add(currentQD);
+                        SimulationSorter.addStates(p_densityOfStates, currentQD, 1);
                     }
                 }
             }
-            catch (IOException ex)
+        }
+        catch (InterruptedException | ExecutionException ex)
+        {
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        finally
+        {
+            builders.shutdownNow();
+        }
+    }
+    
+    /**
+     * Find the configuration key matching a pattern
+     * @param p_keys the configuration keys
+     * @param p_keyPattern the pattern of the wanted key
+     * @return the matching key, or an empty string if none match
+     */
+    static String findKey (Set<String> p_keys, Pattern p_keyPattern)
+    {
+        String foundKey = "";
+        
+        for (String key: p_keys)
+        {
+            if (p_keyPattern.matcher(key).matches())
             {
-                Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, ex);
+                foundKey = key;
+                break;
             }
         }
+        
+        return foundKey;
+    }
+    
+    /**
+     * Get the multiplier of the unit given at the end of a configuration key, for instance 1e-9 for sample_size_x_nm
+     * @param p_key the configuration key
+     * @param p_baseUnit the unit without prefix (for instance "m")
+     * @return 
+     */
+    static BigDecimal unitMultiplier (String p_key, String p_baseUnit)
+    {
+        String unit = p_key.substring(p_key.lastIndexOf("_") + 1);
+        String prefix = unit.substring(0, unit.length() - p_baseUnit.length());
+        BigDecimal multiplier;
+        
+        if (prefix.equals(""))
+        {
+            multiplier = BigDecimal.ONE;
+        }
+        else if (prefix.equals("u") || prefix.equals("\u00b5"))
+        {
+            //accepting the micro sign and u as well as the greek mu
+            multiplier = PhysicsVariables.UnitsPrefix.MICRO.getMultiplier();
+        }
+        else
+        {
+            multiplier = PhysicsVariables.UnitsPrefix.selectPrefix(prefix).getMultiplier();
+        }
+        
+        return multiplier;
     }
     
     private void launchCalculation()
@@ -504,10 +643,14 @@ public class ExecutionManager implements Runnable
         
         try
         {
-            GeneratorManager luminescenceGenerator = new GeneratorManager(m_sampleXSize, m_sampleYSize, m_timeStep, new BigDecimal("300"), m_isContinuousIntegration, GUICommunicator, m_numberRecombinations, m_numberElectron, m_QDList);
+            File eventsFile = new File(m_eventsDirectory + "Events" + (m_loopCounter + 1) + ".bin");
+            GeneratorManager luminescenceGenerator = GeneratorManager.generatorWithPreviousGrid(m_lastGenerator, m_sampleXSize, m_sampleYSize, m_timeStep, new BigDecimal("300"), m_isContinuousIntegration, GUICommunicator, m_numberRecombinations, m_numberElectron, m_QDList, new EventLogWriter(eventsFile));
+            luminescenceGenerator.setConvergenceTarget(m_convergenceTarget);
+            luminescenceGenerator.setAdaptiveStep(m_adaptiveStep);
+            m_lastGenerator = luminescenceGenerator;
             Thread generatorThread = new Thread(luminescenceGenerator);
             
-            ResultMonitor monitor = new ResultMonitor(m_wavelengthAbscissa, this, m_gui, luminescenceGenerator, generatorThread);
+            ResultMonitor monitor = new ResultMonitor(m_wavelengthAbscissa, this, m_gui, luminescenceGenerator, eventsFile, generatorThread);
             Thread monitorThread = new Thread(monitor);
             
             System.out.println("Starting simulation " + (m_loopCounter + 1));
@@ -524,96 +667,498 @@ public class ExecutionManager implements Runnable
         }
     }
     
-    private boolean validPosition(QuantumDot p_testedQD, List<QuantumDot> p_existingQDs)
+    /**
+     * Fit the luminescence by simulating several candidate distributions at the same time, each simulation having a share of the cores.
+     * The candidates of a generation are all made from the best candidate of the previous one, with steps of different sizes. Only the best candidate of each generation is saved.
+     * The first generation only simulates the starting distribution, with all the cores, as there is nothing to fit the candidates from before it.
+     */
+    private void fitPopulation()
     {
-        boolean valid = true;
+        ExecutorService candidateExecutor = Executors.newFixedThreadPool(m_populationSize);
+        
+        //the first generation only has the starting distribution, other candidates would only differ by the simulation noise
+        List<List<QuantumDot>> candidates = new ArrayList<>();
+        List<Histogram> candidatesDOS = new ArrayList<>();
+        candidates.add(m_QDList);
+        candidatesDOS.add(new Histogram(m_densityOfStates));
         
-        for (QuantumDot QD: p_existingQDs)
+        int fileIndex = m_loopCounter;
+        boolean goodFit = false;
+        try
+        {
+            while (!goodFit && m_loopCounter < m_maxLoop)
+            {
+                int generation = m_loopCounter + 1;
+                int numberOfCandidates = candidates.size();
+                int numberOfWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() / numberOfCandidates);
+                String candidatesMessage = numberOfCandidates > 1 ? " with " + numberOfCandidates + " candidates" : "";
+                System.out.println("Starting simulation " + generation + candidatesMessage);
+                m_gui.sendMessage("Starting simulation " + generation + candidatesMessage);
+                m_gui.setProgressTitle("Simulation " + generation + " progress:");
+                m_gui.updateProgress(0.0, "0 ns", "0/" + m_numberElectron);
+                startTime = Instant.now();
+                
+                List<Future<SimulationSorter>> simulations = new ArrayList<>();
+                for (int i = 0 ; i < numberOfCandidates ; i += 1)
+                {
+                    //only the progress of the first candidate is shown
+                    ImageBuffer progress = i == 0 ? new ResultInterpretator(m_gui) : (electrons, numberOfRecombinations, neededRecombinations, QDs, time) -> {};
+                    File candidateEvents = candidateEventsFile(generation, i);
+                    GeneratorManager candidateGenerator = new GeneratorManager(m_sampleXSize, m_sampleYSize, m_timeStep, new BigDecimal("300"), m_isContinuousIntegration, progress, m_numberRecombinations, m_numberElectron, candidates.get(i), new EventLogWriter(candidateEvents), numberOfWorkers);
+                    candidateGenerator.setConvergenceTarget(m_convergenceTarget);
+                    candidateGenerator.setAdaptiveStep(m_adaptiveStep);
+                    Histogram candidateDOS = new Histogram(candidatesDOS.get(i));
+                    boolean isReported = i == 0;
+                    
+                    simulations.add(candidateExecutor.submit(() ->
+                    {
+                        candidateGenerator.run();
+                        if (isReported)
+                        {
+                            ResultMonitor.reportConvergence(candidateGenerator, m_gui);
+                        }
+                        double[][] recombinations = ResultMonitor.collectRecombinations(candidateGenerator, candidateEvents, m_wavelengthAbscissa);
+                        
+                        return recombinations[0].length > 0 ? sortResults(recombinations[0], recombinations[1], recombinations[0].length, candidateDOS) : null;
+                    }));
+                }
+                
+                //the candidate closest to the experiment is kept
+                int best = -1;
+                double bestMismatch = Double.POSITIVE_INFINITY;
+                SimulationSorter[] sorters = new SimulationSorter[numberOfCandidates];
+                SimulationJudge[] judges = new SimulationJudge[numberOfCandidates];
+                for (int i = 0 ; i < numberOfCandidates ; i += 1)
+                {
+                    sorters[i] = simulations.get(i).get();
+                    if (sorters[i] != null)
+                    {
+                        judges[i] = new SimulationJudge(m_luminescence, sorters[i].getLuminescence());
+                        if (judges[i].mismatch() < bestMismatch)
+                        {
+                            best = i;
+                            bestMismatch = judges[i].mismatch();
+                        }
+                    }
+                }
+                if (best < 0)
+                {
+                    Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, new ArithmeticException("No candidate of simulation " + generation + " recombined."));
+                    break;
+                }
+                
+                //the events of the best candidate are kept under the usual name, so that they go with the saved states
+                for (int i = 0 ; i < numberOfCandidates ; i += 1)
+                {
+                    if (i == best)
+                    {
+                        Files.move(candidateEventsFile(generation, i).toPath(), new File(m_eventsDirectory + "Events" + generation + ".bin").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    else
+                    {
+                        Files.deleteIfExists(candidateEventsFile(generation, i).toPath());
+                    }
+                }
+                
+                m_loopCounter += 1;
+                fileIndex = m_loopCounter;
+                List<QuantumDot> bestQDs = candidates.get(best);
+                SimulationSorter bestSorter = sorters[best];
+                int savedIndex = fileIndex;
+                writeInBackground(() -> saveResults(savedIndex, bestSorter, bestQDs));
+                goodFit = judges[best].maximumMatch() && judges[best].shapeMatch();
+                
+                Instant endTime = Instant.now();
+                System.out.println("Best candidate: " + (best + 1) + ", calculation time: " + Duration.between(startTime, endTime).toMinutes() + " min " + Duration.between(startTime, endTime).toSecondsPart() + " s");
+                m_gui.sendMessage("Best candidate: " + (best + 1) + ", calculation time: " + Duration.between(startTime, endTime).toMinutes() + " min " + Duration.between(startTime, endTime).toSecondsPart() + " s");
+                
+                if (!goodFit && m_loopCounter < m_maxLoop)
+                {
+                    //the next candidates are fitted from the best one at the same time
+                    System.out.println("Trying to fit the luminescence.");
+                    m_gui.sendMessage("Trying to fit the luminescence.");
+                    
+                    List<Future<QDFitter>> fits = new ArrayList<>();
+                    List<Histogram> nextDOS = new ArrayList<>();
+                    for (int i = 0 ; i < m_populationSize ; i += 1)
+                    {
+                        Histogram fittedDOS = new Histogram(candidatesDOS.get(best));
+                        double step = candidateStep(i, m_populationSize);
+                        
+                        nextDOS.add(fittedDOS);
+                        fits.add(candidateExecutor.submit(() -> new QDFitter(bestQDs, m_timeStep, m_luminescence, bestSorter, m_gui, m_sampleMaterial, fittedDOS, step)));
+                    }
+                    
+                    candidates = new ArrayList<>();
+                    for (Future<QDFitter> fit: fits)
+                    {
+                        candidates.add(fit.get().getFittedQDs());
+                    }
+                    candidatesDOS = nextDOS;
+                }
+            }
+        }
+        catch (DataFormatException | IOException | InterruptedException | ExecutionException ex)
         {
-            valid &= p_testedQD.getRadius().add(QD.getRadius()).compareTo(p_testedQD.getDistance(QD.getX(), QD.getY())) < 0;
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        finally
+        {
+            candidateExecutor.shutdownNow();
         }
         
-        return valid;
+        System.out.println("Ending the simulation.");
+        m_gui.sendMessage("Ending the simulation.");
+        
+        int lastIndex = fileIndex;
+        writeInBackground(() -> endSimulation(lastIndex));
+        m_outputExecutor.shutdown();
     }
     
-    private void createPictures (int p_fileIndex, String p_spectraFile, String p_TRPLFile, String p_DOSFile)
+    /**
+     * Fit the luminescence by minimizing the mismatch over the parameters of a random distribution: mean radius, radius deviation, height to radius ratio and density.
+     * The fit starts from the statistics of the starting distribution. Each new set of parameters is a full simulation, counted in maximum_repetition.
+     */
+    private void fitDistribution()
     {
-        try
+        double nano = PhysicsVariables.UnitsPrefix.NANO.getMultiplier().doubleValue();
+        double sampleArea = m_sampleXSize.multiply(m_sampleYSize).doubleValue();
+        
+        //the parameters of the starting distribution cannot be computed without QDs
+        if (m_QDList.isEmpty())
         {
-            String spectraFile = m_calculatedSpectraDirectory + "Spectra" + p_fileIndex + ".png";
-            String timeResolvedFile = m_calculatedTimeResolvedPLDirectory + "TimeResolved" + p_fileIndex + ".png";
-            String DOSFile = m_DOSDirectory + "DOS" + p_fileIndex + ".png";
-            String experimentalLumLine = "";
-            if (m_isFittingMode)
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, "The distribution fit starts from the statistics of the QD distribution, which is empty.", new IOException("No starting QD"));
+        }
+        else
+        {
+            //the starting parameters are those of the starting distribution
+            double meanRadius = 0;
+            double meanSquareRadius = 0;
+            double meanHeight = 0;
+            double[] geometry = new double[4];
+            for (QuantumDot QD: m_QDList)
             {
-                experimentalLumLine = ","  + m_luminescenceFile.getCanonicalPath() + "\" u 1:2 w line t \"Experimental Lum\"";
+                QD.copyGeometryTo(geometry, 0);
+                meanRadius += geometry[2] / nano / m_QDList.size();
+                meanSquareRadius += Math.pow(geometry[2] / nano, 2) / m_QDList.size();
+                meanHeight += geometry[3] / nano / m_QDList.size();
             }
+            double radiusDeviation = Math.sqrt(Math.max(0, meanSquareRadius - meanRadius * meanRadius));
+            double[] start = {meanRadius, radiusDeviation > 0 ? radiusDeviation : 0.1 * meanRadius, meanRadius / (meanHeight + 1.5), m_QDList.size() / sampleArea};
             
-            String xlabelSpectra = m_wavelengthAbscissa ? "Wavelength (nm)" : "Energy (eV)";
+            //all the distributions are placed with the same random numbers, so that only the parameters change between two simulations
+            long placementSeed = m_RNGenerator.nextLong();
             
-            BufferedWriter gnuplotWriter = new BufferedWriter(new FileWriter(m_resultDirectory + ".gnuplotScript.gp"));
-            gnuplotWriter.write("set terminal png");
-            gnuplotWriter.newLine();
-            gnuplotWriter.write("set ylabel \"Intensity (arb. units.)\"");
-            gnuplotWriter.newLine();
-            gnuplotWriter.write("set xlabel \"" + xlabelSpectra + "\"");
-            gnuplotWriter.newLine();
-            gnuplotWriter.write("set output \"" + spectraFile + "\"");
-            gnuplotWriter.newLine();
-            gnuplotWriter.write("plot[*:*][0:1.1] \"" + p_spectraFile + "\" u 1:2 w line t \"Calculated Lum\"" + experimentalLumLine);
-            gnuplotWriter.newLine();
-            gnuplotWriter.write("unset output");
-            gnuplotWriter.newLine();
-            gnuplotWriter.write("set output \"" + timeResolvedFile + "\"");
-            gnuplotWriter.newLine();
-            gnuplotWriter.write("set xlabel \"Time (ns)\"");
-            gnuplotWriter.newLine();
-            gnuplotWriter.write("plot \"" + p_TRPLFile + "\" u ($1/1000):2 w points t \"Time Resolved Luminescence\"");
-            gnuplotWriter.newLine();
-            gnuplotWriter.write("unset output");
-            gnuplotWriter.newLine();
-            gnuplotWriter.write("set output \"" + DOSFile + "\"");
-            gnuplotWriter.newLine();
-            gnuplotWriter.write("set xlabel \"Energy (eV)\"");
-            gnuplotWriter.newLine();
-            gnuplotWriter.write("set ylabel \"Density of states (m^{-2})\"");
-            gnuplotWriter.newLine();
-            gnuplotWriter.write("plot \"" + p_DOSFile + "\" u 1:2 w line t \"Density of states\"");
-            gnuplotWriter.newLine();
-            gnuplotWriter.write("unset output");
-            gnuplotWriter.flush();
-            gnuplotWriter.close();
-
-            Runtime.getRuntime().exec("gnuplot " + m_resultDirectory + ".gnuplotScript.gp").waitFor();
-            Runtime.getRuntime().exec("rm " + m_resultDirectory + ".gnuplotScript.gp");
-        } 
-        catch (IOException|InterruptedException ex)
+            DistributionFitter fitter = new DistributionFitter(start, parameters ->
+            {
+                //nearly all the QDs have to be smaller than the biggest ones of the transition tables, and they have to cover the sample well below the jamming limit of the random placement
+                boolean positive = parameters[0] > 0 && parameters[1] >= 0 && parameters[2] > 0 && parameters[3] > 0;
+                double meanArea = Math.PI * (Math.pow(parameters[0], 2) + Math.pow(parameters[1], 2)) * nano * nano;
+                
+                return positive && parameters[0] + 3 * parameters[1] <= MAX_FITTED_RADIUS && parameters[3] * meanArea <= MAX_FITTED_COVERAGE && parameters[3] * sampleArea >= 1;
+            }, parameters -> simulateDistribution(parameters, placementSeed));
+            
+            double[] best = fitter.minimize(0.1, 1, m_maxLoop);
+            System.out.println("Best distribution: mean radius " + best[0] + " nm, radius deviation " + best[1] + " nm, height = radius / " + best[2] + " - 1.5 nm, density " + best[3] + " m-2, in " + fitter.getNumberOfSimulations() + " simulations");
+            m_gui.sendMessage("Best distribution: mean radius " + best[0] + " nm, radius deviation " + best[1] + " nm, height = radius / " + best[2] + " - 1.5 nm, density " + best[3] + " m-2, in " + fitter.getNumberOfSimulations() + " simulations");
+        }
+        
+        System.out.println("Ending the simulation.");
+        m_gui.sendMessage("Ending the simulation.");
+        
+        int bestIndex = m_bestDistributionIndex;
+        writeInBackground(() -> endSimulation(bestIndex));
+        m_outputExecutor.shutdown();
+    }
+    
+    /**
+     * Simulate a random distribution and compare it to the experimental luminescence
+     * @param p_parameters mean radius (nm), radius deviation (nm), height to radius ratio and density (m^-2)
+     * @param p_placementSeed the seed of the random generator placing the QDs
+     * @return the mismatch of the simulation with the experiment
+     */
+    private double simulateDistribution(double[] p_parameters, long p_placementSeed)
+    {
+        double mismatch = Double.POSITIVE_INFINITY;
+        int simulationIndex = m_loopCounter + 1;
+        
+        System.out.println("Starting simulation " + simulationIndex + ": mean radius " + p_parameters[0] + " nm, radius deviation " + p_parameters[1] + " nm, height = radius / " + p_parameters[2] + " - 1.5 nm, density " + p_parameters[3] + " m-2");
+        m_gui.sendMessage("Starting simulation " + simulationIndex + ": mean radius " + p_parameters[0] + " nm, radius deviation " + p_parameters[1] + " nm, height = radius / " + p_parameters[2] + " - 1.5 nm, density " + p_parameters[3] + " m-2");
+        m_gui.setProgressTitle("Simulation " + simulationIndex + " progress:");
+        m_gui.updateProgress(0.0, "0 ns", "0/" + m_numberElectron);
+        startTime = Instant.now();
+        
+        RandomQDGenerator QDGenerator = new RandomQDGenerator(m_sampleXSize.doubleValue(), m_sampleYSize.doubleValue(), new PcgRSFast(p_placementSeed, 1), p_parameters[0], p_parameters[1], p_parameters[2]);
+        QDGenerator.generate((int) Math.round(p_parameters[3] * m_sampleXSize.multiply(m_sampleYSize).doubleValue()));
+        List<QuantumDot> QDList = new ArrayList<>();
+        Histogram densityOfStates = new Histogram(SimulationSorter.DOS_INTERVAL);
+        buildGeneratedQuantumDots(QDGenerator, QDList, densityOfStates);
+        
+        try
+        {
+            File eventsFile = new File(m_eventsDirectory + "Events" + simulationIndex + ".bin");
+            GeneratorManager luminescenceGenerator = new GeneratorManager(m_sampleXSize, m_sampleYSize, m_timeStep, new BigDecimal("300"), m_isContinuousIntegration, new ResultInterpretator(m_gui), m_numberRecombinations, m_numberElectron, QDList, new EventLogWriter(eventsFile));
+            luminescenceGenerator.setConvergenceTarget(m_convergenceTarget);
+            luminescenceGenerator.setAdaptiveStep(m_adaptiveStep);
+            luminescenceGenerator.run();
+            ResultMonitor.reportConvergence(luminescenceGenerator, m_gui);
+            
+            double[][] recombinations = ResultMonitor.collectRecombinations(luminescenceGenerator, eventsFile, m_wavelengthAbscissa);
+            if (recombinations[0].length > 0)
+            {
+                SimulationSorter sorter = sortResults(recombinations[0], recombinations[1], recombinations[0].length, densityOfStates);
+                mismatch = new SimulationJudge(m_luminescence, sorter.getLuminescence()).mismatch();
+                
+                m_loopCounter += 1;
+                int fileIndex = m_loopCounter;
+                writeInBackground(() -> saveResults(fileIndex, sorter, QDList));
+                
+                if (mismatch < m_bestDistributionMismatch)
+                {
+                    m_bestDistributionIndex = fileIndex;
+                    m_bestDistributionMismatch = mismatch;
+                }
+            }
+        }
+        catch (DataFormatException | IOException ex)
+        {
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        
+        Instant endTime = Instant.now();
+        System.out.println("Mismatch: " + mismatch + ", calculation time: " + Duration.between(startTime, endTime).toMinutes() + " min " + Duration.between(startTime, endTime).toSecondsPart() + " s");
+        m_gui.sendMessage("Mismatch: " + mismatch + ", calculation time: " + Duration.between(startTime, endTime).toMinutes() + " min " + Duration.between(startTime, endTime).toSecondsPart() + " s");
+        
+        return mismatch;
+    }
+    
+    /**
+     * The first candidate takes the step deduced from the comparison, the others alternatively bigger and smaller steps
+     * @param p_index the index of the candidate
+     * @param p_populationSize the number of candidates
+     * @return the multiplier of the fitting step
+     */
+    static double candidateStep (int p_index, int p_populationSize)
+    {
+        double sign = p_index % 2 == 1 ? 1 : -1;
+        
+        return 1 + sign * ((p_index + 1) / 2) / (double) p_populationSize;
+    }
+    
+    private File candidateEventsFile (int p_generation, int p_candidate)
+    {
+        return new File(m_eventsDirectory + "Events" + p_generation + "_" + (p_candidate + 1) + ".bin");
+    }
+    
+    /**
+     * Draw the spectra, time resolved luminescence and DOS of a simulation and save them as PNG
+     * @param p_fileIndex the number of the simulation
+     * @param p_sorter the sorted results
+     */
+    private void createPictures (int p_fileIndex, SimulationSorter p_sorter)
+    {
+        String xlabelSpectra = m_wavelengthAbscissa ? "Wavelength (nm)" : "Energy (eV)";
+        double abscissaUnit = m_wavelengthAbscissa ? PhysicsVariables.UnitsPrefix.NANO.getMultiplier().doubleValue() : PhysicsVariables.EV.doubleValue();
+        double nano = PhysicsVariables.UnitsPrefix.NANO.getMultiplier().doubleValue();
+        double electronVolt = PhysicsVariables.EV.doubleValue();
+        
+        Histogram energies = p_sorter.getEnergies();
+        double maxCounts = energies.getMaxCount();
+        double[] spectraX = new double[energies.getNumberOfBins()];
+        double[] spectraY = new double[energies.getNumberOfBins()];
+        for (int i = 0 ; i < energies.getNumberOfBins() ; i += 1)
+        {
+            spectraX[i] = energies.getBinStart(i) / abscissaUnit;
+            spectraY[i] = energies.getCount(i) / maxCounts;
+        }
+        
+        Histogram times = p_sorter.getTimes();
+        double[] timesX = new double[times.getNumberOfBins()];
+        double[] timesY = new double[times.getNumberOfBins()];
+        for (int i = 0 ; i < times.getNumberOfBins() ; i += 1)
+        {
+            timesX[i] = times.getBinStart(i) / nano;
+            timesY[i] = times.getCount(i);
+        }
+        
+        Histogram densityOfStates = p_sorter.getDensityOfStates();
+        double[] DOSX = new double[densityOfStates.getNumberOfBins()];
+        double[] DOSY = new double[densityOfStates.getNumberOfBins()];
+        for (int i = 0 ; i < densityOfStates.getNumberOfBins() ; i += 1)
+        {
+            DOSX[i] = densityOfStates.getBinStart(i) / electronVolt;
+            DOSY[i] = densityOfStates.getCount(i) / p_sorter.getSampleVolume();
+        }
+        
+        BufferedImage spectraPicture;
+        PlotRenderer.Series calculatedSpectra = new PlotRenderer.Series("Calculated Lum", spectraX, spectraY, false);
+        if (m_isFittingMode)
+        {
+            spectraPicture = PlotRenderer.render(xlabelSpectra, "Intensity (arb. units.)", 0, 1.1, calculatedSpectra, new PlotRenderer.Series("Experimental Lum", m_experimentalAbscissa, m_experimentalIntensity, false));
+        }
+        else
+        {
+            spectraPicture = PlotRenderer.render(xlabelSpectra, "Intensity (arb. units.)", 0, 1.1, calculatedSpectra);
+        }
+        m_spectraPictures.add(spectraPicture);
+        
+        try
+        {
+            PlotRenderer.writePNG(spectraPicture, new File(m_calculatedSpectraDirectory + "Spectra" + p_fileIndex + ".png"));
+            PlotRenderer.writePNG(PlotRenderer.render("Time (ns)", "Intensity (arb. units.)", Double.NaN, Double.NaN, new PlotRenderer.Series("Time Resolved Luminescence", timesX, timesY, true)), new File(m_calculatedTimeResolvedPLDirectory + "TimeResolved" + p_fileIndex + ".png"));
+            PlotRenderer.writePNG(PlotRenderer.render("Energy (eV)", "Density of states (m^-2)", Double.NaN, Double.NaN, new PlotRenderer.Series("Density of states", DOSX, DOSY, false)), new File(m_DOSDirectory + "DOS" + p_fileIndex + ".png"));
+        }
+        catch (IOException ex)
         {
             Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
     
-    void computeResults(List<BigDecimal> p_recombinationEnergies, List<BigDecimal> p_recombinationTimes)
+    void computeResults(double[] p_recombinationEnergies, double[] p_recombinationTimes, int p_numberOfRecombinations)
     {
         System.out.println("Simulation finished.");
         m_gui.sendMessage("Simulation finished.");
         
-        //getting the list of states
-        System.out.println("Getting the list of states.");
-        m_gui.sendMessage("Getting the list of states.");
-        ArrayList<BigDecimal> everyStates = new ArrayList<>();
-        for (QuantumDot QD: m_QDList)
+        //the density of states is kept up to date when QDs are created or replaced, so only its bins are copied, the fitter modifying it afterward
+        List<QuantumDot> QDList = m_QDList;
+        Histogram densityOfStates = new Histogram(m_densityOfStates);
+        
+        System.out.println("Sorting the results.");
+        m_gui.sendMessage("Sorting the results.");
+        SimulationSorter sorter = sortResults(p_recombinationEnergies, p_recombinationTimes, p_numberOfRecombinations, densityOfStates);
+        
+        QDFitter fit = new QDFitter();
+        if (m_isFittingMode)
         {
-            everyStates.addAll(QD.getStates());
+            System.out.println("Trying to fit the luminescence.");
+            m_gui.sendMessage("Trying to fit the luminescence.");
+            fit = new QDFitter(QDList, m_timeStep, m_luminescence, sorter, m_gui, m_sampleMaterial, m_densityOfStates);
+            
+            if (m_useSurrogate)
+            {
+                //to be compared with the predicted mismatch
+                System.out.println("Simulated mismatch: " + new SimulationJudge(m_luminescence, sorter.getLuminescence()).mismatch());
+                m_gui.sendMessage("Simulated mismatch: " + new SimulationJudge(m_luminescence, sorter.getLuminescence()).mismatch());
+            }
         }
         
+        m_loopCounter += 1;
+        
+        //the files are written in the background while the next simulation runs. The fitter builds a new list, so the simulated one is not modified anymore
+        int fileIndex = m_loopCounter;
+        writeInBackground(() -> saveResults(fileIndex, sorter, QDList));
+        
+        Instant endTime = Instant.now();
+        System.out.println("Calculation time: " + Duration.between(startTime, endTime).toMinutes() + " min " + Duration.between(startTime, endTime).toSecondsPart() + " s");
+        m_gui.sendMessage("Calculation time: " + Duration.between(startTime, endTime).toMinutes() + " min " + Duration.between(startTime, endTime).toSecondsPart() + " s");
+        
+        //testing if the simulation finished or has to continue
+        if (fit.isGoodFit() || m_loopCounter >= m_maxLoop)
+        {
+            System.out.println("Ending the simulation.");
+            m_gui.sendMessage("Ending the simulation.");
+            m_lastGenerator = null;
+            
+            //the output thread executes the tasks in order, so the end of the simulation comes after every file has been written
+            writeInBackground(() -> endSimulation(fileIndex));
+            m_outputExecutor.shutdown();
+        }
+        else
+        {
+            if (m_isFittingMode)
+            {
+                m_QDList = fit.getFittedQDs();
+                
+                if (m_useSurrogate)
+                {
+                    m_QDList = refineWithSurrogate(QDList, fileIndex, m_QDList);
+                }
+            }
+            
+            System.out.println("\nStarting a new simulation");
+            m_gui.sendMessage("\nStarting a new simulation");
+            launchCalculation();
+        }
+    }
+    
+    /**
+     * Go on fitting without simulating, the spectra being predicted from the last simulation. Only the distribution with the best predicted spectra is simulated, to check the prediction.
+     * @param p_simulatedQDs the QDs of the last simulation
+     * @param p_simulationIndex the number of the last simulation
+     * @param p_fittedQDs the QDs fitted from the last simulation
+     * @return the QDs to simulate next
+     */
+    private List<QuantumDot> refineWithSurrogate(List<QuantumDot> p_simulatedQDs, int p_simulationIndex, List<QuantumDot> p_fittedQDs)
+    {
+        List<QuantumDot> candidate = p_fittedQDs;
+        List<QuantumDot> bestCandidate = p_fittedQDs;
+        double bestMismatch = Double.POSITIVE_INFINITY;
+        
+        try
+        {
+            EventLogReader events = new EventLogReader(new File(m_eventsDirectory + "Events" + p_simulationIndex + ".bin"));
+            EmissionSurrogate surrogate = new EmissionSurrogate(p_simulatedQDs, events.getQDIndices(), events.getEnergies());
+            double binWidth = m_luminescence.getMeanIntervalSize();
+            double sampleArea = m_sampleXSize.multiply(m_sampleYSize).doubleValue();
+            
+            for (int i = 0 ; i < SURROGATE_ITERATIONS ; i += 1)
+            {
+                //only the spectra of the sorter is used by the fitter
+                SimulationSorter predictedSorter = new SimulationSorter(m_wavelengthAbscissa, false, new Histogram(binWidth), surrogate.predict(candidate, m_wavelengthAbscissa, binWidth), new Histogram(SimulationSorter.DOS_INTERVAL), sampleArea);
+                
+                double mismatch = new SimulationJudge(m_luminescence, predictedSorter.getLuminescence()).mismatch();
+                System.out.println("Predicted step " + (i + 1) + ", mismatch: " + mismatch);
+                m_gui.sendMessage("Predicted step " + (i + 1) + ", mismatch: " + mismatch);
+                if (mismatch < bestMismatch)
+                {
+                    bestCandidate = candidate;
+                    bestMismatch = mismatch;
+                }
+                
+                //the fitter works on its own density of states, the one of the simulated distribution being rebuilt afterward
+                QDFitter fit = new QDFitter(candidate, m_timeStep, m_luminescence, predictedSorter, m_gui, m_sampleMaterial, new Histogram(SimulationSorter.DOS_INTERVAL));
+                if (fit.isGoodFit())
+                {
+                    break;
+                }
+                candidate = fit.getFittedQDs();
+            }
+        }
+        catch (DataFormatException | IOException ex)
+        {
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.WARNING, "The spectra could not be predicted, the fitted distribution is simulated directly.", ex);
+        }
+        catch (ArithmeticException | NumberFormatException ex)
+        {
+            //the fitter cannot go on from a predicted distribution, or the predicted spectrum is empty and cannot be judged: the best one so far is simulated
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.WARNING, "The fit on predicted spectra stopped.", ex);
+        }
+        
+        //the density of states follows the distribution that is simulated
+        m_densityOfStates.clear();
+        for (QuantumDot QD: bestCandidate)
+        {
+            SimulationSorter.addStates(m_densityOfStates, QD, 1);
+        }
+        
+        return bestCandidate;
+    }
+    
+    /**
+     * Sort the recombinations of a simulation in histograms
+     * @param p_recombinationEnergies the recombination energies (in J) or wavelengths (in m)
+     * @param p_recombinationTimes the recombination times, in seconds
+     * @param p_numberOfRecombinations the number of values to take in the arrays
+     * @param p_densityOfStates the density of states of the simulated QDs, kept by the sorter
+     * @return 
+     */
+    private SimulationSorter sortResults(double[] p_recombinationEnergies, double[] p_recombinationTimes, int p_numberOfRecombinations, Histogram p_densityOfStates)
+    {
         //if there is a luminesence file (fitting case), we take its interval, otherwise we take a default 5 nm interval
-        System.out.println("Sorting the results.");
-        m_gui.sendMessage("Sorting the results.");
         BigDecimal spectraInterval;
         if (m_isFittingMode)
         {
-            spectraInterval = m_luminescence.getMeanIntervalSize();
+            spectraInterval = new BigDecimal(m_luminescence.getMeanIntervalSize());
         }
         else
         {
@@ -626,62 +1171,75 @@ public class ExecutionManager implements Runnable
                 spectraInterval = new BigDecimal("0.002").multiply(PhysicsVariables.EV);
             }
         }
-        SimulationSorter sorter = new SimulationSorter(m_wavelengthAbscissa, spectraInterval, p_recombinationTimes, p_recombinationEnergies, everyStates, m_sampleXSize.multiply(m_sampleYSize));
         
-        QDFitter fit = new QDFitter();
-        if (m_isFittingMode)
+        return new SimulationSorter(m_wavelengthAbscissa, spectraInterval.doubleValue(), p_recombinationTimes, p_recombinationEnergies, p_numberOfRecombinations, p_densityOfStates, m_sampleXSize.multiply(m_sampleYSize).doubleValue());
+    }
+    
+    /**
+     * Queue p_task on the output thread. An exception thrown while writing is logged, instead of being lost with the thread.
+     * @param p_task
+     */
+    private void writeInBackground(Runnable p_task)
+    {
+        m_outputExecutor.execute(() ->
         {
-            System.out.println("Trying to fit the luminescence.");
-            m_gui.sendMessage("Trying to fit the luminescence.");
-            fit = new QDFitter(m_QDList, m_timeStep, m_luminescence, sorter, m_gui, m_sampleMaterial);
-        }
-        
-        m_loopCounter += 1;
-        
-        //saving the result to files and making pictures out of them if gnuplot is installed
-        File spectraFile = new File(m_calculatedSpectraDirectory + "Spectra" + m_loopCounter + ".dat");
+            try
+            {
+                p_task.run();
+            }
+            catch (RuntimeException ex)
+            {
+                Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, "Problem while writing the results.", ex);
+            }
+        });
+    }
+    
+    /**
+     * Write the result of a simulation to files and make pictures out of them
+     * @param p_fileIndex the number of the simulation
+     * @param p_sorter the sorted results
+     * @param p_QDList the QDs used for the simulation
+     */
+    private void saveResults(int p_fileIndex, SimulationSorter p_sorter, List<QuantumDot> p_QDList)
+    {
+        File spectraFile = new File(m_calculatedSpectraDirectory + "Spectra" + p_fileIndex + ".dat");
         spectraFile.getParentFile().mkdirs();
-        File TRPLFile = new File(m_calculatedTimeResolvedPLDirectory + "TimeResolved" + m_loopCounter + ".dat");
+        File TRPLFile = new File(m_calculatedTimeResolvedPLDirectory + "TimeResolved" + p_fileIndex + ".dat");
         TRPLFile.getParentFile().mkdirs();
-        File DOSFile = new File(m_DOSDirectory + "DOS" + m_loopCounter + ".dat");
+        File DOSFile = new File(m_DOSDirectory + "DOS" + p_fileIndex + ".dat");
         DOSFile.getParentFile().mkdirs();
         try
         {
-            sorter.saveToFile(TRPLFile, spectraFile, DOSFile);
+            p_sorter.saveToFile(TRPLFile, spectraFile, DOSFile);
         }
         catch (IOException ex)
         {
             Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, ex);
         }
 
-        if (m_gnuplotInstalled)
-        {
-            createPictures(m_loopCounter, spectraFile.getAbsolutePath(), TRPLFile.getAbsolutePath(), DOSFile.getAbsolutePath());
-        }
+        createPictures(p_fileIndex, p_sorter);
         
         System.out.println("Saving fitted QD list.");
         m_gui.sendMessage("Saving fitted QD list.");
-        File QDFile = new File(m_fittedQDListsDirectory + "FittedQDDistribution" + m_loopCounter + ".dat");
+        File QDFile = new File(m_fittedQDListsDirectory + "FittedQDDistribution" + p_fileIndex + ".dat");
         QDFile.getParentFile().mkdirs();
-        try
+        try (TextFileWriter resultWriter = new TextFileWriter(QDFile))
         {
-            BufferedWriter resultWriter = new BufferedWriter(new FileWriter(QDFile));
-
+            double nano = PhysicsVariables.UnitsPrefix.NANO.getMultiplier().doubleValue();
+            double[] geometry = new double[4];
+            
             resultWriter.write("x (nm)\ty (nm)\tradius (nm)\theight (nm)");
-            resultWriter.newLine();
-            for(QuantumDot qd: m_QDList)
+            for(QuantumDot qd: p_QDList)
             {
-                resultWriter.write(qd.scaledString(PhysicsVariables.UnitsPrefix.NANO.getMultiplier()));
-                resultWriter.newLine();
+                qd.copyGeometryTo(geometry, 0);
+                resultWriter.newLine().writeDecimal(geometry[0] / nano, 10).tab().writeDecimal(geometry[1] / nano, 10).tab().writeDecimal(geometry[2] / nano, 10).tab().writeDecimal(geometry[3] / nano, 10);
             }
-
-            resultWriter.flush();
-            resultWriter.close();
+            resultWriter.newLine();
         }
         catch (IOException ex)
         {
             System.out.println("x (nm)\ty (nm)\tradius (nm)\theight (nm)");
-            for (QuantumDot qd: m_QDList)
+            for (QuantumDot qd: p_QDList)
             {
                 System.out.println(qd.scaledString(PhysicsVariables.UnitsPrefix.NANO.getMultiplier()));
             }
@@ -689,68 +1247,72 @@ public class ExecutionManager implements Runnable
             Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, "Problem while writing the result file.", ex);
         }
         
-        Instant endTime = Instant.now();
-        System.out.println("Calculation time: " + Duration.between(startTime, endTime).toMinutes() + " min " + Duration.between(startTime, endTime).toSecondsPart() + " s");
-        m_gui.sendMessage("Calculation time: " + Duration.between(startTime, endTime).toMinutes() + " min " + Duration.between(startTime, endTime).toSecondsPart() + " s");
-        
-        //testing if the simulation finished or has to continue
-        if (fit.isGoodFit() || m_loopCounter >= m_maxLoop)
+        //saving the states so that the DOS can be binned again with the events
+        try
         {
-            System.out.println("Ending the simulation.");
-            m_gui.sendMessage("Ending the simulation.");
-            if (!m_autoexit)
+            StatesFile.write(new File(m_DOSDirectory + "States" + p_fileIndex + ".bin"), p_QDList);
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, "Impossible to save the QD states.", ex);
+        }
+    }
+    
+    /**
+     * Show the final pictures, or stop the program if autoexit is set
+     * @param p_lastIndex the number of the simulation to show: the last one, or the best one of a distribution fit
+     */
+    private void endSimulation(int p_lastIndex)
+    {
+        if (!m_autoexit)
+        {
+            //creating a gif of the spectra of each simulation
+            try
             {
-                if (m_gnuplotInstalled)
+                if (m_maxLoop > 1)
                 {
-                    //creating a gif of the result if Image Magick is installed
-                    try
-                    {
-                        if (m_maxLoop > 1)
-                        {
-                            Runtime.getRuntime().exec("convert -delay 500 " + m_calculatedSpectraDirectory + "Spectra*.png " + m_calculatedSpectraDirectory + "Spectra.gif");
-                        }
-                    }
-                    catch (IOException ex)
-                    {
-                        Logger.getLogger(ExecutionManager.class.getName()).log(Level.FINE, "Image Magick not installed.", ex);
-                    }
-
-                    //showing the final result on screen
-                    Platform.runLater(() ->
-                    {
-                        try
-                        {
-                            m_gui.showPicture(new Image(new FileInputStream(m_calculatedSpectraDirectory + "Spectra" + m_loopCounter + ".png")), "Spectra", "left");
-                            m_gui.showPicture(new Image(new FileInputStream(m_calculatedTimeResolvedPLDirectory + "TimeResolved" + m_loopCounter + ".png")), "Time Resolved", "right");
-                        }
-                        catch (FileNotFoundException ex)
-                        {
-                            Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, ex);
-                        }
-                    });
+                    PlotRenderer.writeGIF(m_spectraPictures, 500, new File(m_calculatedSpectraDirectory + "Spectra.gif"));
                 }
             }
-            else
+            catch (IOException ex)
             {
-                m_gui.stopExecution();
+                Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, "Impossible to create the gif.", ex);
             }
+
+            //showing the final result on screen
+            Platform.runLater(() ->
+            {
+                try
+                {
+                    m_gui.showPicture(new Image(new FileInputStream(m_calculatedSpectraDirectory + "Spectra" + p_lastIndex + ".png")), "Spectra", "left");
+                    m_gui.showPicture(new Image(new FileInputStream(m_calculatedTimeResolvedPLDirectory + "TimeResolved" + p_lastIndex + ".png")), "Time Resolved", "right");
+                }
+                catch (FileNotFoundException ex)
+                {
+                    Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            });
         }
         else
         {
-            if (m_isFittingMode)
-            {
-                m_QDList = fit.getFittedQDs();
-            }
-            
-            System.out.println("\nStarting a new simulation");
-            m_gui.sendMessage("\nStarting a new simulation");
-            launchCalculation();
+            m_gui.stopExecution();
         }
     }
     
     @Override
     public void run()
     {
-        launchCalculation();
+        if (m_isFittingMode && m_isParametricFit)
+        {
+            fitDistribution();
+        }
+        else if (m_isFittingMode && m_populationSize > 1)
+        {
+            fitPopulation();
+        }
+        else
+        {
+            launchCalculation();
+        }
     }
 }
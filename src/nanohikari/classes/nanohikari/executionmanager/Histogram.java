@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.executionmanager;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fixed width histogram stored in a primitive array.
+ * The bins are aligned on multiples of the bin width (bin n covers [n * width, (n+1) * width[), and only the range between the lowest and the highest filled bin is stored.
+ * Values can be added one by one as they come, the stored range growing if needed.
+ * @author Alban Lafuente
+ */
+public class Histogram
+{
+    private final double m_binWidth;
+    
+    private double[] m_counts = new double[0];
+    private long m_firstBin = 0;
+    
+    public Histogram (double p_binWidth)
+    {
+        if (!(p_binWidth > 0))
+        {
+            throw new IllegalArgumentException("The bin width has to be strictly positive.");
+        }
+        
+        m_binWidth = p_binWidth;
+    }
+    
+    public Histogram (Histogram p_toCopy)
+    {
+        m_binWidth = p_toCopy.m_binWidth;
+        m_counts = p_toCopy.m_counts.clone();
+        m_firstBin = p_toCopy.m_firstBin;
+    }
+    
+    /**
+     * Build the histogram of the p_length first values of p_values in a single pass
+     * @param p_values
+     * @param p_length
+     * @param p_binWidth
+     * @return
+     */
+    public static Histogram fill (double[] p_values, int p_length, double p_binWidth)
+    {
+        Histogram result = new Histogram(p_binWidth);
+        
+        if (p_length > 0)
+        {
+            double min = p_values[0];
+            double max = p_values[0];
+            for (int i = 1 ; i < p_length ; i += 1)
+            {
+                min = Math.min(min, p_values[i]);
+                max = Math.max(max, p_values[i]);
+            }
+            
+            result.m_firstBin = result.bin(min);
+            result.m_counts = new double[(int) (result.bin(max) - result.m_firstBin) + 1];
+            for (int i = 0 ; i < p_length ; i += 1)
+            {
+                result.m_counts[(int) (result.bin(p_values[i]) - result.m_firstBin)] += 1;
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Build the histogram of the p_length first values of p_values, splitting the work between the threads of the common fork-join pool.
+     * Each task counts its slice of the array in its own array of bins, the arrays being summed when the tasks are joined.
+     * @param p_values
+     * @param p_length
+     * @param p_binWidth
+     * @return 
+     */
+    public static Histogram parallelFill (double[] p_values, int p_length, double p_binWidth)
+    {
+        Histogram result = new Histogram(p_binWidth);
+        
+        if (p_length > 0)
+        {
+            double[] extrema = ForkJoinPool.commonPool().invoke(new ExtremaTask(p_values, 0, p_length));
+            
+            result.m_firstBin = result.bin(extrema[0]);
+            int numberOfBins = (int) (result.bin(extrema[1]) - result.m_firstBin) + 1;
+            result.m_counts = ForkJoinPool.commonPool().invoke(new FillTask(p_values, 0, p_length, result, numberOfBins));
+        }
+        
+        return result;
+    }
+    
+    public void add (double p_value)
+    {
+        add(p_value, 1);
+    }
+    
+    public void add (double p_value, double p_weight)
+    {
+        long bin = bin(p_value);
+        
+        if (m_counts.length == 0)
+        {
+            m_firstBin = bin;
+            m_counts = new double[1];
+        }
+        else if (bin < m_firstBin)
+        {
+            int shift = (int) (m_firstBin - bin);
+            double[] newCounts = new double[m_counts.length + shift];
+            System.arraycopy(m_counts, 0, newCounts, shift, m_counts.length);
+            m_counts = newCounts;
+            m_firstBin = bin;
+        }
+        else if (bin - m_firstBin >= m_counts.length)
+        {
+            m_counts = Arrays.copyOf(m_counts, (int) (bin - m_firstBin) + 1);
+        }
+        
+        m_counts[(int) (bin - m_firstBin)] += p_weight;
+    }
+    
+    /**
+     * Remove all the values
+     */
+    public void clear ()
+    {
+        m_counts = new double[0];
+        m_firstBin = 0;
+    }
+    
+    /**
+     * @param p_index the index of the bin, between 0 and getNumberOfBins() - 1
+     * @return the lower bound of the bin
+     */
+    public double getBinStart (int p_index)
+    {
+        return (m_firstBin + p_index) * m_binWidth;
+    }
+    
+    public double getBinWidth ()
+    {
+        return m_binWidth;
+    }
+    
+    public double getCount (int p_index)
+    {
+        return m_counts[p_index];
+    }
+    
+    public double getMaxCount ()
+    {
+        double max = 0;
+        
+        for (double count: m_counts)
+        {
+            max = Math.max(max, count);
+        }
+        
+        return max;
+    }
+    
+    public int getNumberOfBins ()
+    {
+        return m_counts.length;
+    }
+    
+    private long bin (double p_value)
+    {
+        return (long) Math.floor(p_value / m_binWidth);
+    }
+    
+    //under this number of values, a task does the work itself instead of splitting it
+    private static final int SEQUENTIAL_THRESHOLD = 1 << 16;
+    
+    private static class ExtremaTask extends RecursiveTask<double[]>
+    {
+        private static final long serialVersionUID = 1L;
+        
+        private final double[] m_values;
+        private final int m_start;
+        private final int m_end;
+        
+        ExtremaTask (double[] p_values, int p_start, int p_end)
+        {
+            m_values = p_values;
+            m_start = p_start;
+            m_end = p_end;
+        }
+        
+        @Override
+        protected double[] compute()
+        {
+            double[] extrema;
+            
+            if (m_end - m_start <= SEQUENTIAL_THRESHOLD)
+            {
+                extrema = new double[] {m_values[m_start], m_values[m_start]};
+                for (int i = m_start + 1 ; i < m_end ; i += 1)
+                {
+                    extrema[0] = Math.min(extrema[0], m_values[i]);
+                    extrema[1] = Math.max(extrema[1], m_values[i]);
+                }
+            }
+            else
+            {
+                int middle = (m_start + m_end) >>> 1;
+                ExtremaTask left = new ExtremaTask(m_values, m_start, middle);
+                left.fork();
+                double[] rightExtrema = new ExtremaTask(m_values, middle, m_end).compute();
+                extrema = left.join();
+                extrema[0] = Math.min(extrema[0], rightExtrema[0]);
+                extrema[1] = Math.max(extrema[1], rightExtrema[1]);
+            }
+            
+            return extrema;
+        }
+    }
+    
+    private static class FillTask extends RecursiveTask<double[]>
+    {
+        private static final long serialVersionUID = 1L;
+        
+        private final double[] m_values;
+        private final int m_start;
+        private final int m_end;
+        private final Histogram m_histogram;
+        private final int m_numberOfBins;
+        
+        FillTask (double[] p_values, int p_start, int p_end, Histogram p_histogram, int p_numberOfBins)
+        {
+            m_values = p_values;
+            m_start = p_start;
+            m_end = p_end;
+            m_histogram = p_histogram;
+            m_numberOfBins = p_numberOfBins;
+        }
+        
+        @Override
+        protected double[] compute()
+        {
+            double[] counts;
+            
+            if (m_end - m_start <= SEQUENTIAL_THRESHOLD)
+            {
+                counts = new double[m_numberOfBins];
+                for (int i = m_start ; i < m_end ; i += 1)
+                {
+                    counts[(int) (m_histogram.bin(m_values[i]) - m_histogram.m_firstBin)] += 1;
+                }
+            }
+            else
+            {
+                int middle = (m_start + m_end) >>> 1;
+                FillTask left = new FillTask(m_values, m_start, middle, m_histogram, m_numberOfBins);
+                left.fork();
+                double[] rightCounts = new FillTask(m_values, middle, m_end, m_histogram, m_numberOfBins).compute();
+                counts = left.join();
+                for (int i = 0 ; i < m_numberOfBins ; i += 1)
+                {
+                    counts[i] += rightCounts[i];
+                }
+            }
+            
+            return counts;
+        }
+    }
+}
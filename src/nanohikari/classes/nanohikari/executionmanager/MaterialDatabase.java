@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.executionmanager;
+
+import albanlafuente.physicstools.math.ContinuousFunctionFileLoader;
+import albanlafuente.physicstools.physics.Material;
+import albanlafuente.physicstools.physics.Metamaterial;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * Give access to the materials (*.mat) and metamaterials (*.metamat) of the ressources folders, by their name.
+ * Nothing is loaded before being asked for: a metamaterial only loads the materials it refers to, and each of them only once.
+ * The file of a material is first looked for as [name].mat, the whole folder being searched only if that file does not exist or has another name inside.
+ * @author Alban Lafuente
+ */
+public class MaterialDatabase
+{
+    //same pattern as the one used by Metamaterial to find the materials in its properties
+    private static final Pattern MATERIAL_KEY = Pattern.compile(".*material.*");
+    
+    private final File m_materialDirectory;
+    private final File m_metamaterialDirectory;
+    private final ContinuousFunctionFileLoader m_functionLoader;
+    private final Map<String, Material> m_materials = new HashMap<>();
+    private final Map<String, Metamaterial> m_metamaterials = new HashMap<>();
+    
+    /**
+     * @param p_materialDirectory the folder containing the *.mat files
+     * @param p_metamaterialDirectory the folder containing the *.metamat files
+     * @param p_functionLoader the loader used to read the capture, escape and recombination times files of the materials
+     */
+    public MaterialDatabase (File p_materialDirectory, File p_metamaterialDirectory, ContinuousFunctionFileLoader p_functionLoader)
+    {
+        m_materialDirectory = p_materialDirectory;
+        m_metamaterialDirectory = p_metamaterialDirectory;
+        m_functionLoader = p_functionLoader;
+    }
+    
+    public synchronized Material getMaterial (String p_name) throws IOException
+    {
+        Material material = m_materials.get(p_name);
+        
+        if (material == null)
+        {
+            material = new Material(findProperties(m_materialDirectory, "mat", p_name), m_functionLoader);
+            m_materials.put(p_name, material);
+        }
+        
+        return material;
+    }
+    
+    public synchronized Metamaterial getMetamaterial (String p_name) throws IOException
+    {
+        Metamaterial metamaterial = m_metamaterials.get(p_name);
+        
+        if (metamaterial == null)
+        {
+            Properties metamaterialParameters = findProperties(m_metamaterialDirectory, "metamat", p_name);
+            
+            Map<String, Material> usedMaterials = new HashMap<>();
+            for (String key: metamaterialParameters.stringPropertyNames())
+            {
+                if (MATERIAL_KEY.matcher(key).matches())
+                {
+                    String materialName = metamaterialParameters.getProperty(key);
+                    usedMaterials.put(materialName, getMaterial(materialName));
+                }
+            }
+            
+            metamaterial = new Metamaterial(metamaterialParameters, usedMaterials);
+            m_metamaterials.put(p_name, metamaterial);
+        }
+        
+        return metamaterial;
+    }
+    
+    /**
+     * Find the properties file with the property name=p_name
+     * @param p_directory the folder where to search
+     * @param p_extension the extension of the files, without the dot
+     * @param p_name the wanted name
+     * @return the content of the file
+     * @throws FileNotFoundException if no file in p_directory has the given name
+     */
+    private static Properties findProperties (File p_directory, String p_extension, String p_name) throws IOException
+    {
+        File guessedFile = new File(p_directory, p_name + "." + p_extension);
+        if (guessedFile.isFile())
+        {
+            Properties guessedParameters = readProperties(guessedFile);
+            if (p_name.equals(guessedParameters.getProperty("name")))
+            {
+                return guessedParameters;
+            }
+        }
+        
+        String[] fileNames = p_directory.list();
+        if (fileNames != null)
+        {
+            for (String fileName: fileNames)
+            {
+                String[] fileNameSplit = fileName.split("\\.");
+                if (fileNameSplit.length > 0 && fileNameSplit[fileNameSplit.length-1].equals(p_extension))
+                {
+                    Properties parameters = readProperties(new File(p_directory, fileName));
+                    if (p_name.equals(parameters.getProperty("name")))
+                    {
+                        return parameters;
+                    }
+                }
+            }
+        }
+        
+        throw new FileNotFoundException("No *." + p_extension + " file named " + p_name + " in " + p_directory.getPath());
+    }
+    
+    private static Properties readProperties (File p_file) throws IOException
+    {
+        Properties parameters = new Properties();
+        
+        try (FileReader parameterReader = new FileReader(p_file))
+        {
+            parameters.load(parameterReader);
+        }
+        
+        return parameters;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.executionmanager;
+
+import albanlafuente.physicstools.math.ContinuousFunction;
+import albanlafuente.physicstools.math.ContinuousFunctionFileLoader;
+import albanlafuente.physicstools.physics.PhysicsVariables;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+
+/**
+ * Keep the functions read from the material files (capture, escape and recombination times) in a binary file, so that they are not parsed again at each start.
+ * A function is taken from the snapshot only if its source file has the same modification date and size as when it was saved, otherwise it is read again with the given loader.
+ * The file contains FORMAT_ID, FORMAT_VERSION, the number of functions, then for each function the source path, the units, the modification date and size of the source and its points as exact BigDecimals.
+ * @author Alban Lafuente
+ */
+public class MaterialSnapshot implements ContinuousFunctionFileLoader
+{
+    static final int FORMAT_ID = 0x4E484D54;
+    static final int FORMAT_VERSION = 1;
+    
+    private final File m_snapshotFile;
+    private final ContinuousFunctionFileLoader m_sourceLoader;
+    private final Map<String, SnapshotEntry> m_entries = new HashMap<>();
+    private boolean m_modified = false;
+    
+    /**
+     * @param p_snapshotFile the binary file. If it does not exist or cannot be read, it is ignored and will be written by save().
+     * @param p_sourceLoader the loader used to read the functions absent from the snapshot or outdated
+     */
+    public MaterialSnapshot (File p_snapshotFile, ContinuousFunctionFileLoader p_sourceLoader)
+    {
+        m_snapshotFile = p_snapshotFile;
+        m_sourceLoader = p_sourceLoader;
+        
+        if (p_snapshotFile.isFile())
+        {
+            try
+            {
+                read();
+            }
+            catch (DataFormatException | IOException ex)
+            {
+                Logger.getLogger(MaterialSnapshot.class.getName()).log(Level.WARNING, "Unreadable material snapshot, the material files will be read again.", ex);
+                m_entries.clear();
+                m_modified = true;
+            }
+        }
+    }
+    
+    @Override
+    public synchronized ContinuousFunction loadFunction (File p_functionFile, PhysicsVariables.UnitsPrefix p_abscissaUnit, PhysicsVariables.UnitsPrefix p_ordinateUnit) throws DataFormatException, IOException, ArrayIndexOutOfBoundsException
+    {
+        String key = p_functionFile.getAbsolutePath() + "|" + p_abscissaUnit.name() + "|" + p_ordinateUnit.name();
+        SnapshotEntry entry = m_entries.get(key);
+        
+        if (entry == null || entry.m_lastModified != p_functionFile.lastModified() || entry.m_length != p_functionFile.length())
+        {
+            ContinuousFunction function = m_sourceLoader.loadFunction(p_functionFile, p_abscissaUnit, p_ordinateUnit);
+            entry = new SnapshotEntry(p_functionFile.lastModified(), p_functionFile.length(), function.getFunction());
+            m_entries.put(key, entry);
+            m_modified = true;
+        }
+        
+        //the function copies the points it is given, so the entry cannot be modified through it
+        return new ContinuousFunction(entry.m_values);
+    }
+    
+    /**
+     * Write the snapshot if a function was read from its source since it was loaded.
+     * The file is written aside then moved, so that a snapshot interrupted while being written is never used.
+     * @throws IOException
+     */
+    public synchronized void save () throws IOException
+    {
+        if (!m_modified)
+        {
+            return;
+        }
+        
+        //functions whose source file has been deleted are forgotten
+        m_entries.keySet().removeIf(key -> !(new File(key.substring(0, key.indexOf('|')))).isFile());
+        
+        File temporaryFile = new File(m_snapshotFile.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile))))
+        {
+            output.writeInt(FORMAT_ID);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(m_entries.size());
+            
+            for (Map.Entry<String, SnapshotEntry> entry: m_entries.entrySet())
+            {
+                output.writeUTF(entry.getKey());
+                output.writeLong(entry.getValue().m_lastModified);
+                output.writeLong(entry.getValue().m_length);
+                output.writeInt(entry.getValue().m_values.size());
+                for (Map.Entry<BigDecimal, BigDecimal> point: entry.getValue().m_values.entrySet())
+                {
+                    writeBigDecimal(output, point.getKey());
+                    writeBigDecimal(output, point.getValue());
+                }
+            }
+        }
+        
+        try
+        {
+            Files.move(temporaryFile.toPath(), m_snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException ex)
+        {
+            //some file systems cannot rename atomically: the snapshot is still replaced, a crash during the move leaving it to be computed again
+            Files.move(temporaryFile.toPath(), m_snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        m_modified = false;
+    }
+    
+    private void read () throws DataFormatException, IOException
+    {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(m_snapshotFile))))
+        {
+            if (input.readInt() != FORMAT_ID || input.readInt() != FORMAT_VERSION)
+            {
+                throw new DataFormatException(m_snapshotFile.getPath() + " is not a material snapshot of this version.");
+            }
+            
+            int numberOfEntries = input.readInt();
+            for (int i = 0 ; i < numberOfEntries ; i += 1)
+            {
+                String key = input.readUTF();
+                long lastModified = input.readLong();
+                long length = input.readLong();
+                int numberOfPoints = input.readInt();
+                
+                HashMap<BigDecimal, BigDecimal> values = new HashMap<>();
+                for (int j = 0 ; j < numberOfPoints ; j += 1)
+                {
+                    values.put(readBigDecimal(input), readBigDecimal(input));
+                }
+                
+                m_entries.put(key, new SnapshotEntry(lastModified, length, values));
+            }
+        }
+    }
+    
+    private static void writeBigDecimal (DataOutputStream p_output, BigDecimal p_value) throws IOException
+    {
+        byte[] unscaledValue = p_value.unscaledValue().toByteArray();
+        
+        p_output.writeInt(p_value.scale());
+        p_output.writeShort(unscaledValue.length);
+        p_output.write(unscaledValue);
+    }
+    
+    private static BigDecimal readBigDecimal (DataInputStream p_input) throws IOException
+    {
+        int scale = p_input.readInt();
+        byte[] unscaledValue = new byte[p_input.readUnsignedShort()];
+        p_input.readFully(unscaledValue);
+        
+        return new BigDecimal(new BigInteger(unscaledValue), scale);
+    }
+    
+    private static class SnapshotEntry
+    {
+        private final long m_lastModified;
+        private final long m_length;
+        private final HashMap<BigDecimal, BigDecimal> m_values;
+        
+        private SnapshotEntry (long p_lastModified, long p_length, HashMap<BigDecimal, BigDecimal> p_values)
+        {
+            m_lastModified = p_lastModified;
+            m_length = p_length;
+            m_values = p_values;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.executionmanager;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Draw simple x-y plots in memory and save them as PNG, or as an animated GIF, without any external program
+ * @author Alban Lafuente
+ */
+public class PlotRenderer
+{
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int LEFT_MARGIN = 80;
+    private static final int RIGHT_MARGIN = 20;
+    private static final int TOP_MARGIN = 20;
+    private static final int BOTTOM_MARGIN = 55;
+    private static final Color[] COLORS = {new Color(148, 0, 211), new Color(0, 158, 115), new Color(86, 180, 233), new Color(230, 159, 0)};
+    
+    /**
+     * A curve to plot
+     */
+    public static class Series
+    {
+        private final String m_title;
+        private final double[] m_x;
+        private final double[] m_y;
+        private final boolean m_points;
+        
+        /**
+         * @param p_title the name shown in the legend
+         * @param p_x the abscissa, in the unit of the plot
+         * @param p_y the ordinates, in the unit of the plot
+         * @param p_points true to draw points, false to draw a line
+         */
+        public Series (String p_title, double[] p_x, double[] p_y, boolean p_points)
+        {
+            if (p_x.length != p_y.length)
+            {
+                throw new IllegalArgumentException("The abscissa and the ordinates have different lengths.");
+            }
+            
+            m_title = p_title;
+            m_x = p_x;
+            m_y = p_y;
+            m_points = p_points;
+        }
+    }
+    
+    /**
+     * Draw the series on a single plot
+     * @param p_xLabel
+     * @param p_yLabel
+     * @param p_yMin the lower bound of the ordinates, NaN to compute it from the data
+     * @param p_yMax the upper bound of the ordinates, NaN to compute it from the data
+     * @param p_series
+     * @return 
+     */
+    public static BufferedImage render (String p_xLabel, String p_yLabel, double p_yMin, double p_yMax, Series... p_series)
+    {
+        //range of the data
+        double xMin = Double.POSITIVE_INFINITY;
+        double xMax = Double.NEGATIVE_INFINITY;
+        double yMin = Double.POSITIVE_INFINITY;
+        double yMax = Double.NEGATIVE_INFINITY;
+        for (Series series: p_series)
+        {
+            for (int i = 0 ; i < series.m_x.length ; i += 1)
+            {
+                xMin = Math.min(xMin, series.m_x[i]);
+                xMax = Math.max(xMax, series.m_x[i]);
+                yMin = Math.min(yMin, series.m_y[i]);
+                yMax = Math.max(yMax, series.m_y[i]);
+            }
+        }
+        if (xMin > xMax)
+        {
+            xMin = 0;
+            xMax = 1;
+            yMin = 0;
+            yMax = 1;
+        }
+        double[] xRange = niceRange(xMin, xMax);
+        double[] yRange = niceRange(Double.isNaN(p_yMin) ? yMin : p_yMin, Double.isNaN(p_yMax) ? yMax : p_yMax);
+        if (!Double.isNaN(p_yMin))
+        {
+            yRange[0] = p_yMin;
+        }
+        if (!Double.isNaN(p_yMax))
+        {
+            yRange[1] = p_yMax;
+        }
+        
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, WIDTH, HEIGHT);
+        graphics.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 12));
+        FontMetrics metrics = graphics.getFontMetrics();
+        
+        int plotWidth = WIDTH - LEFT_MARGIN - RIGHT_MARGIN;
+        int plotHeight = HEIGHT - TOP_MARGIN - BOTTOM_MARGIN;
+        
+        //frame, ticks and labels
+        graphics.setColor(Color.BLACK);
+        graphics.drawRect(LEFT_MARGIN, TOP_MARGIN, plotWidth, plotHeight);
+        double xStep = tickStep(xRange[0], xRange[1]);
+        for (double tick = Math.ceil(xRange[0] / xStep) * xStep ; tick <= xRange[1] + xStep * 1e-9 ; tick += xStep)
+        {
+            int x = LEFT_MARGIN + (int) Math.round((tick - xRange[0]) / (xRange[1] - xRange[0]) * plotWidth);
+            String label = tickLabel(tick, xStep);
+            graphics.drawLine(x, TOP_MARGIN + plotHeight, x, TOP_MARGIN + plotHeight - 5);
+            graphics.drawString(label, x - metrics.stringWidth(label) / 2, TOP_MARGIN + plotHeight + metrics.getAscent() + 4);
+        }
+        double yStep = tickStep(yRange[0], yRange[1]);
+        for (double tick = Math.ceil(yRange[0] / yStep) * yStep ; tick <= yRange[1] + yStep * 1e-9 ; tick += yStep)
+        {
+            int y = TOP_MARGIN + plotHeight - (int) Math.round((tick - yRange[0]) / (yRange[1] - yRange[0]) * plotHeight);
+            String label = tickLabel(tick, yStep);
+            graphics.drawLine(LEFT_MARGIN, y, LEFT_MARGIN + 5, y);
+            graphics.drawString(label, LEFT_MARGIN - metrics.stringWidth(label) - 4, y + metrics.getAscent() / 2);
+        }
+        graphics.drawString(p_xLabel, LEFT_MARGIN + (plotWidth - metrics.stringWidth(p_xLabel)) / 2, HEIGHT - 10);
+        AffineTransform originalTransform = graphics.getTransform();
+        graphics.rotate(-Math.PI / 2);
+        graphics.drawString(p_yLabel, -(TOP_MARGIN + (plotHeight + metrics.stringWidth(p_yLabel)) / 2), metrics.getAscent() + 4);
+        graphics.setTransform(originalTransform);
+        
+        //curves and legend, clipped to the plot area
+        for (int s = 0 ; s < p_series.length ; s += 1)
+        {
+            Series series = p_series[s];
+            Color color = COLORS[s % COLORS.length];
+            graphics.setColor(color);
+            graphics.setStroke(new BasicStroke(1.5f));
+            
+            int legendY = TOP_MARGIN + 15 + 15 * s;
+            int legendX = LEFT_MARGIN + plotWidth - 40;
+            graphics.drawString(series.m_title, legendX - 8 - metrics.stringWidth(series.m_title), legendY + metrics.getAscent() / 2);
+            if (series.m_points)
+            {
+                graphics.drawLine(legendX + 15, legendY - 3, legendX + 21, legendY + 3);
+                graphics.drawLine(legendX + 15, legendY + 3, legendX + 21, legendY - 3);
+            }
+            else
+            {
+                graphics.drawLine(legendX, legendY, legendX + 35, legendY);
+            }
+            
+            graphics.setClip(LEFT_MARGIN, TOP_MARGIN, plotWidth + 1, plotHeight + 1);
+            Path2D.Double path = new Path2D.Double();
+            for (int i = 0 ; i < series.m_x.length ; i += 1)
+            {
+                double x = LEFT_MARGIN + (series.m_x[i] - xRange[0]) / (xRange[1] - xRange[0]) * plotWidth;
+                double y = TOP_MARGIN + plotHeight - (series.m_y[i] - yRange[0]) / (yRange[1] - yRange[0]) * plotHeight;
+                
+                if (series.m_points)
+                {
+                    path.moveTo(x - 3, y - 3);
+                    path.lineTo(x + 3, y + 3);
+                    path.moveTo(x - 3, y + 3);
+                    path.lineTo(x + 3, y - 3);
+                }
+                else if (i == 0)
+                {
+                    path.moveTo(x, y);
+                }
+                else
+                {
+                    path.lineTo(x, y);
+                }
+            }
+            graphics.draw(path);
+            graphics.setClip(null);
+        }
+        
+        graphics.dispose();
+        return image;
+    }
+    
+    public static void writePNG (BufferedImage p_image, File p_file) throws IOException
+    {
+        if (!ImageIO.write(p_image, "png", p_file))
+        {
+            throw new IOException("No PNG writer available.");
+        }
+    }
+    
+    /**
+     * Save images as an animated GIF looping forever
+     * @param p_images the frames
+     * @param p_delay the time each frame is shown, in hundredths of a second
+     * @param p_file
+     * @throws IOException 
+     */
+    public static void writeGIF (List<BufferedImage> p_images, int p_delay, File p_file) throws IOException
+    {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+        
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(p_file))
+        {
+            writer.setOutput(output);
+            writer.prepareWriteSequence(null);
+            
+            for (BufferedImage image: p_images)
+            {
+                IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), null);
+                String format = metadata.getNativeMetadataFormatName();
+                IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+                
+                IIOMetadataNode graphicControl = new IIOMetadataNode("GraphicControlExtension");
+                graphicControl.setAttribute("disposalMethod", "none");
+                graphicControl.setAttribute("userInputFlag", "FALSE");
+                graphicControl.setAttribute("transparentColorFlag", "FALSE");
+                graphicControl.setAttribute("delayTime", Integer.toString(p_delay));
+                graphicControl.setAttribute("transparentColorIndex", "0");
+                root.appendChild(graphicControl);
+                
+                //the netscape extension, given with the first frame, makes the animation loop
+                if (image == p_images.get(0))
+                {
+                    IIOMetadataNode applicationExtensions = new IIOMetadataNode("ApplicationExtensions");
+                    IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+                    loop.setAttribute("applicationID", "NETSCAPE");
+                    loop.setAttribute("authenticationCode", "2.0");
+                    loop.setUserObject(new byte[] {1, 0, 0});
+                    applicationExtensions.appendChild(loop);
+                    root.appendChild(applicationExtensions);
+                }
+                
+                metadata.setFromTree(format, root);
+                writer.writeToSequence(new IIOImage(image, null, metadata), null);
+            }
+            
+            writer.endWriteSequence();
+        }
+        finally
+        {
+            writer.dispose();
+        }
+    }
+    
+    /**
+     * Enlarge a range to the closest ticks
+     */
+    private static double[] niceRange (double p_min, double p_max)
+    {
+        if (p_max <= p_min)
+        {
+            double shift = p_min == 0 ? 1 : Math.abs(p_min) * 0.1;
+            p_min -= shift;
+            p_max += shift;
+        }
+        
+        double step = tickStep(p_min, p_max);
+        return new double[] {Math.floor(p_min / step) * step, Math.ceil(p_max / step) * step};
+    }
+    
+    /**
+     * Tick spacing of 1, 2 or 5 times a power of ten, giving between 4 and 10 ticks
+     */
+    private static double tickStep (double p_min, double p_max)
+    {
+        double rawStep = (p_max - p_min) / 6;
+        double magnitude = Math.pow(10, Math.floor(Math.log10(rawStep)));
+        double normalized = rawStep / magnitude;
+        double step;
+        
+        if (normalized < 1.5)
+        {
+            step = magnitude;
+        }
+        else if (normalized < 3.5)
+        {
+            step = 2 * magnitude;
+        }
+        else if (normalized < 7.5)
+        {
+            step = 5 * magnitude;
+        }
+        else
+        {
+            step = 10 * magnitude;
+        }
+        
+        return step;
+    }
+    
+    private static String tickLabel (double p_value, double p_step)
+    {
+        String label;
+        
+        if (Math.abs(p_value) >= 1e5 || (p_value != 0 && Math.abs(p_value) < 1e-3))
+        {
+            label = String.format(Locale.ROOT, "%.1e", p_value);
+        }
+        else
+        {
+            int decimals = Math.max(0, (int) -Math.floor(Math.log10(p_step)));
+            //avoiding "-0"
+            label = String.format(Locale.ROOT, "%." + decimals + "f", Math.abs(p_value) < p_step * 1e-9 ? 0 : p_value);
+        }
+        
+        return label;
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.executionmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.stream.IntStream;
+
+/**
+ * Load a QD distribution file, with one QD per line given as x, y, radius and height separated by ",", ";" or tabulations.
+ * Lines not starting with a number (headers for instance) are skipped.
+ * The file is memory mapped and cut into chunks ending at a line end, the chunks being parsed in parallel without creating any String.
+ * @author Alban Lafuente
+ */
+public class QDDistributionLoader
+{
+    private static final int VALUES_PER_QD = 4;
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+    private static final int MAX_CHUNK_SIZE = 1 << 26;
+    //10^n is exact in double up to n = 22, which allows a correctly rounded conversion of numbers with less than 16 digits
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static
+    {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1 ; i < POWERS_OF_TEN.length ; i += 1)
+        {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+    
+    private final double[] m_values;
+    private final int m_size;
+    
+    public QDDistributionLoader (File p_file) throws DataFormatException, IOException
+    {
+        try (FileChannel channel = FileChannel.open(p_file.toPath(), StandardOpenOption.READ))
+        {
+            long fileSize = channel.size();
+            int numberOfChunks = (int) Math.max(Math.min(fileSize / MIN_CHUNK_SIZE, 4 * Runtime.getRuntime().availableProcessors()), (fileSize + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+            numberOfChunks = Math.max(1, numberOfChunks);
+            
+            //the chunks start just after a line end
+            long[] chunkStarts = new long[numberOfChunks + 1];
+            chunkStarts[numberOfChunks] = fileSize;
+            for (int i = 1 ; i < numberOfChunks ; i += 1)
+            {
+                chunkStarts[i] = Math.max(chunkStarts[i - 1], nextLineStart(channel, fileSize * i / numberOfChunks));
+            }
+            
+            ChunkResult[] results = new ChunkResult[numberOfChunks];
+            DataFormatException[] errors = new DataFormatException[numberOfChunks];
+            IOException[] readErrors = new IOException[numberOfChunks];
+            IntStream.range(0, numberOfChunks).parallel().forEach(i ->
+            {
+                try
+                {
+                    MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, chunkStarts[i], chunkStarts[i + 1] - chunkStarts[i]);
+                    results[i] = parseChunk(chunk, chunkStarts[i]);
+                }
+                catch (DataFormatException ex)
+                {
+                    errors[i] = ex;
+                }
+                catch (IOException ex)
+                {
+                    readErrors[i] = ex;
+                }
+            });
+            
+            for (int i = 0 ; i < numberOfChunks ; i += 1)
+            {
+                if (errors[i] != null)
+                {
+                    throw errors[i];
+                }
+                if (readErrors[i] != null)
+                {
+                    throw readErrors[i];
+                }
+            }
+            
+            //gathering the chunks in the order of the file
+            int size = 0;
+            for (ChunkResult result: results)
+            {
+                size += result.m_size;
+            }
+            m_values = new double[VALUES_PER_QD * size];
+            int position = 0;
+            for (ChunkResult result: results)
+            {
+                System.arraycopy(result.m_values, 0, m_values, position, VALUES_PER_QD * result.m_size);
+                position += VALUES_PER_QD * result.m_size;
+            }
+            m_size = size;
+        }
+    }
+    
+    /**
+     * @param p_index the index of the QD, in the order of the file
+     * @return the abscissa, in the unit of the file
+     */
+    public double getX (int p_index)
+    {
+        return m_values[VALUES_PER_QD * p_index];
+    }
+    
+    /**
+     * @param p_index the index of the QD, in the order of the file
+     * @return the ordinate, in the unit of the file
+     */
+    public double getY (int p_index)
+    {
+        return m_values[VALUES_PER_QD * p_index + 1];
+    }
+    
+    /**
+     * @param p_index the index of the QD, in the order of the file
+     * @return the radius, in the unit of the file
+     */
+    public double getRadius (int p_index)
+    {
+        return m_values[VALUES_PER_QD * p_index + 2];
+    }
+    
+    /**
+     * @param p_index the index of the QD, in the order of the file
+     * @return the height, in the unit of the file
+     */
+    public double getHeight (int p_index)
+    {
+        return m_values[VALUES_PER_QD * p_index + 3];
+    }
+    
+    public int size ()
+    {
+        return m_size;
+    }
+    
+    private static class ChunkResult
+    {
+        private double[] m_values = new double[VALUES_PER_QD * 1024];
+        private int m_size = 0;
+        
+        private void add (double p_x, double p_y, double p_radius, double p_height)
+        {
+            if (VALUES_PER_QD * (m_size + 1) > m_values.length)
+            {
+                m_values = Arrays.copyOf(m_values, 2 * m_values.length);
+            }
+            
+            int position = VALUES_PER_QD * m_size;
+            m_values[position] = p_x;
+            m_values[position + 1] = p_y;
+            m_values[position + 2] = p_radius;
+            m_values[position + 3] = p_height;
+            m_size += 1;
+        }
+    }
+    
+    /**
+     * @return the position just after the first line end at or after p_position, or the file size if there is none
+     */
+    private static long nextLineStart (FileChannel p_channel, long p_position) throws IOException
+    {
+        int windowSize = 1 << 16;
+        
+        for (long windowStart = p_position ; windowStart < p_channel.size() ; windowStart += windowSize)
+        {
+            MappedByteBuffer window = p_channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, p_channel.size() - windowStart));
+            for (int i = 0 ; i < window.limit() ; i += 1)
+            {
+                if (window.get(i) == '\n')
+                {
+                    return windowStart + i + 1;
+                }
+            }
+        }
+        
+        return p_channel.size();
+    }
+    
+    private static ChunkResult parseChunk (MappedByteBuffer p_chunk, long p_chunkStart) throws DataFormatException
+    {
+        ChunkResult result = new ChunkResult();
+        //start and end of the fields of the current line
+        int[] fieldStarts = new int[VALUES_PER_QD];
+        int[] fieldEnds = new int[VALUES_PER_QD];
+        int lineStart = 0;
+        int limit = p_chunk.limit();
+        
+        while (lineStart < limit)
+        {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && p_chunk.get(lineEnd) != '\n')
+            {
+                lineEnd += 1;
+            }
+            
+            //cutting the line in fields
+            int numberOfFields = 0;
+            int fieldStart = lineStart;
+            for (int i = lineStart ; i <= lineEnd && numberOfFields < VALUES_PER_QD ; i += 1)
+            {
+                if (i == lineEnd || isSeparator(p_chunk.get(i)))
+                {
+                    fieldStarts[numberOfFields] = fieldStart;
+                    fieldEnds[numberOfFields] = i;
+                    numberOfFields += 1;
+                    fieldStart = i + 1;
+                }
+            }
+            
+            //the lines not starting by a number are headers or comments
+            if (numberOfFields > 0 && !Double.isNaN(parseNumber(p_chunk, fieldStarts[0], fieldEnds[0])))
+            {
+                if (numberOfFields < VALUES_PER_QD)
+                {
+                    throw new DataFormatException("Missing values in the QD line starting at byte " + (p_chunkStart + lineStart) + ".");
+                }
+                
+                double x = parseNumber(p_chunk, fieldStarts[0], fieldEnds[0]);
+                double y = parseNumber(p_chunk, fieldStarts[1], fieldEnds[1]);
+                double radius = parseNumber(p_chunk, fieldStarts[2], fieldEnds[2]);
+                double height = parseNumber(p_chunk, fieldStarts[3], fieldEnds[3]);
+                if (Double.isNaN(y) || Double.isNaN(radius) || Double.isNaN(height))
+                {
+                    throw new DataFormatException("Badly formatted number in the QD line starting at byte " + (p_chunkStart + lineStart) + ".");
+                }
+                
+                result.add(x, y, radius, height);
+            }
+            
+            lineStart = lineEnd + 1;
+        }
+        
+        return result;
+    }
+    
+    private static boolean isSeparator (byte p_character)
+    {
+        return p_character == ',' || p_character == ';' || p_character == '\t';
+    }
+    
+    private static boolean isBlank (byte p_character)
+    {
+        return p_character == ' ' || p_character == '\r';
+    }
+    
+    /**
+     * Parse a decimal number written between p_start and p_end, blanks around it being ignored
+     * @return the number, or NaN if the text is not a number
+     */
+    private static double parseNumber (MappedByteBuffer p_buffer, int p_start, int p_end)
+    {
+        while (p_start < p_end && isBlank(p_buffer.get(p_start)))
+        {
+            p_start += 1;
+        }
+        while (p_end > p_start && isBlank(p_buffer.get(p_end - 1)))
+        {
+            p_end -= 1;
+        }
+        
+        int position = p_start;
+        boolean negative = false;
+        if (position < p_end && (p_buffer.get(position) == '-' || p_buffer.get(position) == '+'))
+        {
+            negative = p_buffer.get(position) == '-';
+            position += 1;
+        }
+        
+        long mantissa = 0;
+        int significantDigits = 0;
+        int decimalShift = 0;
+        boolean hasDigits = false;
+        boolean pointFound = false;
+        for ( ; position < p_end ; position += 1)
+        {
+            byte character = p_buffer.get(position);
+            
+            if (character >= '0' && character <= '9')
+            {
+                hasDigits = true;
+                if (significantDigits < 18)
+                {
+                    mantissa = 10 * mantissa + (character - '0');
+                    if (mantissa > 0)
+                    {
+                        significantDigits += 1;
+                    }
+                    if (pointFound)
+                    {
+                        decimalShift -= 1;
+                    }
+                }
+                else if (!pointFound)
+                {
+                    //the digits beyond the precision of the mantissa only change the magnitude
+                    decimalShift += 1;
+                }
+            }
+            else if (character == '.' && !pointFound)
+            {
+                pointFound = true;
+            }
+            else
+            {
+                break;
+            }
+        }
+        if (!hasDigits)
+        {
+            return Double.NaN;
+        }
+        
+        int exponent = 0;
+        if (position < p_end && (p_buffer.get(position) == 'e' || p_buffer.get(position) == 'E'))
+        {
+            position += 1;
+            boolean negativeExponent = false;
+            if (position < p_end && (p_buffer.get(position) == '-' || p_buffer.get(position) == '+'))
+            {
+                negativeExponent = p_buffer.get(position) == '-';
+                position += 1;
+            }
+            
+            if (position == p_end)
+            {
+                return Double.NaN;
+            }
+            for ( ; position < p_end ; position += 1)
+            {
+                byte character = p_buffer.get(position);
+                if (character < '0' || character > '9' || exponent > 100000)
+                {
+                    return Double.NaN;
+                }
+                exponent = 10 * exponent + (character - '0');
+            }
+            if (negativeExponent)
+            {
+                exponent = -exponent;
+            }
+        }
+        if (position != p_end)
+        {
+            return Double.NaN;
+        }
+        
+        double value;
+        int powerOfTen = exponent + decimalShift;
+        if (significantDigits < 16 && Math.abs(powerOfTen) < POWERS_OF_TEN.length)
+        {
+            //both the mantissa and the power of ten are exact, so a single operation gives the correctly rounded value
+            value = powerOfTen >= 0 ? mantissa * POWERS_OF_TEN[powerOfTen] : mantissa / POWERS_OF_TEN[-powerOfTen];
+        }
+        else
+        {
+            byte[] text = new byte[p_end - p_start];
+            for (int i = 0 ; i < text.length ; i += 1)
+            {
+                text[i] = p_buffer.get(p_start + i);
+            }
+            value = Math.abs(Double.parseDouble(new String(text, java.nio.charset.StandardCharsets.US_ASCII)));
+        }
+        
+        return negative ? -value : value;
+    }
+}
@@ -17,7 +17,6 @@
 package nanohikari.executionmanager;
 
 import nanohikari.luminescencegenerator.QuantumDot;
-import albanlafuente.physicstools.math.ContinuousFunction;
 import albanlafuente.physicstools.physics.Metamaterial;
 import java.math.BigDecimal;
 import java.math.MathContext;
@@ -43,9 +42,35 @@ public class QDFitter
         m_fittedQDs = new ArrayList<>();
     }
     
-    public QDFitter (List<QuantumDot> p_QDList, BigDecimal p_timeStep, ContinuousFunction p_luminescence, SimulationSorter p_sorter, GUIUpdater p_gui, Metamaterial p_sampleMaterial)
+    /**
+     * Fit the QD distribution to the experimental luminescence
+     * @param p_QDList
+     * @param p_timeStep
+     * @param p_luminescence the experimental luminescence
+     * @param p_sorter
+     * @param p_gui
+     * @param p_sampleMaterial
+     * @param p_densityOfStates the density of states of p_QDList, updated with the states of the QDs that are replaced
+     */
+    public QDFitter (List<QuantumDot> p_QDList, BigDecimal p_timeStep, SampledSpectrum p_luminescence, SimulationSorter p_sorter, GUIUpdater p_gui, Metamaterial p_sampleMaterial, Histogram p_densityOfStates)
     {
-        ContinuousFunction calculationResult = p_sorter.getLuminescence();
+        this(p_QDList, p_timeStep, p_luminescence, p_sorter, p_gui, p_sampleMaterial, p_densityOfStates, 1);
+    }
+    
+    /**
+     * Fit the QD distribution to the experimental luminescence, taking a bigger or smaller step than the one deduced from the comparison
+     * @param p_QDList
+     * @param p_timeStep
+     * @param p_luminescence the experimental luminescence
+     * @param p_sorter
+     * @param p_gui
+     * @param p_sampleMaterial
+     * @param p_densityOfStates the density of states of p_QDList, updated with the states of the QDs that are replaced
+     * @param p_step the multiplier of the step: the number of QDs moved is multiplied by it, and the size change is raised to its power
+     */
+    public QDFitter (List<QuantumDot> p_QDList, BigDecimal p_timeStep, SampledSpectrum p_luminescence, SimulationSorter p_sorter, GUIUpdater p_gui, Metamaterial p_sampleMaterial, Histogram p_densityOfStates, double p_step)
+    {
+        SampledSpectrum calculationResult = p_sorter.getLuminescence();
         SimulationJudge judge = new SimulationJudge(p_luminescence, calculationResult);
         m_goodFit = judge.maximumMatch() && judge.shapeMatch();
         
@@ -62,15 +87,15 @@ public class QDFitter
                 
                 BigDecimal totalNumberOfQD = new BigDecimal(p_QDList.size());
                 
-                BigDecimal experimentalMaxPosition = p_luminescence.maximum().get("abscissa");
-                BigDecimal calculatedMaxPosition = calculationResult.maximum().get("abscissa");
+                BigDecimal experimentalMaxPosition = new BigDecimal(p_luminescence.getMaximumPosition());
+                BigDecimal calculatedMaxPosition = new BigDecimal(calculationResult.getMaximumPosition());
                 
                 HashMap<BigDecimal, BigDecimal> judgedNeededQDPercentages = judge.shapeDifferenceMap();
                 HashMap<BigDecimal, Integer> numberOfQDToAdd = new HashMap<>();
                 HashMap<BigDecimal, Integer> numberOfQDToRemove = new HashMap<>();
                 for (BigDecimal distanceFromMax: judgedNeededQDPercentages.keySet())
                 {
-                    BigDecimal ratioOfTotalQD = judgedNeededQDPercentages.get(distanceFromMax);
+                    BigDecimal ratioOfTotalQD = judgedNeededQDPercentages.get(distanceFromMax).multiply(new BigDecimal(p_step));
                     BigDecimal energy = calculatedMaxPosition.add(distanceFromMax);
                     
                     if (ratioOfTotalQD.compareTo(BigDecimal.ZERO) < 0)
@@ -86,10 +111,10 @@ public class QDFitter
                 }
                 
                 //defining the range outside of which, if a QD is, it will be put as available automatically
-                BigDecimal intervalSize = p_luminescence.getMeanIntervalSize();
-                BigDecimal experimentalDistanceBetweenMaxAndLowest = (p_luminescence.start().subtract(experimentalMaxPosition));
+                BigDecimal intervalSize = new BigDecimal(p_luminescence.getMeanIntervalSize());
+                BigDecimal experimentalDistanceBetweenMaxAndLowest = (new BigDecimal(p_luminescence.start())).subtract(experimentalMaxPosition);
                 BigDecimal calculationNeededLowest = calculatedMaxPosition.add(experimentalDistanceBetweenMaxAndLowest);
-                BigDecimal experimentalDistanceBetweenMaxAndHighest = (p_luminescence.end().subtract(experimentalMaxPosition)).add(intervalSize);
+                BigDecimal experimentalDistanceBetweenMaxAndHighest = ((new BigDecimal(p_luminescence.end())).subtract(experimentalMaxPosition)).add(intervalSize);
                 BigDecimal calculationNeededHighest = calculatedMaxPosition.add(experimentalDistanceBetweenMaxAndHighest);
                 
                 HashSet<QuantumDot> availableQDs = new HashSet<>();
@@ -136,10 +161,21 @@ public class QDFitter
                     {
                         QuantumDot workingQD = availableQDIterator.next();
                         
-                        BigDecimal multiplier = targetEnergy.divide(workingQD.getMeanEnergy(), MathContext.DECIMAL128);
-                        tempQDList.add(workingQD.copyWithSizeChange(multiplier, p_timeStep, p_sampleMaterial));
-                        
-                        numberOfQDToMove -= 1;
+                        //a QD without states has no energy to scale from, so it is kept as it is
+                        if (workingQD.getMeanEnergy().signum() == 0)
+                        {
+                            tempQDList.add(workingQD.copy());
+                        }
+                        else
+                        {
+                            BigDecimal multiplier = targetEnergy.divide(workingQD.getMeanEnergy(), MathContext.DECIMAL128);
+                            QuantumDot newQD = workingQD.copyWithSizeChange(multiplier, p_timeStep, p_sampleMaterial);
+                            SimulationSorter.addStates(p_densityOfStates, workingQD, -1);
+                            SimulationSorter.addStates(p_densityOfStates, newQD, 1);
+                            tempQDList.add(newQD);
+                            
+                            numberOfQDToMove -= 1;
+                        }
                     }
                 }
                 
@@ -262,6 +298,10 @@ public class QDFitter
                 p_gui.sendMessage("Adjusting the position of the maximum.");
                 
                 BigDecimal multiplier = BigDecimal.ONE.divide(judge.maximumRatio(), MathContext.DECIMAL128);
+                if (p_step != 1)
+                {
+                    multiplier = new BigDecimal(Math.pow(multiplier.doubleValue(), p_step));
+                }
                 ArrayList<QuantumDot> oldQDList = new ArrayList<>();
                 for (QuantumDot qd: tempQDList)
                 {
@@ -270,7 +310,10 @@ public class QDFitter
                 tempQDList = new ArrayList<>();
                 for (QuantumDot oldQD: oldQDList)
                 {
-                    tempQDList.add(oldQD.copyWithSizeChange(multiplier, p_timeStep, p_sampleMaterial));
+                    QuantumDot newQD = oldQD.copyWithSizeChange(multiplier, p_timeStep, p_sampleMaterial);
+                    SimulationSorter.addStates(p_densityOfStates, oldQD, -1);
+                    SimulationSorter.addStates(p_densityOfStates, newQD, 1);
+                    tempQDList.add(newQD);
                 }
             }
         }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.executionmanager;
+
+import albanlafuente.physicstools.physics.PhysicsVariables;
+import com.github.kilianB.pcg.fast.PcgRSFast;
+import java.util.Arrays;
+import nanohikari.luminescencegenerator.QDSpatialGrid;
+
+/**
+ * Place QDs randomly on the sample, with their size following a normal distribution.
+ * The positions are tested on a QDSpatialGrid before anything else is built, so the placement cost stays linear with the number of QDs.
+ * @author Alban Lafuente
+ */
+public class RandomQDGenerator
+{
+    private final double m_nanoMultiplier = PhysicsVariables.UnitsPrefix.NANO.getMultiplier().doubleValue();
+    private final PcgRSFast m_RNGenerator;
+    private final QDSpatialGrid m_grid;
+    //parameters of the distribution, in nm
+    private final double m_meanRadius;
+    private final double m_radiusDeviation;
+    private final double m_heightDivider;
+    
+    private double[] m_heights = new double[16];
+    
+    /**
+     * @param p_sampleXSize the size of the sample in x, in meters
+     * @param p_sampleYSize the size of the sample in y, in meters
+     * @param p_RNGenerator the random generator used to place the QDs
+     */
+    public RandomQDGenerator (double p_sampleXSize, double p_sampleYSize, PcgRSFast p_RNGenerator)
+    {
+        this(p_sampleXSize, p_sampleYSize, p_RNGenerator, 12, 2.1, 3);
+    }
+    
+    /**
+     * @param p_sampleXSize the size of the sample in x, in meters
+     * @param p_sampleYSize the size of the sample in y, in meters
+     * @param p_RNGenerator the random generator used to place the QDs
+     * @param p_meanRadius the mean radius of the QDs, in nm
+     * @param p_radiusDeviation the standard deviation of the radius, in nm
+     * @param p_heightDivider the ratio between the radius and the height, the height being radius / p_heightDivider - 1.5 nm
+     */
+    public RandomQDGenerator (double p_sampleXSize, double p_sampleYSize, PcgRSFast p_RNGenerator, double p_meanRadius, double p_radiusDeviation, double p_heightDivider)
+    {
+        m_RNGenerator = p_RNGenerator;
+        m_meanRadius = p_meanRadius;
+        m_radiusDeviation = p_radiusDeviation;
+        m_heightDivider = p_heightDivider;
+        m_grid = new QDSpatialGrid(p_sampleXSize, p_sampleYSize, 2 * p_meanRadius * m_nanoMultiplier);
+    }
+    
+    /**
+     * Add p_numberOfQDs QDs to the sample
+     * @param p_numberOfQDs
+     */
+    public void generate (int p_numberOfQDs)
+    {
+        double sampleXSize = m_grid.getSampleXSize();
+        double sampleYSize = m_grid.getSampleYSize();
+        
+        for (int i = 0 ; i < p_numberOfQDs ; i += 1)
+        {
+            double x, y, radiusNano, heightNano;
+            
+            do
+            {
+                x = m_RNGenerator.nextDouble() * sampleXSize;
+                y = m_RNGenerator.nextDouble() * sampleYSize;
+                
+                do
+                {
+                    radiusNano = m_RNGenerator.nextGaussian() * m_radiusDeviation + m_meanRadius;
+                }while (radiusNano <= 0);
+                
+                do
+                {
+                    /**
+                     * the height is correlated to the radius with the relation
+                     * height = radius / 3 - 1.5
+                     * with a variation of about +/- 0.5 around the line. To reproduce that variation, we use the relation
+                     * height = radius / 3 + GaussianRNG*0.5 - 1.5
+                     * the 3 being m_heightDivider when the distribution is fitted
+                     * GaussianRNG giving a number on a gaussian centered on 0 with a variance of 1.
+                     */
+                    heightNano = radiusNano / m_heightDivider + m_RNGenerator.nextGaussian()*0.5 - 1.5;
+                }while(heightNano <= 0);
+                
+            }while(!m_grid.isFree(x, y, radiusNano * m_nanoMultiplier));
+            
+            int index = m_grid.add(x, y, radiusNano * m_nanoMultiplier);
+            if (index == m_heights.length)
+            {
+                m_heights = Arrays.copyOf(m_heights, 2 * m_heights.length);
+            }
+            m_heights[index] = heightNano * m_nanoMultiplier;
+        }
+    }
+    
+    /**
+     * @return the grid containing the positions and radii of the generated QDs, in meters
+     */
+    public QDSpatialGrid getGrid()
+    {
+        return m_grid;
+    }
+    
+    /**
+     * @param p_index the QD index in the grid
+     * @return the height of the QD, in meters
+     */
+    public double getHeight(int p_index)
+    {
+        return m_heights[p_index];
+    }
+    
+    public int size()
+    {
+        return m_grid.size();
+    }
+}
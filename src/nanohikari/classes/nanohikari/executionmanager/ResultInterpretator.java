@@ -41,27 +41,18 @@ public class ResultInterpretator implements ImageBuffer
     /**
      * Format the data to send them to the GUI
      * @param p_electrons the list of electrons
+     * @param p_numberOfRecombinations the number of recombinations recorded so far
      * @param p_neededRecombinations the number of recombination needed to finish the simulation
      * @param p_qds the list of QDs
-     * @param p_time the time passed in the simulation, in nanoseconds
+     * @param p_time the time passed in the simulation, in seconds
      */
     @Override
-    public void logObjects(List<Electron> p_electrons, int p_neededRecombinations, List<QuantumDot> p_qds, BigDecimal p_time)
+    public void logObjects(List<Electron> p_electrons, int p_numberOfRecombinations, int p_neededRecombinations, List<QuantumDot> p_qds, double p_time)
     {
-        int numberRecombinedElectron = 0;
-        
-        for (Electron electron: p_electrons)
-        {
-            if (electron.isRecombined())
-            {
-                numberRecombinedElectron += 1;
-            }
-        }
-        
-        BigDecimal timens = (p_time.divide(PhysicsVariables.UnitsPrefix.NANO.getMultiplier(), MathContext.DECIMAL128)).setScale(3, RoundingMode.HALF_UP);
+        BigDecimal timens = (BigDecimal.valueOf(p_time).divide(PhysicsVariables.UnitsPrefix.NANO.getMultiplier(), MathContext.DECIMAL128)).setScale(3, RoundingMode.HALF_UP);
         String timeUnit = timens.toPlainString() + " ns";
-        String recombinedRatio = numberRecombinedElectron + "/" + p_neededRecombinations;
+        String recombinedRatio = p_numberOfRecombinations + "/" + p_neededRecombinations;
         
-        m_gui.updateProgress((double) numberRecombinedElectron / p_neededRecombinations, timeUnit, recombinedRatio);
+        m_gui.updateProgress((double) p_numberOfRecombinations / p_neededRecombinations, timeUnit, recombinedRatio);
     }
 }
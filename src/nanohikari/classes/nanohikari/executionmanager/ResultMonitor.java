@@ -16,18 +16,17 @@
  */
 package nanohikari.executionmanager;
 
-import nanohikari.luminescencegenerator.Electron;
+import nanohikari.luminescencegenerator.ConvergenceEstimator;
 import nanohikari.luminescencegenerator.GeneratorManager;
 import albanlafuente.physicstools.physics.PhysicsVariables;
-import com.sun.jdi.AbsentInformationException;
+import java.io.File;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.math.RoundingMode;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
 
 /**
  * @author Alban Lafuente
@@ -38,6 +37,8 @@ public class ResultMonitor implements Runnable
     private final ExecutionManager m_manager;
     private final GUIUpdater m_gui;
     private GeneratorManager m_simulator;
+    //the file the recorder of m_simulator writes the recombinations to
+    private File m_eventsFile;
     private Thread m_monitoredThread;
     
     public ResultMonitor ()
@@ -46,15 +47,17 @@ public class ResultMonitor implements Runnable
         m_manager = null;
         m_gui = null;
         m_simulator = null;
+        m_eventsFile = null;
         m_monitoredThread = null;
     }
     
-    public ResultMonitor (boolean p_convertEnergy, ExecutionManager p_manager, GUIUpdater p_gui, GeneratorManager p_simulator, Thread p_toMonitor)
+    public ResultMonitor (boolean p_convertEnergy, ExecutionManager p_manager, GUIUpdater p_gui, GeneratorManager p_simulator, File p_eventsFile, Thread p_toMonitor)
     {
         m_convertEnergy = p_convertEnergy;
         m_manager = p_manager;
         m_gui = p_gui;
         m_simulator = p_simulator;
+        m_eventsFile = p_eventsFile;
         m_monitoredThread = p_toMonitor;
     }
     
@@ -75,44 +78,83 @@ public class ResultMonitor implements Runnable
             BigDecimal timens = (m_simulator.getTime().divide(PhysicsVariables.UnitsPrefix.NANO.getMultiplier(), MathContext.DECIMAL128)).setScale(3, RoundingMode.HALF_UP);
             System.out.println("Total simulated time: " + timens + " nanoseconds");
             m_gui.sendMessage("Total simulated time: " + timens + " nanoseconds");
+            reportConvergence(m_simulator, m_gui);
             
-            HashSet<Electron> results = m_simulator.getFinalElectronList();
-            if (results.size() > 0)
+            double[][] recombinations = collectRecombinations(m_simulator, m_eventsFile, m_convertEnergy);
+            if (recombinations[0].length > 0)
             {
-                List<BigDecimal> recombinationTimes = new ArrayList<>();
-                List<BigDecimal> recombinationEnergy = new ArrayList<>();
-
-                for (Electron el: results)
-                {
-                    try
-                    {
-                        if (m_convertEnergy)
-                        {
-                            BigDecimal wavelength = PhysicsVariables.h.multiply(PhysicsVariables.c).divide(el.getRecombinationEnergy(), MathContext.DECIMAL128);
-                            recombinationEnergy.add(new BigDecimal(wavelength.toString()));
-                        }
-                        else
-                        {
-                            BigDecimal energy = el.getRecombinationEnergy();
-                            recombinationEnergy.add(new BigDecimal(energy.toString()));
-                        }
-
-                        recombinationTimes.add(new BigDecimal(el.getRecombinationTime().toString()));
-                    }
-                    catch (AbsentInformationException ex)
-                    {
-                        Logger.getLogger(ExecutionManager.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                }
-
-                m_manager.computeResults(recombinationEnergy, recombinationTimes);
+                m_manager.computeResults(recombinations[0], recombinations[1], recombinations[0].length);
+            }
+        }
+    }
+    
+    /**
+     * Give the precision reached by a finished simulation, if it was stopping on convergence
+     * @param p_simulator the finished simulation
+     * @param p_gui
+     */
+    static void reportConvergence (GeneratorManager p_simulator, GUIUpdater p_gui)
+    {
+        ConvergenceEstimator convergence = p_simulator.getConvergence();
+        
+        if (convergence != null)
+        {
+            String errors = String.format("%.2f %% on the spectrum and %.2f %% on the mean recombination time", 100 * convergence.getSpectrumError(), 100 * convergence.getDecayError());
+            String message;
+            if (p_simulator.isConverged())
+            {
+                message = "Relative error reached: " + errors;
+            }
+            else
+            {
+                message = String.format("Relative error of %.2f %% not reached, last estimation: ", 100 * convergence.getTarget()) + errors;
+            }
+            
+            System.out.println(message);
+            p_gui.sendMessage(message);
+        }
+    }
+    
+    /**
+     * Get the energies (or wavelengths) and times of the recombinations of a finished simulation
+     * @param p_simulator the finished simulation
+     * @param p_eventsFile the file the recorder of p_simulator wrote the recombinations to
+     * @param p_convertEnergy true to get the wavelengths instead of the energies
+     * @return an array containing the array of the energies (in J) or wavelengths (in m) and the array of the times (in s), empty if the simulation did not finish
+     */
+    static double[][] collectRecombinations (GeneratorManager p_simulator, File p_eventsFile, boolean p_convertEnergy)
+    {
+        double[][] results = new double[][] {new double[0], new double[0]};
+        if (p_simulator.isFinished())
+        {
+            try
+            {
+                EventLogReader events = new EventLogReader(p_eventsFile);
+                results = new double[][] {events.getEnergies(), events.getTimes()};
+            }
+            catch (DataFormatException | IOException ex)
+            {
+                Logger.getLogger(ResultMonitor.class.getName()).log(Level.SEVERE, "Impossible to read the recombinations from " + p_eventsFile, ex);
+            }
+        }
+        
+        double planckTimesLightSpeed = PhysicsVariables.h.multiply(PhysicsVariables.c).doubleValue();
+        
+        if (p_convertEnergy)
+        {
+            for (int i = 0 ; i < results[0].length ; i += 1)
+            {
+                results[0][i] = planckTimesLightSpeed / results[0][i];
             }
         }
+        
+        return results;
     }
     
-    public void initializeTrackedGenerator (GeneratorManager p_simulator, Thread p_toMonitor)
+    public void initializeTrackedGenerator (GeneratorManager p_simulator, File p_eventsFile, Thread p_toMonitor)
     {
         m_simulator = p_simulator;
+        m_eventsFile = p_eventsFile;
         m_monitoredThread = p_toMonitor;
     }
 }
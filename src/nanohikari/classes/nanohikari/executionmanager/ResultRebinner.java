@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.executionmanager;
+
+import albanlafuente.physicstools.physics.PhysicsVariables;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+
+/**
+ * Build the spectra, time resolved luminescence and DOS again from the events and states saved by a previous simulation, with new bins.
+ * The optional configuration keys are:
+ * spectra_interval_[unit] (in m or eV, default 5 nm or 2 meV depending on abscissa_type),
+ * time_binning (linear or log, default linear), time_interval_[unit]s (default: the last recombination time divided by 5000), time_bins_per_decade (default 20),
+ * DOS_interval_[unit]eV (default 2 meV), and the sample size keys used for the DOS normalisation.
+ * @author Alban Lafuente
+ */
+public class ResultRebinner implements Runnable
+{
+    private final boolean m_autoexit;
+    private final boolean m_logarithmicTimes;
+    private final boolean m_wavelengthAbscissa;
+    private final double m_DOSInterval;
+    private final double m_sampleArea;
+    private final double m_spectraInterval;
+    private final double m_timeBinsPerDecade;
+    private final double m_timeInterval;
+    private final File m_eventsFile;
+    private final File m_statesFile;
+    private final GUIUpdater m_gui;
+    private final String m_resultDirectory = "Results/Rebinned/";
+    
+    public ResultRebinner (GUIUpdater p_gui, Properties p_configuration)
+    {
+        m_gui = p_gui;
+        
+        Set<String> configKeys = p_configuration.stringPropertyNames();
+        if (!configKeys.contains("events_file"))
+        {
+            Logger.getLogger(ResultRebinner.class.getName()).log(Level.SEVERE, null, new IOException("events file property not defined"));
+        }
+        m_eventsFile = new File(p_configuration.getProperty("events_file", ""));
+        String statesPath = p_configuration.getProperty("states_file", "");
+        m_statesFile = statesPath.equals("") ? null : new File(statesPath);
+        
+        String abscissaType = p_configuration.getProperty("abscissa_type", "energy");
+        m_wavelengthAbscissa = abscissaType.equals("wavelength");
+        if (!m_wavelengthAbscissa && !abscissaType.equals("energy"))
+        {
+            Logger.getLogger(ResultRebinner.class.getName()).log(Level.SEVERE, null, new IOException("Please select an abscissa type between \"wavelength\" and \"energy\""));
+        }
+        
+        String timeBinning = p_configuration.getProperty("time_binning", "linear");
+        m_logarithmicTimes = timeBinning.equals("log");
+        if (!m_logarithmicTimes && !timeBinning.equals("linear"))
+        {
+            Logger.getLogger(ResultRebinner.class.getName()).log(Level.SEVERE, null, new IOException("Please select a time binning between \"linear\" and \"log\""));
+        }
+        
+        m_autoexit = Boolean.valueOf(p_configuration.getProperty("autoexit", "false"));
+        
+        //the intervals are optional, a value of 0 meaning the default one
+        double spectraInterval = m_wavelengthAbscissa ? 5 * PhysicsVariables.UnitsPrefix.NANO.getMultiplier().doubleValue() : 0.002 * PhysicsVariables.EV.doubleValue();
+        double timeInterval = 0;
+        double binsPerDecade = 20;
+        double DOSInterval = SimulationSorter.DOS_INTERVAL;
+        double sampleXSize = PhysicsVariables.UnitsPrefix.MICRO.getMultiplier().doubleValue();
+        double sampleYSize = PhysicsVariables.UnitsPrefix.MICRO.getMultiplier().doubleValue();
+        try
+        {
+            String spectraKey = m_wavelengthAbscissa ? ExecutionManager.findKey(configKeys, Pattern.compile("spectra_interval_.{0,1}m")) : ExecutionManager.findKey(configKeys, Pattern.compile("spectra_interval_.{0,1}eV"));
+            if (!spectraKey.equals(""))
+            {
+                BigDecimal unit = m_wavelengthAbscissa ? ExecutionManager.unitMultiplier(spectraKey, "m") : ExecutionManager.unitMultiplier(spectraKey, "eV").multiply(PhysicsVariables.EV);
+                spectraInterval = new BigDecimal(p_configuration.getProperty(spectraKey)).multiply(unit).doubleValue();
+            }
+            
+            String timeKey = ExecutionManager.findKey(configKeys, Pattern.compile("time_interval_.{0,1}s"));
+            if (!timeKey.equals(""))
+            {
+                timeInterval = new BigDecimal(p_configuration.getProperty(timeKey)).multiply(ExecutionManager.unitMultiplier(timeKey, "s")).doubleValue();
+            }
+            
+            if (configKeys.contains("time_bins_per_decade"))
+            {
+                binsPerDecade = Double.parseDouble(p_configuration.getProperty("time_bins_per_decade"));
+            }
+            
+            String DOSKey = ExecutionManager.findKey(configKeys, Pattern.compile("DOS_interval_.{0,1}eV"));
+            if (!DOSKey.equals(""))
+            {
+                DOSInterval = new BigDecimal(p_configuration.getProperty(DOSKey)).multiply(ExecutionManager.unitMultiplier(DOSKey, "eV")).multiply(PhysicsVariables.EV).doubleValue();
+            }
+            
+            String sampleXSizeKey = ExecutionManager.findKey(configKeys, Pattern.compile("sample_size_x_.{0,1}m"));
+            if (!sampleXSizeKey.equals(""))
+            {
+                sampleXSize = new BigDecimal(p_configuration.getProperty(sampleXSizeKey)).multiply(ExecutionManager.unitMultiplier(sampleXSizeKey, "m")).doubleValue();
+            }
+            
+            String sampleYSizeKey = ExecutionManager.findKey(configKeys, Pattern.compile("sample_size_y_.{0,1}m"));
+            if (!sampleYSizeKey.equals(""))
+            {
+                sampleYSize = new BigDecimal(p_configuration.getProperty(sampleYSizeKey)).multiply(ExecutionManager.unitMultiplier(sampleYSizeKey, "m")).doubleValue();
+            }
+        }
+        catch (NumberFormatException ex)
+        {
+            Logger.getLogger(ResultRebinner.class.getName()).log(Level.SEVERE, "intervals and sample size have to be numbers", ex);
+        }
+        m_spectraInterval = spectraInterval;
+        m_timeInterval = timeInterval;
+        m_timeBinsPerDecade = binsPerDecade;
+        m_DOSInterval = DOSInterval;
+        m_sampleArea = sampleXSize * sampleYSize;
+    }
+    
+    @Override
+    public void run()
+    {
+        Instant startTime = Instant.now();
+        
+        try
+        {
+            System.out.println("Loading the events.");
+            m_gui.sendMessage("Loading the events.");
+            EventLogReader events = new EventLogReader(m_eventsFile);
+            double[] times = events.getTimes();
+            double[] energies = events.getEnergies();
+            double[] states = m_statesFile != null ? StatesFile.read(m_statesFile) : new double[0];
+            
+            System.out.println("Sorting " + events.size() + " recombinations.");
+            m_gui.sendMessage("Sorting " + events.size() + " recombinations.");
+            
+            //the arrays are ours, so the conversions are done in place
+            ForkJoinTask<Histogram> timesTask = ForkJoinTask.adapt(() ->
+            {
+                Histogram timeHistogram;
+                
+                if (m_logarithmicTimes)
+                {
+                    //a time of zero, for an electron recombining in its first step, has no logarithm: the times that are not positive are left out of the log-binned decay
+                    double[] logTimes = Arrays.stream(times).parallel().filter(time -> time > 0).map(Math::log10).toArray();
+                    if (logTimes.length < times.length)
+                    {
+                        System.out.println((times.length - logTimes.length) + " recombinations without a positive time left out of the logarithmic time bins.");
+                        m_gui.sendMessage((times.length - logTimes.length) + " recombinations without a positive time left out of the logarithmic time bins.");
+                    }
+                    timeHistogram = Histogram.parallelFill(logTimes, logTimes.length, 1 / m_timeBinsPerDecade);
+                }
+                else
+                {
+                    double timeInterval = m_timeInterval;
+                    if (timeInterval <= 0)
+                    {
+                        double maxTime = Arrays.stream(times).parallel().max().orElse(0);
+                        timeInterval = maxTime > 0 ? maxTime / 5000 : 1;
+                    }
+                    timeHistogram = Histogram.parallelFill(times, times.length, timeInterval);
+                    //as in SimulationSorter, the decay starts at t = 0
+                    timeHistogram.add(0, 0);
+                }
+                
+                return timeHistogram;
+            });
+            
+            ForkJoinTask<Histogram> energiesTask = ForkJoinTask.adapt(() ->
+            {
+                if (m_wavelengthAbscissa)
+                {
+                    double planckTimesLightSpeed = PhysicsVariables.h.multiply(PhysicsVariables.c).doubleValue();
+                    IntStream.range(0, energies.length).parallel().forEach(i -> energies[i] = planckTimesLightSpeed / energies[i]);
+                }
+                
+                return Histogram.parallelFill(energies, energies.length, m_spectraInterval);
+            });
+            
+            ForkJoinTask<Histogram> DOSTask = ForkJoinTask.adapt(() -> Histogram.parallelFill(states, states.length, m_DOSInterval));
+            
+            ForkJoinTask.invokeAll(timesTask, energiesTask, DOSTask);
+            SimulationSorter sorter = new SimulationSorter(m_wavelengthAbscissa, m_logarithmicTimes, timesTask.join(), energiesTask.join(), DOSTask.join(), m_sampleArea);
+            
+            System.out.println("Saving the results in " + m_resultDirectory);
+            m_gui.sendMessage("Saving the results in " + m_resultDirectory);
+            new File(m_resultDirectory).mkdirs();
+            sorter.saveToFile(new File(m_resultDirectory + "TimeResolved.dat"), new File(m_resultDirectory + "Spectra.dat"), new File(m_resultDirectory + "DOS.dat"));
+        }
+        catch (DataFormatException|IOException ex)
+        {
+            Logger.getLogger(ResultRebinner.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        
+        Instant endTime = Instant.now();
+        System.out.println("Calculation time: " + Duration.between(startTime, endTime).toMillis() + " ms");
+        m_gui.sendMessage("Calculation time: " + Duration.between(startTime, endTime).toMillis() + " ms");
+        
+        if (m_autoexit)
+        {
+            m_gui.stopExecution();
+        }
+    }
+}
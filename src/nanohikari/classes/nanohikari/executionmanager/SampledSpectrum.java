@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.executionmanager;
+
+/**
+ * Spectrum sampled on a uniform grid, linear between the samples, with its integral from the first sample to each sample.
+ * The value or the integral up to any position only needs the two samples around it, so they are computed in constant time.
+ * @author Alban Lafuente
+ */
+public class SampledSpectrum
+{
+    private final double m_start;
+    private final double m_step;
+    private final double[] m_values;
+    //m_primitive[i] is the integral between the first sample and the sample i
+    private final double[] m_primitive;
+    private final int m_maximumIndex;
+    
+    /**
+     * @param p_start the abscissa of the first sample
+     * @param p_step the distance between two samples
+     * @param p_values the values of the samples. The array is kept as is, so it should not be modified afterward.
+     */
+    public SampledSpectrum (double p_start, double p_step, double[] p_values)
+    {
+        if (p_values.length == 0)
+        {
+            throw new IllegalArgumentException("A spectrum needs at least one sample.");
+        }
+        
+        m_start = p_start;
+        m_step = p_step;
+        m_values = p_values;
+        
+        m_primitive = new double[p_values.length];
+        int maximumIndex = 0;
+        for (int i = 1 ; i < p_values.length ; i += 1)
+        {
+            m_primitive[i] = m_primitive[i - 1] + p_step * (p_values[i - 1] + p_values[i]) / 2;
+            
+            if (p_values[i] > p_values[maximumIndex])
+            {
+                maximumIndex = i;
+            }
+        }
+        m_maximumIndex = maximumIndex;
+    }
+    
+    /**
+     * Normalized spectrum of a histogram, with a sample at the start of each bin
+     * @param p_histogram
+     * @return 
+     */
+    public static SampledSpectrum fromHistogram (Histogram p_histogram)
+    {
+        double maxCount = p_histogram.getMaxCount();
+        double[] values = new double[Math.max(1, p_histogram.getNumberOfBins())];
+        
+        for (int i = 0 ; i < p_histogram.getNumberOfBins() ; i += 1)
+        {
+            values[i] = p_histogram.getCount(i) / maxCount;
+        }
+        
+        return new SampledSpectrum(p_histogram.getNumberOfBins() > 0 ? p_histogram.getBinStart(0) : 0, p_histogram.getBinWidth(), values);
+    }
+    
+    /**
+     * Sample a spectrum known at any positions on a uniform grid with the same ends, the same number of points and thus the mean interval of the original.
+     * When the original positions are already evenly spaced, the samples are the original points.
+     * @param p_abscissa the positions, sorted
+     * @param p_values the values at each position
+     * @return 
+     */
+    public static SampledSpectrum resample (double[] p_abscissa, double[] p_values)
+    {
+        int numberOfSamples = p_abscissa.length;
+        double start = p_abscissa[0];
+        double step = numberOfSamples > 1 ? (p_abscissa[numberOfSamples - 1] - start) / (numberOfSamples - 1) : 0;
+        double[] values = new double[numberOfSamples];
+        
+        //the samples and the original positions both go forward, so the original interval is found by moving along
+        int interval = 0;
+        for (int i = 0 ; i < numberOfSamples ; i += 1)
+        {
+            double position = start + i * step;
+            while (interval < numberOfSamples - 2 && p_abscissa[interval + 1] <= position)
+            {
+                interval += 1;
+            }
+            
+            if (numberOfSamples == 1 || i == numberOfSamples - 1)
+            {
+                values[i] = p_values[i];
+            }
+            else
+            {
+                double weight = (position - p_abscissa[interval]) / (p_abscissa[interval + 1] - p_abscissa[interval]);
+                values[i] = p_values[interval] + weight * (p_values[interval + 1] - p_values[interval]);
+            }
+        }
+        
+        return new SampledSpectrum(start, step, values);
+    }
+    
+    public double start ()
+    {
+        return m_start;
+    }
+    
+    public double end ()
+    {
+        return m_start + (m_values.length - 1) * m_step;
+    }
+    
+    public double getStep ()
+    {
+        return m_step;
+    }
+    
+    /**
+     * Width of the slices used to compare spectra, (end - start) / (number of samples), computed as ContinuousFunction.getMeanIntervalSize did
+     * @return 
+     */
+    public double getMeanIntervalSize ()
+    {
+        return (end() - m_start) / m_values.length;
+    }
+    
+    public int getNumberOfSamples ()
+    {
+        return m_values.length;
+    }
+    
+    public double getPosition (int p_index)
+    {
+        return m_start + p_index * m_step;
+    }
+    
+    public double getValue (int p_index)
+    {
+        return m_values[p_index];
+    }
+    
+    /**
+     * @return the position of the highest sample (the first one if several are equal)
+     */
+    public double getMaximumPosition ()
+    {
+        return getPosition(m_maximumIndex);
+    }
+    
+    public boolean isInRange (double p_position)
+    {
+        return p_position >= m_start && p_position <= end();
+    }
+    
+    /**
+     * @return the integral over the whole spectrum
+     */
+    public double integrate ()
+    {
+        return m_primitive[m_primitive.length - 1];
+    }
+    
+    /**
+     * Integral between two positions, the parts outside of the spectrum counting as 0
+     * @param p_start
+     * @param p_end
+     * @return 
+     */
+    public double integrate (double p_start, double p_end)
+    {
+        return primitive(p_end) - primitive(p_start);
+    }
+    
+    //integral between the first sample and p_position
+    private double primitive (double p_position)
+    {
+        if (p_position <= m_start || m_values.length == 1)
+        {
+            return 0;
+        }
+        if (p_position >= end())
+        {
+            return integrate();
+        }
+        
+        int index = Math.min(m_values.length - 2, (int) ((p_position - m_start) / m_step));
+        double distance = p_position - getPosition(index);
+        double value = m_values[index] + (m_values[index + 1] - m_values[index]) * distance / m_step;
+        
+        return m_primitive[index] + distance * (m_values[index] + value) / 2;
+    }
+}
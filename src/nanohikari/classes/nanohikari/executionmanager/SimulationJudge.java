@@ -16,12 +16,9 @@
  */
 package nanohikari.executionmanager;
 
-import albanlafuente.physicstools.math.ContinuousFunction;
 import albanlafuente.physicstools.physics.PhysicsVariables;
 import java.math.BigDecimal;
-import java.math.MathContext;
 import java.util.HashMap;
-import java.util.Set;
 
 /**
  *
@@ -31,79 +28,73 @@ public class SimulationJudge
 {
     private final MatchObject<BigDecimal> m_maxMatching;
     private final MatchObject<HashMap<BigDecimal, BigDecimal>> m_shapeMatchingHighEnergy;
+    private final double m_mismatch;
     
-    public SimulationJudge (ContinuousFunction p_experimentalLuminescence, ContinuousFunction p_simulatedLuminescence)
+    /**
+     * Compare the position of the maximum and the shape of the two spectra.
+     * The shape is compared slice by slice, each slice of the experimental spectrum being compared to the slice at the same distance from the maximum in the simulated spectrum, so the comparison is linear with the number of experimental points.
+     * @param p_experimentalLuminescence
+     * @param p_simulatedLuminescence 
+     */
+    public SimulationJudge (SampledSpectrum p_experimentalLuminescence, SampledSpectrum p_simulatedLuminescence)
     {
-        BigDecimal experimentalMaxPosition = p_experimentalLuminescence.maximum().get("abscissa");
-        BigDecimal simulatedMaxPosition = p_simulatedLuminescence.maximum().get("abscissa");
+        double experimentalMaxPosition = p_experimentalLuminescence.getMaximumPosition();
+        double simulatedMaxPosition = p_simulatedLuminescence.getMaximumPosition();
         
         //comparing the position of maximum
         //supposing an acceptable error on the abscissa of +/-1 meV
-        BigDecimal maxErrorMaximum = (new BigDecimal("0.001")).multiply(PhysicsVariables.EV);
-        BigDecimal differenceMaxEnergy = experimentalMaxPosition.subtract(simulatedMaxPosition);
-        if(differenceMaxEnergy.abs().compareTo(maxErrorMaximum) <= 0)
+        double maxErrorMaximum = (new BigDecimal("0.001")).multiply(PhysicsVariables.EV).doubleValue();
+        double differenceMaxEnergy = experimentalMaxPosition - simulatedMaxPosition;
+        if(Math.abs(differenceMaxEnergy) <= maxErrorMaximum)
         {
             m_maxMatching = new MatchObject<>(true, BigDecimal.ZERO);
         }
         else
         {
-            m_maxMatching = new MatchObject<>(false, experimentalMaxPosition.divide(simulatedMaxPosition, MathContext.DECIMAL128));
+            m_maxMatching = new MatchObject<>(false, new BigDecimal(experimentalMaxPosition / simulatedMaxPosition));
         }
         
         //putting an acceptable error on the shape of 5%
-        BigDecimal maxErrorShape = new BigDecimal("0.05");
-        BigDecimal experimentalLuminescenceIntegral = p_experimentalLuminescence.integrate();
-        BigDecimal calculatedLuminescenceIntegral = p_simulatedLuminescence.integrate();
-        BigDecimal intervalSize = p_experimentalLuminescence.getMeanIntervalSize();
-        Set<BigDecimal> experimentalLuminescenceAbscissa = p_experimentalLuminescence.getAbscissa();
+        double maxErrorShape = 0.05;
+        double experimentalLuminescenceIntegral = p_experimentalLuminescence.integrate();
+        double calculatedLuminescenceIntegral = p_simulatedLuminescence.integrate();
+        double intervalSize = p_experimentalLuminescence.getMeanIntervalSize();
         
         boolean shapeMatch = true;
+        double maximumShapeDifference = 0;
         HashMap<BigDecimal, BigDecimal> shapeDifferences = new HashMap<>();
         
-        for (BigDecimal position: experimentalLuminescenceAbscissa)
+        //the last point is the end of the last slice
+        for (int i = 0 ; i < p_experimentalLuminescence.getNumberOfSamples() - 1 ; i += 1)
         {
-            if (position != p_experimentalLuminescence.end())
+            double position = p_experimentalLuminescence.getPosition(i);
+            double distanceFromMaximum = position - experimentalMaxPosition;
+            
+            double startPositionCalculation = simulatedMaxPosition + distanceFromMaximum;
+            double endPositionCalculation = startPositionCalculation + intervalSize;
+            double calculatedSliceIntegral;
+            if (p_simulatedLuminescence.isInRange(startPositionCalculation) || p_simulatedLuminescence.isInRange(endPositionCalculation))
             {
-                BigDecimal distanceFromMaximum = position.subtract(experimentalMaxPosition);
+                //the part of the slice out of the simulated spectrum counts as 0
+                calculatedSliceIntegral = p_simulatedLuminescence.integrate(startPositionCalculation, endPositionCalculation);
+            }
+            else
+            {
+                calculatedSliceIntegral = 0;
+            }
             
-                BigDecimal startPositionCalculation = simulatedMaxPosition.add(distanceFromMaximum);
-                BigDecimal endPositionCalculation = startPositionCalculation.add(intervalSize);
-                BigDecimal calculatedSliceIntegral;
-                if (p_simulatedLuminescence.isInRange(startPositionCalculation))
-                {
-                    if (p_simulatedLuminescence.isInRange(endPositionCalculation))
-                    {
-                        calculatedSliceIntegral = p_simulatedLuminescence.integrate(startPositionCalculation, endPositionCalculation);
-                    }
-                    else
-                    {
-                        calculatedSliceIntegral = p_simulatedLuminescence.integrate(startPositionCalculation, p_simulatedLuminescence.end());
-                    }
-                }
-                else
-                {
-                    if (p_simulatedLuminescence.isInRange(endPositionCalculation))
-                    {
-                        calculatedSliceIntegral = p_simulatedLuminescence.integrate(p_simulatedLuminescence.start(), endPositionCalculation);
-                    }
-                    else
-                    {
-                       calculatedSliceIntegral = BigDecimal.ZERO;
-                    }
-                }
-
-                BigDecimal experimentalIntegralRatio = p_experimentalLuminescence.integrate(position, position.add(intervalSize)).divide(experimentalLuminescenceIntegral, MathContext.DECIMAL128);
-                BigDecimal calculatedIntegralRatio = calculatedSliceIntegral.divide(calculatedLuminescenceIntegral, MathContext.DECIMAL128);
-                BigDecimal integralRatioDifference = experimentalIntegralRatio.subtract(calculatedIntegralRatio);
-
-                if (integralRatioDifference.abs().compareTo(BigDecimal.ONE) >= 0)
-                {
-                    throw new ArithmeticException("Probability difference bigger than 1");
-                }
-
-                shapeMatch &= integralRatioDifference.abs().compareTo(maxErrorShape) <= 0;
-                shapeDifferences.put(distanceFromMaximum, integralRatioDifference);
+            double experimentalIntegralRatio = p_experimentalLuminescence.integrate(position, position + intervalSize) / experimentalLuminescenceIntegral;
+            double calculatedIntegralRatio = calculatedSliceIntegral / calculatedLuminescenceIntegral;
+            double integralRatioDifference = experimentalIntegralRatio - calculatedIntegralRatio;
+            
+            if (Math.abs(integralRatioDifference) >= 1)
+            {
+                throw new ArithmeticException("Probability difference bigger than 1");
             }
+            
+            shapeMatch &= Math.abs(integralRatioDifference) <= maxErrorShape;
+            maximumShapeDifference = Math.max(maximumShapeDifference, Math.abs(integralRatioDifference));
+            shapeDifferences.put(new BigDecimal(distanceFromMaximum), new BigDecimal(integralRatioDifference));
         }
         
         //the error should compensate each other. If they don't, an error occured. We give ourselves a leeway of 1e-20.
@@ -118,6 +109,16 @@ public class SimulationJudge
 //        }
         
         m_shapeMatchingHighEnergy = new MatchObject<>(shapeMatch, shapeDifferences);
+        m_mismatch = Math.max(Math.abs(differenceMaxEnergy) / maxErrorMaximum, maximumShapeDifference / maxErrorShape);
+    }
+    
+    /**
+     * Give a single number to compare several simulations to the same experiment
+     * @return the biggest of the errors on the maximum position and on the shape, each divided by its acceptable error. The spectra match if it is at most 1.
+     */
+    public double mismatch()
+    {
+        return m_mismatch;
     }
     
     public boolean maximumMatch()
@@ -16,19 +16,12 @@
  */
 package nanohikari.executionmanager;
 
-import albanlafuente.physicstools.math.ContinuousFunction;
 import albanlafuente.physicstools.physics.PhysicsVariables;
-import java.io.BufferedWriter;
+import nanohikari.luminescencegenerator.QuantumDot;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.math.BigDecimal;
-import java.math.MathContext;
-import java.math.RoundingMode;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  *
@@ -36,172 +29,217 @@ import java.util.TreeSet;
  */
 public class SimulationSorter
 {
+    //width of the bins of the density of states: 2 meV
+    static final double DOS_INTERVAL = (new BigDecimal("0.002")).multiply(PhysicsVariables.EV).doubleValue();
+    
     private final boolean m_wavelengthAbscissa;
-    private final ContinuousFunction m_spectra;
-    private final HashMap<BigDecimal, BigDecimal> m_densityOfStates = new HashMap<>();
-    private final HashMap<BigDecimal, BigDecimal> m_times = new HashMap<>();
-    private final HashMap<BigDecimal, BigDecimal> m_energies = new HashMap<>();
+    private final boolean m_logarithmicTimes;
+    private final double m_sampleVolume;
+    private final SampledSpectrum m_spectra;
+    private final Histogram m_densityOfStates;
+    private final Histogram m_times;
+    private final Histogram m_energies;
     
-    public SimulationSorter (boolean p_wavelengthAbscissa, BigDecimal p_energyIntervalSize, List<BigDecimal> p_timesList, List<BigDecimal> p_energyList, List<BigDecimal> p_statesLevels, BigDecimal p_sampleVolume)
+    /**
+     * Sort the recombinations in histograms. The time and energy histograms are computed in parallel, each in a single pass over the values.
+     * @param p_wavelengthAbscissa true if p_energies contains wavelengths, false if it contains energies
+     * @param p_energyIntervalSize the width of the bins of the spectra, in the same unit as p_energies
+     * @param p_times the recombination times, in seconds
+     * @param p_energies the recombination energies (in J) or wavelength (in m)
+     * @param p_numberOfRecombinations the number of values to take into p_times and p_energies
+     * @param p_densityOfStates the histogram of the energy of the QDs states, in J. It is kept as is, so it should not be modified afterward.
+     * @param p_sampleVolume the sample area, in m^2
+     */
+    public SimulationSorter (boolean p_wavelengthAbscissa, double p_energyIntervalSize, double[] p_times, double[] p_energies, int p_numberOfRecombinations, Histogram p_densityOfStates, double p_sampleVolume)
     {
         m_wavelengthAbscissa = p_wavelengthAbscissa;
+        m_logarithmicTimes = false;
+        m_sampleVolume = p_sampleVolume;
+        m_densityOfStates = p_densityOfStates;
         
+        //the two histograms are independent, so they are filled at the same time, each of them splitting its array between the threads of the common pool
         //INTERVAL CHOICE TO BE REWORKED, DOESN'T WORK WELL AT THE MOMENT
-
-        //cutting the timespan of the experiment into a given number of intervals (here 5000) and puting the number of recombined electrons during each intervals
-        p_timesList.sort(null);
-        BigDecimal maxTime = p_timesList.get(p_timesList.size() - 1);
-        BigDecimal timeInterval = maxTime.divide(new BigDecimal("5000"), MathContext.DECIMAL128);
-        for (BigDecimal currentTime = BigDecimal.ZERO ; currentTime.compareTo(maxTime) == -1 ; currentTime = currentTime.add(timeInterval))
+        ForkJoinTask<Histogram> timesTask = ForkJoinTask.adapt(() ->
         {
-            BigDecimal currentMax = currentTime.add(timeInterval);
-            int nRecomb = 0;
-            
-            while (p_timesList.size() > 0 && p_timesList.get(0).compareTo(currentMax) <= 0)
+            //cutting the timespan of the experiment into a given number of intervals (here 5000) and puting the number of recombined electrons during each intervals
+            double maxTime = 0;
+            for (int i = 0 ; i < p_numberOfRecombinations ; i += 1)
             {
-                nRecomb += 1;
-                p_timesList.remove(0);
+                maxTime = Math.max(maxTime, p_times[i]);
             }
             
-            m_times.put(currentTime, new BigDecimal(nRecomb));
-        }
+            Histogram times = Histogram.parallelFill(p_times, p_numberOfRecombinations, maxTime > 0 ? maxTime / 5000 : 1);
+            //the histogram only stores the filled bins, so the empty bins before the first recombination are added for the decay to start at t = 0
+            times.add(0, 0);
+            
+            return times;
+        });
         
         //the interval for the energy is given in the constructor
-        p_energyList.sort(null);
-        BigDecimal minEnergy = p_energyList.get(0);
-        BigDecimal maxEnergy = p_energyList.get(p_energyList.size() - 1);
-        BigDecimal maxCounts = BigDecimal.ZERO;
+        ForkJoinTask<Histogram> energiesTask = ForkJoinTask.adapt(() -> Histogram.parallelFill(p_energies, p_numberOfRecombinations, p_energyIntervalSize));
+        
+        ForkJoinTask.invokeAll(timesTask, energiesTask);
+        m_times = timesTask.join();
+        m_energies = energiesTask.join();
+        
+        m_spectra = SampledSpectrum.fromHistogram(m_energies);
+    }
+    
+    /**
+     * Gather histograms already computed, for instance from saved events
+     * @param p_wavelengthAbscissa true if p_energies contains wavelengths, false if it contains energies
+     * @param p_logarithmicTimes true if p_times bins the decimal logarithm of the times, false if it bins the times
+     * @param p_times the histogram of the recombination times (s), or of their logarithm
+     * @param p_energies the histogram of the recombination energies (J) or wavelength (m)
+     * @param p_densityOfStates the histogram of the energy of the QDs states, in J
+     * @param p_sampleVolume the sample area, in m^2
+     */
+    public SimulationSorter (boolean p_wavelengthAbscissa, boolean p_logarithmicTimes, Histogram p_times, Histogram p_energies, Histogram p_densityOfStates, double p_sampleVolume)
+    {
+        m_wavelengthAbscissa = p_wavelengthAbscissa;
+        m_logarithmicTimes = p_logarithmicTimes;
+        m_sampleVolume = p_sampleVolume;
+        m_times = p_times;
+        m_energies = p_energies;
+        m_densityOfStates = p_densityOfStates;
+        m_spectra = SampledSpectrum.fromHistogram(m_energies);
+    }
+    
+    static public SimulationSorter sorterWithNoIntervalGiven(boolean p_wavelengthAbscissa, double[] p_times, double[] p_energies, int p_numberOfRecombinations, Histogram p_densityOfStates, double p_sampleVolume)
+    {
+        //guessing a good energy interval size: separating the energy span into 
+        double energyInterval;
         
-        for (BigDecimal currentEnergy = minEnergy ; currentEnergy.compareTo(maxEnergy) == -1 ; currentEnergy = currentEnergy.add(p_energyIntervalSize))
+        if (p_wavelengthAbscissa)
         {
-            BigDecimal currentMax = currentEnergy.add(p_energyIntervalSize);
-            int nEnergy = 0;
-            
-            while (p_energyList.size() > 0 && p_energyList.get(0).compareTo(currentMax) <= 0)
+            double minEnergy = Double.POSITIVE_INFINITY;
+            double maxEnergy = Double.NEGATIVE_INFINITY;
+            for (int i = 0 ; i < p_numberOfRecombinations ; i += 1)
             {
-                nEnergy += 1;
-                p_energyList.remove(0);
+                minEnergy = Math.min(minEnergy, p_energies[i]);
+                maxEnergy = Math.max(maxEnergy, p_energies[i]);
             }
+            energyInterval = (maxEnergy - minEnergy) / 150;
             
-            BigDecimal nEnergyBig = new BigDecimal(nEnergy);
-            m_energies.put(currentEnergy, new BigDecimal(nEnergy));
-            
-            if (nEnergyBig.compareTo(maxCounts) > 0)
+            //if all the recombinations have the same wavelength, the span is zero and the bins are taken a nanometer wide
+            if (!(energyInterval > 0))
             {
-                maxCounts = nEnergyBig;
+                energyInterval = PhysicsVariables.UnitsPrefix.NANO.getMultiplier().doubleValue();
             }
         }
-        
-        //normalisation
-        for (BigDecimal wavelength: m_energies.keySet())
+        else
         {
-            m_energies.put(wavelength, m_energies.get(wavelength).divide(maxCounts, MathContext.DECIMAL128));
+            energyInterval = (new BigDecimal("0.002")).multiply(PhysicsVariables.EV).doubleValue();
         }
         
-        m_spectra = new ContinuousFunction(m_energies);
-        
-        //density of state calculation
-        p_statesLevels.sort(null);
-        BigDecimal minState = p_statesLevels.get(0);
-        BigDecimal maxState = p_statesLevels.get(p_statesLevels.size() - 1);
-        BigDecimal DOSInterval = (new BigDecimal("0.002")).multiply(PhysicsVariables.EV);
-        
-        for (BigDecimal lowestBound = minState ; lowestBound.compareTo(maxState) == -1 ; lowestBound = lowestBound.add(DOSInterval))
-        {
-            BigDecimal currentMax = lowestBound.add(DOSInterval);
-            int nLevels = 0;
-            
-            while (p_statesLevels.size() > 0 && p_statesLevels.get(0).compareTo(currentMax) <= 0)
-            {
-                nLevels += 1;
-                p_statesLevels.remove(0);
-            }
-            
-            m_densityOfStates.put(lowestBound, (new BigDecimal(nLevels)).divide(p_sampleVolume));
-        }
+        return new SimulationSorter(p_wavelengthAbscissa, energyInterval, p_times, p_energies, p_numberOfRecombinations, p_densityOfStates, p_sampleVolume);
     }
     
-    static public SimulationSorter sorterWithNoIntervalGiven(boolean p_wavelengthAbscissa, List<BigDecimal> p_timesList, List<BigDecimal> p_energiesList, List<BigDecimal> p_energyLevels, BigDecimal p_sampleVolume)
+    /**
+     * Add the states of a QD to a density of states, or remove them with p_weight = -1
+     * @param p_densityOfStates a histogram with bins of DOS_INTERVAL
+     * @param p_QD
+     * @param p_weight
+     */
+    static void addStates(Histogram p_densityOfStates, QuantumDot p_QD, double p_weight)
     {
-        //guessing a good energy interval size: separating the energy span into 
-        BigDecimal energyInterval;
+        double[] states = new double[p_QD.getNumberOfStates()];
+        p_QD.copyStatesTo(states, 0);
         
-        if (p_wavelengthAbscissa)
-        {
-            p_energiesList.sort(null);
-            BigDecimal minEnergy = p_energiesList.get(0);
-            BigDecimal maxEnergy = p_energiesList.get(p_energiesList.size() - 1);
-            energyInterval = (maxEnergy.subtract(minEnergy)).divide(new BigDecimal("150"), MathContext.DECIMAL128);
-        }
-        else
+        for (double state: states)
         {
-            energyInterval = (new BigDecimal("0.002")).multiply(PhysicsVariables.EV);
+            p_densityOfStates.add(state, p_weight);
         }
-        
-        return new SimulationSorter(p_wavelengthAbscissa, energyInterval, p_timesList, p_energiesList, p_energyLevels, p_sampleVolume);
     }
     
     public void saveToFile(File timeFile, File energyFile, File DOSFile) throws IOException
     {
+        //only the abscissa are rounded, to 4 significant digits as before
+        int abscissaDigits = 4;
+        int valueDigits = 8;
+        
         //writing times
-        Set<BigDecimal> timeSet = new TreeSet(m_times.keySet());
-        BufferedWriter timeWriter = new BufferedWriter(new FileWriter(timeFile));
-        timeWriter.write("Time (ps)\tIntensity (cps)");
-        for (BigDecimal time: timeSet)
+        double pico = PhysicsVariables.UnitsPrefix.PICO.getMultiplier().doubleValue();
+        try (TextFileWriter timeWriter = new TextFileWriter(timeFile))
         {
-            timeWriter.newLine();
-            timeWriter.write(time.divide(PhysicsVariables.UnitsPrefix.PICO.getMultiplier(), MathContext.DECIMAL128).toPlainString() + "\t" + m_times.get(time));
+            if (m_logarithmicTimes)
+            {
+                //the bins get wider with time, so the counts are divided by the bin duration
+                timeWriter.write("Time (ps)\tIntensity (counts/ps)");
+                for (int i = 0 ; i < m_times.getNumberOfBins() ; i += 1)
+                {
+                    double binStart = Math.pow(10, m_times.getBinStart(i));
+                    double binEnd = Math.pow(10, m_times.getBinStart(i) + m_times.getBinWidth());
+
+                    timeWriter.newLine().writeSignificant(binStart / pico, abscissaDigits).tab().writeSignificant(m_times.getCount(i) / ((binEnd - binStart) / pico), valueDigits);
+                }
+            }
+            else
+            {
+                timeWriter.write("Time (ps)\tIntensity (cps)");
+                for (int i = 0 ; i < m_times.getNumberOfBins() ; i += 1)
+                {
+                    timeWriter.newLine().writeDecimal(m_times.getBinStart(i) / pico, 6).tab().write((long) m_times.getCount(i));
+                }
+            }
         }
-        timeWriter.flush();
-        timeWriter.close();
         
         //writing wavelength calculated from energies
-        Set<BigDecimal> energySet = new TreeSet(m_energies.keySet());
-        BufferedWriter spectraWriter = new BufferedWriter(new FileWriter(energyFile));
-        if (m_wavelengthAbscissa)
-        {
-            spectraWriter.write("Wavelength (nm)\tIntensity");
-        }
-        else
+        double maxCounts = m_energies.getMaxCount();
+        double abscissaUnit = m_wavelengthAbscissa ? PhysicsVariables.UnitsPrefix.NANO.getMultiplier().doubleValue() : PhysicsVariables.EV.doubleValue();
+        try (TextFileWriter spectraWriter = new TextFileWriter(energyFile))
         {
-            spectraWriter.write("Energy (eV)\tIntensity");
-        }
-        for (BigDecimal energy: energySet)
-        {
-            BigDecimal energyConverted;
             if (m_wavelengthAbscissa)
             {
-                energyConverted = energy.divide(PhysicsVariables.UnitsPrefix.NANO.getMultiplier(), MathContext.DECIMAL128);
+                spectraWriter.write("Wavelength (nm)\tIntensity");
             }
             else
             {
-                energyConverted = energy.divide(PhysicsVariables.EV, MathContext.DECIMAL128);
+                spectraWriter.write("Energy (eV)\tIntensity");
+            }
+            for (int i = 0 ; i < m_energies.getNumberOfBins() ; i += 1)
+            {
+                spectraWriter.newLine().writeSignificant(m_energies.getBinStart(i) / abscissaUnit, abscissaDigits).tab().writeSignificant(m_energies.getCount(i) / maxCounts, valueDigits);
             }
-            energyConverted = energyConverted.setScale(energyConverted.scale() - energyConverted.precision() + 4, RoundingMode.HALF_UP);
-            
-            spectraWriter.newLine();
-            spectraWriter.write(energyConverted.toPlainString() + "\t" + m_energies.get(energy));
         }
-        spectraWriter.flush();
-        spectraWriter.close();
         
         //writing DOS
-        Set<BigDecimal> statesSet = new TreeSet<>(m_densityOfStates.keySet());
-        BufferedWriter DOSwriter = new BufferedWriter(new FileWriter(DOSFile));
-        DOSwriter.write("Energy (eV)\tDOS (m^-2)");
-        for (BigDecimal state: statesSet)
+        double electronVolt = PhysicsVariables.EV.doubleValue();
+        try (TextFileWriter DOSwriter = new TextFileWriter(DOSFile))
         {
-            BigDecimal stateToWrite = state.divide(PhysicsVariables.EV, MathContext.DECIMAL128).setScale(state.scale() - state.precision() + 4, RoundingMode.HALF_UP);
-            
-            DOSwriter.newLine();
-            DOSwriter.write(stateToWrite.toPlainString() + "\t" + m_densityOfStates.get(state));
+            DOSwriter.write("Energy (eV)\tDOS (m^-2)");
+            for (int i = 0 ; i < m_densityOfStates.getNumberOfBins() ; i += 1)
+            {
+                DOSwriter.newLine().writeSignificant(m_densityOfStates.getBinStart(i) / electronVolt, abscissaDigits).tab().writeSignificant(m_densityOfStates.getCount(i) / m_sampleVolume, valueDigits);
+            }
         }
-        DOSwriter.flush();
-        DOSwriter.close();
     }
     
-    public ContinuousFunction getLuminescence()
+    public Histogram getDensityOfStates()
+    {
+        return new Histogram(m_densityOfStates);
+    }
+    
+    public Histogram getEnergies()
+    {
+        return new Histogram(m_energies);
+    }
+    
+    public Histogram getTimes()
+    {
+        return new Histogram(m_times);
+    }
+    
+    public double getSampleVolume()
+    {
+        return m_sampleVolume;
+    }
+    
+    /**
+     * @return the spectra normalized to its maximum, with a sample at the start of each bin
+     */
+    public SampledSpectrum getLuminescence()
     {
-        return new ContinuousFunction(m_spectra);
+        return m_spectra;
     }
-}
\ No newline at end of file
+}
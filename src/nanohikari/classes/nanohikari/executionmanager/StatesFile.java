@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.executionmanager;
+
+import nanohikari.luminescencegenerator.QuantumDot;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ * Save and load the energy of every state of a QD distribution, so that the density of states can be binned again later.
+ * The file contains FORMAT_ID, FORMAT_VERSION, the number of states n and n energies (in J), in little endian.
+ * @author Alban Lafuente
+ */
+public class StatesFile
+{
+    static final int FORMAT_ID = 0x4E485354;
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_BYTES = 2 * Integer.BYTES + Long.BYTES;
+    
+    public static void write (File p_file, List<QuantumDot> p_QDList) throws IOException
+    {
+        long numberOfStates = 0;
+        for (QuantumDot QD: p_QDList)
+        {
+            numberOfStates += QD.getNumberOfStates();
+        }
+        
+        try (FileChannel channel = FileChannel.open(p_file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(FORMAT_ID).putInt(FORMAT_VERSION).putLong(numberOfStates);
+            
+            double[] states = new double[0];
+            for (QuantumDot QD: p_QDList)
+            {
+                int QDStates = QD.getNumberOfStates();
+                if (states.length < QDStates)
+                {
+                    states = new double[QDStates];
+                }
+                QD.copyStatesTo(states, 0);
+                
+                for (int i = 0 ; i < QDStates ; i += 1)
+                {
+                    if (buffer.remaining() < Double.BYTES)
+                    {
+                        writeBuffer(channel, buffer);
+                    }
+                    buffer.putDouble(states[i]);
+                }
+            }
+            writeBuffer(channel, buffer);
+        }
+    }
+    
+    /**
+     * @param p_file a file written by StatesFile.write
+     * @return the energy of the states, in J
+     * @throws DataFormatException
+     * @throws IOException 
+     */
+    public static double[] read (File p_file) throws DataFormatException, IOException
+    {
+        double[] states;
+        
+        try (FileChannel channel = FileChannel.open(p_file.toPath(), StandardOpenOption.READ))
+        {
+            if (channel.size() < HEADER_BYTES)
+            {
+                throw new DataFormatException(p_file + " is not a states file.");
+            }
+            
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            long numberOfStates = header.getLong(2 * Integer.BYTES);
+            if (header.getInt(0) != FORMAT_ID || header.getInt(Integer.BYTES) != FORMAT_VERSION)
+            {
+                throw new DataFormatException(p_file + " is not a states file.");
+            }
+            if (numberOfStates > Integer.MAX_VALUE || channel.size() < HEADER_BYTES + numberOfStates * Double.BYTES)
+            {
+                throw new DataFormatException(p_file + " is truncated or too big to be loaded at once.");
+            }
+            
+            states = new double[(int) numberOfStates];
+            //a mapping is limited to 2 GB, so the states are mapped by pieces
+            int maxPerMapping = Integer.MAX_VALUE / Double.BYTES;
+            for (int start = 0 ; start < states.length ; start += maxPerMapping)
+            {
+                int length = Math.min(maxPerMapping, states.length - start);
+                DoubleBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + (long) start * Double.BYTES, (long) length * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+                mapped.get(states, start, length);
+            }
+        }
+        
+        return states;
+    }
+    
+    private static void writeBuffer (FileChannel p_channel, ByteBuffer p_buffer) throws IOException
+    {
+        p_buffer.flip();
+        while (p_buffer.hasRemaining())
+        {
+            p_channel.write(p_buffer);
+        }
+        p_buffer.clear();
+    }
+}
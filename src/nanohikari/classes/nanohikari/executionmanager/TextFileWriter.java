@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.executionmanager;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Write text files from primitive values.
+ * The numbers are converted to text directly in a large buffer, without going through BigDecimal or String, and the buffer is written through a FileChannel when full.
+ * @author Alban Lafuente
+ */
+public class TextFileWriter implements Closeable
+{
+    //above this value, a scaled number does not fit in a long anymore, and the conversion falls back to Double.toString
+    private static final double MAX_SCALED_VALUE = 9e18;
+    private static final double[] POWERS_OF_TEN = new double[19];
+    static
+    {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1 ; i < POWERS_OF_TEN.length ; i += 1)
+        {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+    
+    private final FileChannel m_channel;
+    private final ByteBuffer m_buffer = ByteBuffer.allocateDirect(1 << 20);
+    private final byte[] m_digits = new byte[20];
+    private final byte[] m_lineSeparator = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    
+    public TextFileWriter (File p_file) throws IOException
+    {
+        m_channel = FileChannel.open(p_file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+    
+    public TextFileWriter write (String p_text) throws IOException
+    {
+        byte[] bytes = p_text.getBytes(StandardCharsets.UTF_8);
+        
+        for (int start = 0 ; start < bytes.length ; start += m_buffer.capacity())
+        {
+            int length = Math.min(m_buffer.capacity(), bytes.length - start);
+            ensureRemaining(length);
+            m_buffer.put(bytes, start, length);
+        }
+        
+        return this;
+    }
+    
+    public TextFileWriter write (long p_value) throws IOException
+    {
+        ensureRemaining(m_digits.length + 1);
+        if (p_value < 0)
+        {
+            m_buffer.put((byte) '-');
+            if (p_value == Long.MIN_VALUE)
+            {
+                return write(Long.toString(p_value).substring(1));
+            }
+            p_value = -p_value;
+        }
+        putDigits(p_value, 1);
+        
+        return this;
+    }
+    
+    /**
+     * Write a number in plain notation, rounded to p_maxDecimals digits after the point, without the trailing zeros
+     * @param p_value
+     * @param p_maxDecimals between 0 and 18
+     * @return
+     * @throws IOException 
+     */
+    public TextFileWriter writeDecimal (double p_value, int p_maxDecimals) throws IOException
+    {
+        return writeFixed(p_value, p_maxDecimals, true);
+    }
+    
+    /**
+     * Write a number in plain notation, rounded to p_digits significant digits. As with BigDecimal.toPlainString, the trailing zeros are kept.
+     * @param p_value
+     * @param p_digits between 1 and 18
+     * @return
+     * @throws IOException 
+     */
+    public TextFileWriter writeSignificant (double p_value, int p_digits) throws IOException
+    {
+        if (p_value == 0)
+        {
+            return write(0);
+        }
+        if (!Double.isFinite(p_value))
+        {
+            return write(Double.toString(p_value));
+        }
+        
+        int exponent = (int) Math.floor(Math.log10(Math.abs(p_value)));
+        int decimals = p_digits - 1 - exponent;
+        //the rounding can add a digit, 9.9996 giving 10.000 with 4 digits for instance
+        if (Math.round(Math.abs(p_value) * Math.pow(10, decimals)) >= POWERS_OF_TEN[p_digits])
+        {
+            decimals -= 1;
+        }
+        
+        if (decimals >= 0)
+        {
+            return writeFixed(p_value, decimals, false);
+        }
+        if (-decimals >= POWERS_OF_TEN.length)
+        {
+            return write(Double.toString(p_value));
+        }
+        
+        //the number is rounded to a power of ten above 1, the missing digits being zeros
+        long rounded = Math.round(Math.abs(p_value) / POWERS_OF_TEN[-decimals]);
+        ensureRemaining(m_digits.length + 1);
+        if (p_value < 0)
+        {
+            m_buffer.put((byte) '-');
+        }
+        putDigits(rounded, 1);
+        for (int i = 0 ; i < -decimals ; i += 1)
+        {
+            ensureRemaining(1);
+            m_buffer.put((byte) '0');
+        }
+        
+        return this;
+    }
+    
+    public TextFileWriter tab () throws IOException
+    {
+        ensureRemaining(1);
+        m_buffer.put((byte) '\t');
+        
+        return this;
+    }
+    
+    public TextFileWriter newLine () throws IOException
+    {
+        ensureRemaining(m_lineSeparator.length);
+        m_buffer.put(m_lineSeparator);
+        
+        return this;
+    }
+    
+    @Override
+    public void close () throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            m_channel.close();
+        }
+    }
+    
+    private TextFileWriter writeFixed (double p_value, int p_decimals, boolean p_stripZeros) throws IOException
+    {
+        if (!Double.isFinite(p_value) || p_decimals < 0 || p_decimals >= POWERS_OF_TEN.length || Math.abs(p_value) * POWERS_OF_TEN[p_decimals] >= MAX_SCALED_VALUE)
+        {
+            return write(Double.toString(p_value));
+        }
+        
+        long scaled = Math.round(Math.abs(p_value) * POWERS_OF_TEN[p_decimals]);
+        long unit = (long) POWERS_OF_TEN[p_decimals];
+        long integerPart = scaled / unit;
+        long decimalPart = scaled % unit;
+        int decimals = p_decimals;
+        if (p_stripZeros)
+        {
+            while (decimals > 0 && decimalPart % 10 == 0)
+            {
+                decimalPart /= 10;
+                decimals -= 1;
+            }
+        }
+        
+        ensureRemaining(2 * m_digits.length + 2);
+        if (p_value < 0 && scaled != 0)
+        {
+            m_buffer.put((byte) '-');
+        }
+        putDigits(integerPart, 1);
+        if (decimals > 0)
+        {
+            m_buffer.put((byte) '.');
+            putDigits(decimalPart, decimals);
+        }
+        
+        return this;
+    }
+    
+    /**
+     * Put the digits of a positive number in the buffer, padded with zeros on the left to p_minDigits
+     */
+    private void putDigits (long p_value, int p_minDigits)
+    {
+        int position = m_digits.length;
+        
+        do
+        {
+            position -= 1;
+            m_digits[position] = (byte) ('0' + p_value % 10);
+            p_value /= 10;
+        }while (p_value > 0);
+        
+        while (m_digits.length - position < p_minDigits)
+        {
+            position -= 1;
+            m_digits[position] = (byte) '0';
+        }
+        
+        m_buffer.put(m_digits, position, m_digits.length - position);
+    }
+    
+    private void ensureRemaining (int p_bytes) throws IOException
+    {
+        if (m_buffer.remaining() < p_bytes)
+        {
+            flush();
+        }
+    }
+    
+    private void flush () throws IOException
+    {
+        m_buffer.flip();
+        while (m_buffer.hasRemaining())
+        {
+            m_channel.write(m_buffer);
+        }
+        m_buffer.clear();
+    }
+}
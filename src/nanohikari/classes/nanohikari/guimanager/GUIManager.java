@@ -16,11 +16,9 @@
  */
 package nanohikari.guimanager;
 
-import albanlafuente.physicstools.physics.PhysicsVariables;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.math.BigDecimal;
 import javafx.application.Application;
 import javafx.scene.Group;
 import javafx.scene.Scene;
@@ -35,6 +33,7 @@ import javafx.scene.image.ImageView;
 import javafx.stage.Screen;
 import nanohikari.executionmanager.ExecutionManager;
 import nanohikari.executionmanager.GUIUpdater;
+import nanohikari.executionmanager.ResultRebinner;
 import net.opentsdb.tools.ArgP;
 
 /**
@@ -43,8 +42,6 @@ import net.opentsdb.tools.ArgP;
  */
 public class GUIManager extends Application implements GUIUpdater
 {
-    private BigDecimal m_sampleXSize;
-    private BigDecimal m_sampleYSize;
     private double m_frameRate = 500; //represent the time between two key frames, in ms
     private ProgressWindowController m_progressWindow;
     
@@ -107,9 +104,6 @@ public class GUIManager extends Application implements GUIUpdater
     {
         stage.setResizable(false);
         
-        m_sampleXSize = (new BigDecimal(1)).multiply(PhysicsVariables.UnitsPrefix.MICRO.getMultiplier());
-        m_sampleYSize = (new BigDecimal(1)).multiply(PhysicsVariables.UnitsPrefix.MICRO.getMultiplier());
-        
         FXMLLoader progressWindowLoader = new FXMLLoader(GUIManager.class.getResource("FXMLProgressWindow.fxml"));
         try
         {
@@ -120,7 +114,16 @@ public class GUIManager extends Application implements GUIUpdater
             m_progressWindow.initialize();
             Properties configuration = new Properties();
             configuration.load(new FileReader(new File(getParameters().getRaw().get(0))));
-            (new Thread(new ExecutionManager(this, configuration, m_sampleXSize, m_sampleYSize))).start();
+            
+            //the rebinning mode only reads the saved results, so it does not need the simulation to be set up
+            if (configuration.getProperty("execution_mode", "").equals("rebinning"))
+            {
+                (new Thread(new ResultRebinner(this, configuration))).start();
+            }
+            else
+            {
+                (new Thread(new ExecutionManager(this, configuration))).start();
+            }
             
             stage.show();
             stage.sizeToScene();
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.luminescencegenerator;
+
+import albanlafuente.physicstools.physics.PhysicsVariables;
+import java.math.BigDecimal;
+import java.util.HashMap;
+
+/**
+ * Estimate the statistical error on the spectrum and the decay of a running simulation with batch means.
+ * The recombinations are spread between NUMBER_OF_BATCHES batches by electron id, so that each batch is an independent smaller simulation of the same sample.
+ * The relative error of a quantity is the standard error of its mean over the batches, divided by that mean.
+ * For the spectrum, the quantity is the fraction of the recombinations in each bin of BIN_WIDTH, only the bins above CHECKED_FRACTION of the highest one being checked.
+ * For the decay, it is the mean recombination time.
+ * @author Alban Lafuente
+ */
+public class ConvergenceEstimator
+{
+    static final int NUMBER_OF_BATCHES = 10;
+    //under this number of recombinations in a batch, the errors are not estimated
+    static final int MINIMUM_BATCH_SIZE = 30;
+    //width of the spectrum bins: 2 meV
+    static final double BIN_WIDTH = (new BigDecimal("0.002")).multiply(PhysicsVariables.EV).doubleValue();
+    //the tails of the spectrum have too few recombinations to ever converge, so only the bins higher than this fraction of the maximum are checked
+    static final double CHECKED_FRACTION = 0.1;
+    
+    private final double m_target;
+    //number of recombinations of each batch in each bin of the spectrum
+    private final HashMap<Long, int[]> m_binCounts = new HashMap<>();
+    private final int[] m_batchSizes = new int[NUMBER_OF_BATCHES];
+    private final double[] m_batchTimes = new double[NUMBER_OF_BATCHES];
+    
+    private double m_spectrumError = Double.POSITIVE_INFINITY;
+    private double m_decayError = Double.POSITIVE_INFINITY;
+    
+    /**
+     * @param p_target the relative error on the spectrum bins and on the mean recombination time under which the simulation is converged
+     */
+    public ConvergenceEstimator (double p_target)
+    {
+        m_target = p_target;
+    }
+    
+    /**
+     * @param p_time the recombination time, in s
+     * @param p_energy the recombination energy, in J
+     * @param p_electronID the id of the electron
+     */
+    public void add (double p_time, double p_energy, int p_electronID)
+    {
+        int batch = Math.floorMod(p_electronID, NUMBER_OF_BATCHES);
+        int[] counts = m_binCounts.computeIfAbsent((long) Math.floor(p_energy / BIN_WIDTH), bin -> new int[NUMBER_OF_BATCHES]);
+        
+        counts[batch] += 1;
+        m_batchSizes[batch] += 1;
+        m_batchTimes[batch] += p_time;
+    }
+    
+    /**
+     * Estimate again the errors with all the recombinations added so far
+     * @return true if both errors are under the target
+     */
+    public boolean isConverged ()
+    {
+        boolean enoughRecombinations = true;
+        for (int size: m_batchSizes)
+        {
+            enoughRecombinations &= size >= MINIMUM_BATCH_SIZE;
+        }
+        
+        if (enoughRecombinations)
+        {
+            int maximumCount = 0;
+            for (int[] counts: m_binCounts.values())
+            {
+                maximumCount = Math.max(maximumCount, sum(counts));
+            }
+            
+            double spectrumError = 0;
+            double[] values = new double[NUMBER_OF_BATCHES];
+            for (int[] counts: m_binCounts.values())
+            {
+                if (sum(counts) >= CHECKED_FRACTION * maximumCount)
+                {
+                    for (int i = 0 ; i < NUMBER_OF_BATCHES ; i += 1)
+                    {
+                        values[i] = (double) counts[i] / m_batchSizes[i];
+                    }
+                    spectrumError = Math.max(spectrumError, relativeError(values));
+                }
+            }
+            m_spectrumError = spectrumError;
+            
+            for (int i = 0 ; i < NUMBER_OF_BATCHES ; i += 1)
+            {
+                values[i] = m_batchTimes[i] / m_batchSizes[i];
+            }
+            m_decayError = relativeError(values);
+        }
+        
+        return m_spectrumError <= m_target && m_decayError <= m_target;
+    }
+    
+    /**
+     * @return the highest relative error on the checked bins of the spectrum at the last estimation
+     */
+    public double getSpectrumError ()
+    {
+        return m_spectrumError;
+    }
+    
+    /**
+     * @return the relative error on the mean recombination time at the last estimation
+     */
+    public double getDecayError ()
+    {
+        return m_decayError;
+    }
+    
+    public double getTarget ()
+    {
+        return m_target;
+    }
+    
+    /**
+     * @param p_batchValues the value of a quantity in each batch
+     * @return the standard error of the mean of the batches, relative to that mean
+     */
+    private static double relativeError (double[] p_batchValues)
+    {
+        double mean = 0;
+        for (double value: p_batchValues)
+        {
+            mean += value / p_batchValues.length;
+        }
+        
+        double variance = 0;
+        for (double value: p_batchValues)
+        {
+            variance += (value - mean) * (value - mean) / (p_batchValues.length - 1);
+        }
+        
+        return mean > 0 ? Math.sqrt(variance / p_batchValues.length) / mean : Double.POSITIVE_INFINITY;
+    }
+    
+    private static int sum (int[] p_counts)
+    {
+        int sum = 0;
+        for (int count: p_counts)
+        {
+            sum += count;
+        }
+        
+        return sum;
+    }
+}
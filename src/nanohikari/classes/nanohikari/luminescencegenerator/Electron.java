@@ -16,15 +16,9 @@
  */
 package nanohikari.luminescencegenerator;
 
-import albanlafuente.physicstools.physics.PhysicsVariables;
 import com.github.kilianB.pcg.fast.PcgRSFast;
 import com.sun.jdi.AbsentInformationException;
 import java.math.BigDecimal;
-import java.math.BigInteger;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
-import org.nevec.rjm.BigDecimalMath;
 
 /**
  *
@@ -32,45 +26,54 @@ import org.nevec.rjm.BigDecimalMath;
  */
 public class Electron extends AbsorberObject
 {
-    private final int m_id;
+    //not final, the electron being given a new id when it is sorted or respawned
+    private int m_id;
     
-    private BigDecimal m_speedX;
-    private BigDecimal m_speedY;
-    private BigDecimal m_timer;
+    //the position (m), speed (m/s) and timer (s) are kept as primitives, so that a step does not allocate anything
+    private double m_x;
+    private double m_y;
+    private double m_speedX;
+    private double m_speedY;
+    private double m_timer;
     
     private ElectronState m_state;
     private QuantumDot m_trapingDot;
+    private int m_trapingDotIndex;
     private BigDecimal m_recombinationEnergy = null;
+    //number of time steps the electron already did in its last free flight, during which it waits for the other electrons
+    private int m_flightSteps = 0;
     
     public Electron (int p_id, BigDecimal p_positionX, BigDecimal p_positionY, BigDecimal p_speedX, BigDecimal p_speedY)
     {
         m_id = p_id;
-        m_positionX = new BigDecimal(p_positionX.toString());
-        m_positionY = new BigDecimal(p_positionY.toString());
-        m_speedX = new BigDecimal(p_speedX.toString());
-        m_speedY = new BigDecimal(p_speedY.toString());
-        m_timer = BigDecimal.ZERO;
+        m_x = p_positionX.doubleValue();
+        m_y = p_positionY.doubleValue();
+        m_speedX = p_speedX.doubleValue();
+        m_speedY = p_speedY.doubleValue();
+        m_timer = 0;
         m_state = ElectronState.FREE;
         m_trapingDot = null;
+        m_trapingDotIndex = -1;
         m_recombinationEnergy = null;
     }
     
-    public Electron (int p_id, BigDecimal p_positionX, BigDecimal p_positionY, BigDecimal p_speedX, BigDecimal p_speedY, BigDecimal p_timer, ElectronState p_state, QuantumDot p_trapingDot, BigDecimal p_recombEnergy)
+    public Electron (int p_id, BigDecimal p_positionX, BigDecimal p_positionY, BigDecimal p_speedX, BigDecimal p_speedY, BigDecimal p_timer, ElectronState p_state, QuantumDot p_trapingDot, int p_trapingDotIndex, BigDecimal p_recombEnergy)
     {
         m_id = p_id;
-        m_positionX = new BigDecimal(p_positionX.toString());
-        m_positionY = new BigDecimal(p_positionY.toString());
-        m_speedX = new BigDecimal(p_speedX.toString());
-        m_speedY = new BigDecimal(p_speedY.toString());
-        m_timer = new BigDecimal(p_timer.toString());
+        m_x = p_positionX.doubleValue();
+        m_y = p_positionY.doubleValue();
+        m_speedX = p_speedX.doubleValue();
+        m_speedY = p_speedY.doubleValue();
+        m_timer = p_timer.doubleValue();
         m_state = p_state;
         m_trapingDot = p_trapingDot;
+        m_trapingDotIndex = p_trapingDotIndex;
         m_recombinationEnergy = new BigDecimal(p_recombEnergy.toString());
     }
     
     public Electron copy (int p_newId)
     {
-        return new Electron(p_newId, m_positionX, m_positionY, m_speedX, m_speedY, m_timer, m_state, m_trapingDot.copy(), m_recombinationEnergy);
+        return new Electron(p_newId, getX(), getY(), BigDecimal.valueOf(m_speedX), BigDecimal.valueOf(m_speedY), getRecombinationTime(), m_state, m_trapingDot.copy(), m_trapingDotIndex, m_recombinationEnergy);
     }
     
     public BigDecimal getRecombinationEnergy() throws AbsentInformationException
@@ -87,7 +90,19 @@ public class Electron extends AbsorberObject
     
     public BigDecimal getRecombinationTime()
     {
-        return new BigDecimal(m_timer.toString());
+        return BigDecimal.valueOf(m_timer);
+    }
+    
+    @Override
+    public BigDecimal getX()
+    {
+        return BigDecimal.valueOf(m_x);
+    }
+    
+    @Override
+    public BigDecimal getY()
+    {
+        return BigDecimal.valueOf(m_y);
     }
     
     @Override
@@ -101,6 +116,72 @@ public class Electron extends AbsorberObject
         return m_trapingDot.copy();
     }
     
+    /**
+     * @return the index of the capturing QD in the QD array given to move, -1 if the electron is free
+     */
+    public int getCapturingQDIndex()
+    {
+        return m_trapingDotIndex;
+    }
+    
+    public int getID()
+    {
+        return m_id;
+    }
+    
+    /**
+     * @param p_sampleXSize in meters
+     * @param p_sampleYSize in meters
+     * @return the Morton key of the electron position (see MortonOrder)
+     */
+    public long getMortonKey(double p_sampleXSize, double p_sampleYSize)
+    {
+        return MortonOrder.key(m_x, m_y, p_sampleXSize, p_sampleYSize);
+    }
+    
+    /**
+     * Make this recombined electron a new free electron, so that continuous excitation reuses its slot instead of allocating a new electron
+     * The electron must not be held by a QD anymore, its hash code changing with its id.
+     * @param p_newId an id no other electron has, the electrons being equal when they have the same id
+     * @param p_positionX in meters
+     * @param p_positionY in meters
+     * @param p_speedX in m/s
+     * @param p_speedY in m/s
+     */
+    public void respawn(int p_newId, double p_positionX, double p_positionY, double p_speedX, double p_speedY)
+    {
+        m_id = p_newId;
+        m_x = p_positionX;
+        m_y = p_positionY;
+        m_speedX = p_speedX;
+        m_speedY = p_speedY;
+        m_timer = 0;
+        m_state = ElectronState.FREE;
+        m_trapingDot = null;
+        m_trapingDotIndex = -1;
+        m_recombinationEnergy = null;
+        m_flightSteps = 0;
+    }
+    
+    /**
+     * Give this electron the id and the state of p_electron, so that ElectronSorter reorders the electrons without moving them in memory
+     * @param p_electron a free electron, which no QD holds
+     */
+    public void copyState(Electron p_electron)
+    {
+        m_id = p_electron.m_id;
+        m_x = p_electron.m_x;
+        m_y = p_electron.m_y;
+        m_speedX = p_electron.m_speedX;
+        m_speedY = p_electron.m_speedY;
+        m_timer = p_electron.m_timer;
+        m_state = p_electron.m_state;
+        m_trapingDot = p_electron.m_trapingDot;
+        m_trapingDotIndex = p_electron.m_trapingDotIndex;
+        m_recombinationEnergy = p_electron.m_recombinationEnergy;
+        m_flightSteps = p_electron.m_flightSteps;
+    }
+    
     public boolean isFree()
     {
         return m_state == ElectronState.FREE;
@@ -118,72 +199,114 @@ public class Electron extends AbsorberObject
         return m_id;
     }
     
-    public void move(BigDecimal p_timeStep, BigDecimal p_maxX, BigDecimal p_maxY, BigDecimal p_vth, HashMap<BigInteger, Set<QuantumDot>> p_map, PcgRSFast p_RNG)
+    /**
+     * With adaptive stepping, a free electron far from the QDs does all the steps it would do before getting close to one of them in a single flight, then waits for the other electrons.
+     * As a QD is only tested when it is closer than the step length, the skipped steps would not have tested any QD, and the results are the same as without it.
+     * The distance field, when given, tells in a single look up if a QD can be close enough to be tested, the grid being scanned only if it is the case.
+     * A free electron which is neither captured nor escaping does not allocate anything.
+     * @param p_timeStep in s
+     * @param p_maxX in m
+     * @param p_maxY in m
+     * @param p_vth the thermal velocity, in m/s
+     * @param p_field the distance field of the QDs of p_grid, can be null
+     * @param p_adaptiveStep true to use adaptive stepping, which needs p_field
+     */
+    public void move(double p_timeStep, double p_maxX, double p_maxY, double p_vth, QDSpatialGrid p_grid, QDDistanceField p_field, QuantumDot[] p_QDArray, PcgRSFast p_RNG, boolean p_adaptiveStep)
     {
         /**
          * moving the electron if it hasn't been captured or hasn't recombined
          * if it has been captured, it can either recombine or escape
         **/
-        if (!(m_state == ElectronState.RECOMBINED))
+        if (m_flightSteps > 0)
+        {
+            //the electron already did this step in its last flight
+            m_flightSteps -= 1;
+        }
+        else if (!(m_state == ElectronState.RECOMBINED))
         {
             //if the electron is free, we see if it is captured
             if (m_state == ElectronState.FREE)
             {
-                BigDecimal deltaX = m_speedX.multiply(p_timeStep);
-                BigDecimal deltaY = m_speedY.multiply(p_timeStep);
+                double deltaX = m_speedX * p_timeStep;
+                double deltaY = m_speedY * p_timeStep;
+                
+                double vision = Math.sqrt(deltaX * deltaX + deltaY * deltaY);
                 
-                BigDecimal electronVision = BigDecimalMath.sqrt(deltaX.pow(2).add(deltaY.pow(2)));
+                double positionX = m_x;
+                double positionY = m_y;
                 
-                //finding QD in range in x and testing if they capture the electron
-                BigDecimal scanStart = (m_positionX.subtract(electronVision)).scaleByPowerOfTen(PhysicsVariables.UnitsPrefix.NANO.getScale());
-                BigDecimal scanEnd = (m_positionX.add(electronVision)).scaleByPowerOfTen(PhysicsVariables.UnitsPrefix.NANO.getScale());
-                Set<QuantumDot> testedDots = new HashSet<>();
-                for (BigDecimal iter = scanStart ; iter.compareTo(scanEnd) <= 0 && m_state == ElectronState.FREE ; iter = iter.add(BigDecimal.ONE))
+                double closestQD = p_field != null ? p_field.lowerBound(positionX, positionY) : Double.NEGATIVE_INFINITY;
+                
+                //far from the QDs, the electron flies in a single move up to the last step before it could see one
+                int flightSteps = p_adaptiveStep ? freeFlightSteps(positionX, positionY, deltaX, deltaY, vision, p_maxX, p_maxY, closestQD) : 0;
+                if (flightSteps > 1)
                 {
-                    Set<QuantumDot> currentQDSet = p_map.get(iter.toBigInteger());
-                    if (currentQDSet != null)
+                    //the position and timer are moved to the end of the flight, the timer of the last step being added below as for any other step
+                    m_x += deltaX * flightSteps;
+                    m_y += deltaY * flightSteps;
+                    m_timer += p_timeStep * (flightSteps - 1);
+                    m_flightSteps = flightSteps - 1;
+                }
+                else
+                {
+                    //finding QD in range and testing if they capture the electron
+                    //a QD is only stored in the cell containing its center, so the cells are scanned up to electronVision + the biggest QD radius
+                    //no cell is scanned if the distance field shows that all the QDs are out of sight
+                    boolean QDInSight = closestQD <= vision;
+                    double scanRange = vision + p_grid.getMaxRadius();
+                    int firstColumn = p_grid.column(positionX - scanRange);
+                    int lastColumn = p_grid.column(positionX + scanRange);
+                    int lastRow = p_grid.row(positionY + scanRange);
+                    for (int row = p_grid.row(positionY - scanRange) ; QDInSight && row <= lastRow && m_state == ElectronState.FREE ; row += 1)
                     {
-                        for (QuantumDot QD: currentQDSet)
+                        for (int column = firstColumn ; column <= lastColumn && m_state == ElectronState.FREE ; column += 1)
                         {
-                            if (!testedDots.contains(QD))
+                            int cell = p_grid.cellIndex(column, row);
+                            int[] cellContent = p_grid.getCellContent(cell);
+                            for (int k = 0 ; k < p_grid.getCellCount(cell) ; k += 1)
                             {
-                                BigDecimal distance = getDistance(QD.getX(), QD.getY()).subtract(QD.getRadius());
-                                if (distance.compareTo(electronVision) <= 0)
+                                int QDIndex = cellContent[k];
+                                double QDDeltaX = p_grid.getX(QDIndex) - positionX;
+                                double QDDeltaY = p_grid.getY(QDIndex) - positionY;
+                                double distance = Math.sqrt(QDDeltaX * QDDeltaX + QDDeltaY * QDDeltaY) - p_grid.getRadius(QDIndex);
+                                
+                                if (distance <= vision)
                                 {
-                                    if (QD.capture(p_RNG, this, distance, electronVision))
+                                    QuantumDot QD = p_QDArray[QDIndex];
+                                    if (QD.capture(p_RNG, this, distance, vision))
                                     {
                                         m_state = ElectronState.CAPTURED;
                                         m_trapingDot = QD;
+                                        m_trapingDotIndex = QDIndex;
                                         break;
                                     }
                                 }
-                                testedDots.add(QD);
                             }
                         }
                     }
-                }
-                
-                //if the electron has not been captured (still free), we move it
-                if (m_state == ElectronState.FREE)
-                {
-                    m_positionX = m_positionX.add(deltaX);
-                    if (m_positionX.compareTo(BigDecimal.ZERO) < 0)
-                    {
-                        m_positionX = p_maxX.add(m_positionX);
-                    }
-                    else if (m_positionX.compareTo(p_maxX) > 0)
+                    
+                    //if the electron has not been captured (still free), we move it
+                    if (m_state == ElectronState.FREE)
                     {
-                        m_positionX = m_positionX.subtract(p_maxX);
-                    }
+                        m_x += deltaX;
+                        if (m_x < 0)
+                        {
+                            m_x += p_maxX;
+                        }
+                        else if (m_x > p_maxX)
+                        {
+                            m_x -= p_maxX;
+                        }
 
-                    m_positionY = m_positionY.add(deltaY);
-                    if (m_positionY.compareTo(BigDecimal.ZERO) < 0)
-                    {
-                        m_positionY = p_maxX.add(m_positionY);
-                    }
-                    else if (m_positionY.compareTo(p_maxX) > 0)
-                    {
-                        m_positionY = m_positionY.subtract(p_maxX);
+                        m_y += deltaY;
+                        if (m_y < 0)
+                        {
+                            m_y += p_maxY;
+                        }
+                        else if (m_y > p_maxY)
+                        {
+                            m_y -= p_maxY;
+                        }
                     }
                 }
             }
@@ -198,24 +321,65 @@ public class Electron extends AbsorberObject
                     if (m_trapingDot.escape(p_RNG, this))
                     {
                         m_state = ElectronState.FREE;
-                        m_positionX = m_trapingDot.getX();
-                        m_positionY = m_trapingDot.getY();
-                        m_speedX = GeneratorManager.formatBigDecimal((new BigDecimal(p_RNG.nextGaussian())).multiply(p_vth));
-                        m_speedY = GeneratorManager.formatBigDecimal((new BigDecimal(p_RNG.nextGaussian())).multiply(p_vth));
+                        m_x = m_trapingDot.getX().doubleValue();
+                        m_y = m_trapingDot.getY().doubleValue();
+                        m_speedX = p_RNG.nextGaussian() * p_vth;
+                        m_speedY = p_RNG.nextGaussian() * p_vth;
                         m_trapingDot = null;
+                        m_trapingDotIndex = -1;
                         m_recombinationEnergy = null;
                     }
                 }
             }
             
-            m_timer = m_timer.add(p_timeStep);
+            m_timer += p_timeStep;
+        }
+    }
+    
+    /**
+     * Number of steps the electron can do without any QD being closer than the step length, in which case no capture can be tested.
+     * At each step, the distance to a QD decreases at most by the step length, so the number of steps is deduced from a lower bound of the distance to the closest QD.
+     * The flight stops before the sample edge, as the QDs on the other side are not seen by the grid.
+     * One step is kept as a margin for the rounding errors.
+     * @return the number of steps of the flight, which should not be done if it is lower than 2
+     */
+    private static int freeFlightSteps(double p_positionX, double p_positionY, double p_deltaX, double p_deltaY, double p_vision, double p_maxX, double p_maxY, double p_closestQD)
+    {
+        double steps = 0;
+        
+        if (p_vision > 0)
+        {
+            steps = Math.floor(p_closestQD / p_vision) - 1;
+            steps = Math.min(steps, stepsInside(p_positionX, p_deltaX, p_maxX) - 1);
+            steps = Math.min(steps, stepsInside(p_positionY, p_deltaY, p_maxY) - 1);
+        }
+        
+        return (int) Math.max(0, steps);
+    }
+    
+    /**
+     * @return the number of steps before the position gets out of [0, p_max]
+     */
+    private static double stepsInside(double p_position, double p_delta, double p_max)
+    {
+        double steps = Double.POSITIVE_INFINITY;
+        
+        if (p_delta > 0)
+        {
+            steps = Math.floor((p_max - p_position) / p_delta);
+        }
+        else if (p_delta < 0)
+        {
+            steps = Math.floor(p_position / -p_delta);
         }
+        
+        return steps;
     }
     
     @Override
     public String toString()
     {
-        return "(x = " + m_positionX + " ; y = " + m_positionY + " ; v_x = " + m_speedX + " ; v_y = " + m_speedY + ")";
+        return "(x = " + m_x + " ; y = " + m_y + " ; v_x = " + m_speedX + " ; v_y = " + m_speedY + ")";
     }
     
     enum ElectronState
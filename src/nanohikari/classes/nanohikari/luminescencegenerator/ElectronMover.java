@@ -18,11 +18,8 @@ package nanohikari.luminescencegenerator;
 
 import com.github.kilianB.pcg.fast.PcgRSFast;
 import java.math.BigDecimal;
-import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 
 /**
  *
@@ -30,54 +27,82 @@ import java.util.Set;
  */
 public class ElectronMover implements Runnable
 {
-    private final BigDecimal m_sampleXSize;
-    private final BigDecimal m_sampleYSize;
-    private final BigDecimal m_timeStep;
-    private final BigDecimal m_vth;
-    private final HashMap<BigInteger, Set<QuantumDot>> m_QDMap;
-    private final List<Electron> m_electronList;
+    //in SI units, converted once so that the steps do not allocate
+    private final double m_sampleXSize;
+    private final double m_sampleYSize;
+    private final double m_timeStep;
+    private final double m_vth;
+    private final QDSpatialGrid m_QDGrid;
+    private final QDDistanceField m_distanceField;
+    private final QuantumDot[] m_QDArray;
+    //the electrons moved by this mover are the ones between m_first (included) and m_end (excluded) in m_electrons, which can be shared with other movers
+    private Electron[] m_electrons;
+    private int m_first;
+    private int m_end;
     private final PcgRSFast m_randomGenerator;
+    private final boolean m_adaptiveStep;
     
-    public ElectronMover (BigDecimal p_sampleXMax, BigDecimal p_sampleYMax, BigDecimal p_timeStep, BigDecimal p_vth, List<Electron> p_electronToTreat, HashMap<BigInteger, Set<QuantumDot>> p_map)
+    /**
+     * @param p_field the distance field of the QDs of p_grid, can be null
+     * @param p_adaptiveStep true to let the free electrons far from the QDs do several steps at once, which needs p_field
+     */
+    public ElectronMover (BigDecimal p_sampleXMax, BigDecimal p_sampleYMax, BigDecimal p_timeStep, BigDecimal p_vth, List<Electron> p_electronToTreat, QDSpatialGrid p_grid, QDDistanceField p_field, QuantumDot[] p_QDArray, boolean p_adaptiveStep)
     {
-        m_sampleXSize = p_sampleXMax;
-        m_sampleYSize = p_sampleYMax;
-        m_timeStep = p_timeStep;
-        m_vth = p_vth;
-        m_electronList = new ArrayList(p_electronToTreat);
+        m_sampleXSize = p_sampleXMax.doubleValue();
+        m_sampleYSize = p_sampleYMax.doubleValue();
+        m_timeStep = p_timeStep.doubleValue();
+        m_vth = p_vth.doubleValue();
+        m_electrons = p_electronToTreat.toArray(new Electron[0]);
+        m_first = 0;
+        m_end = m_electrons.length;
         m_randomGenerator = new PcgRSFast();
+        m_adaptiveStep = p_adaptiveStep;
         
-        m_QDMap = p_map;
+        m_QDGrid = p_grid;
+        m_distanceField = p_field;
+        m_QDArray = p_QDArray;
     }
     
     public boolean allRecombined()
     {
         boolean finished = true;
         
-        for (Electron currentElectron: m_electronList)
+        for (int i = m_first ; i < m_end ; i += 1)
         {
-            finished &= currentElectron.isRecombined();
+            finished &= m_electrons[i].isRecombined();
         }
         
         return finished;
     }
     
-    public ArrayList<Electron> getElectronList()
+    /**
+     * @return the electrons moved by this mover, as a view of the array they are in
+     */
+    public List<Electron> getElectronList()
     {
-        return new ArrayList(m_electronList);
+        return Arrays.asList(m_electrons).subList(m_first, m_end);
     }
     
     @Override
     public void run()
     {
-        for (Electron curentElectron: m_electronList)
+        for (int i = m_first ; i < m_end ; i += 1)
         {
-            curentElectron.move(m_timeStep, m_sampleXSize, m_sampleYSize, m_vth, m_QDMap, m_randomGenerator);
+            m_electrons[i].move(m_timeStep, m_sampleXSize, m_sampleYSize, m_vth, m_QDGrid, m_distanceField, m_QDArray, m_randomGenerator, m_adaptiveStep);
         }
     }
     
-    public void addElectron(Electron p_newElectron)
+    /**
+     * Replace the electrons moved by this mover by a range of p_electrons, keeping the random generator
+     * The array is not copied, so that the electrons reordered in it are moved in their new order.
+     * @param p_electrons
+     * @param p_first the index of the first electron to move
+     * @param p_end the index following the last electron to move
+     */
+    public void setElectrons(Electron[] p_electrons, int p_first, int p_end)
     {
-        m_electronList.add(p_newElectron);
+        m_electrons = p_electrons;
+        m_first = p_first;
+        m_end = p_end;
     }
 }
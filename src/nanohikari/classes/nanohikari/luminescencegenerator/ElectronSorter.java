@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.luminescencegenerator;
+
+import java.math.BigDecimal;
+
+/**
+ * Sort the free electrons of an array in Morton order (see MortonOrder) without moving the Electron objects
+ * The electrons keep their slot in the array, which is the order they were created in and mostly the order they are in memory: the free electrons exchange their states instead, so that the electrons moved one after the other are also next to each other in memory. Reordering the references would make the workers read the electrons from random places in memory.
+ * The captured and recombined electrons are not sorted, the QDs and the set of recombined electrons holding them, and a captured electron not scanning any QD.
+ * @author Alban Lafuente
+ */
+public class ElectronSorter
+{
+    private final MortonOrder m_order;
+    //the buffers of sort, allocated once so that the electrons can be sorted again during the simulation without allocating
+    private final int[] m_freeSlots;
+    private final Electron m_buffer;
+    
+    /**
+     * @param p_capacity the number of electrons this ElectronSorter can sort
+     */
+    public ElectronSorter (int p_capacity)
+    {
+        m_order = new MortonOrder(p_capacity);
+        m_freeSlots = new int[p_capacity];
+        m_buffer = new Electron(-1, BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO);
+    }
+    
+    /**
+     * Give the free electrons of p_electrons the states of the free electrons sorted by Morton key, in the order of their slots
+     * @param p_electrons at most as many electrons as the capacity of this ElectronSorter
+     * @param p_sampleXSize in meters
+     * @param p_sampleYSize in meters
+     */
+    public void sort (Electron[] p_electrons, double p_sampleXSize, double p_sampleYSize)
+    {
+        int numberOfFree = 0;
+        for (int i = 0 ; i < p_electrons.length ; i += 1)
+        {
+            if (p_electrons[i].isFree())
+            {
+                m_order.setKey(numberOfFree, p_electrons[i].getMortonKey(p_sampleXSize, p_sampleYSize));
+                m_freeSlots[numberOfFree] = i;
+                numberOfFree += 1;
+            }
+        }
+        int[] sourceIndices = m_order.sort(numberOfFree);
+        
+        //the k-th free slot takes the state of the k-th electron in Morton order, the states being moved along the cycles of that permutation
+        for (int k = 0 ; k < numberOfFree ; k += 1)
+        {
+            if (sourceIndices[k] >= 0 && sourceIndices[k] != k)
+            {
+                m_buffer.copyState(p_electrons[m_freeSlots[k]]);
+                int current = k;
+                while (sourceIndices[current] != k)
+                {
+                    int source = sourceIndices[current];
+                    p_electrons[m_freeSlots[current]].copyState(p_electrons[m_freeSlots[source]]);
+                    sourceIndices[current] = -1;
+                    current = source;
+                }
+                p_electrons[m_freeSlots[current]].copyState(m_buffer);
+                sourceIndices[current] = -1;
+            }
+        }
+    }
+}
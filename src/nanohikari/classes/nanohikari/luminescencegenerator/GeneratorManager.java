@@ -18,17 +18,20 @@ package nanohikari.luminescencegenerator;
 
 import albanlafuente.physicstools.physics.PhysicsVariables;
 import com.github.kilianB.pcg.fast.PcgRSFast;
+import com.sun.jdi.AbsentInformationException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.math.BigDecimal;
-import java.math.BigInteger;
 import java.math.MathContext;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
@@ -39,6 +42,9 @@ import java.util.zip.DataFormatException;
  */
 public class GeneratorManager implements Runnable
 {
+    //number of steps between two sorts of the electrons in Morton order
+    static final int SORT_PERIOD = 16;
+    
     private final BigDecimal m_sampleXSize;
     private final BigDecimal m_sampleYSize;
     private final BigDecimal m_timeStep;
@@ -46,18 +52,37 @@ public class GeneratorManager implements Runnable
     private final boolean m_continuousIntegration;
     private final ImageBuffer m_output;
     private final int m_neededRecombinations;
+    private final int m_numberOfWorkers;
     private final List<QuantumDot> m_QDList;
+    private final QuantumDot[] m_QDArray;
+    private final RecombinationRecorder m_recorder;
     
-    private BigDecimal m_timeElapsed = new BigDecimal(BigDecimal.ZERO.toString());
+    //the simulated time is kept as a number of steps, so that a step does not allocate a BigDecimal
+    private volatile long m_numberOfSteps = 0;
     private int m_nElectrons;
     
-    //a map of the abscissa, separated in column, containing sets of QD present at that abscissa
-    private final HashMap<BigInteger, Set<QuantumDot>> m_map = new HashMap<>();
+    //a grid of the sample, each cell containing the index in m_QDArray of the QDs centered in it
+    private final QDSpatialGrid m_grid;
+    //distance to the closest QD of m_grid, to know in a single look up if an electron is close to a QD
+    private final QDDistanceField m_distanceField;
+    //the QDs given to the constructor, in the grid order, so that the next simulation can tell which ones changed
+    private final QuantumDot[] m_sourceQDs;
+    //the index in the list given to the constructor of each QD of the grid, as the recorder expects
+    private final int[] m_listIndices;
     
     //this thread Random Generator
     private final PcgRSFast m_randomGenerator = new PcgRSFast();
     
-    private volatile Set<Electron> m_finalElectronList = new HashSet<>();
+    //the recombined electrons of a single shot simulation, which stay in the movers once recombined. In continuous mode the recombined electrons are respawned and not kept.
+    private final Set<Electron> m_finalElectronList = new HashSet<>();
+    //the recombinations are only streamed to the recorder, the simulation keeps their number
+    private volatile int m_numberOfRecombinations = 0;
+    
+    //estimate the errors on the results, to stop the simulation as soon as they are small enough. null if the simulation has to reach the needed number of recombinations.
+    private ConvergenceEstimator m_convergence = null;
+    private volatile boolean m_isConverged = false;
+    //true if the free electrons far from the QDs do several steps at once
+    private boolean m_adaptiveStep = false;
     
     public GeneratorManager ()
     {
@@ -68,11 +93,26 @@ public class GeneratorManager implements Runnable
         m_continuousIntegration = false;
         m_output = null;
         m_neededRecombinations = 0;
+        m_numberOfWorkers = 1;
         m_nElectrons = 0;
         m_QDList = new ArrayList<QuantumDot>();
+        m_QDArray = new QuantumDot[0];
+        m_recorder = null;
+        m_grid = new QDSpatialGrid(0, 0, 1);
+        m_distanceField = new QDDistanceField(m_grid);
+        m_sourceQDs = new QuantumDot[0];
+        m_listIndices = new int[0];
+    }
+    
+    public GeneratorManager (BigDecimal p_sampleX, BigDecimal p_sampleY, BigDecimal p_timeStep, BigDecimal p_temperature, boolean p_isContinuous, ImageBuffer p_buffer, int p_wishedNumberRecombination, int p_nElectron, List<QuantumDot> p_QDList, RecombinationRecorder p_recorder) throws DataFormatException, FileNotFoundException, IOException
+    {
+        this(p_sampleX, p_sampleY, p_timeStep, p_temperature, p_isContinuous, p_buffer, p_wishedNumberRecombination, p_nElectron, p_QDList, p_recorder, Runtime.getRuntime().availableProcessors());
     }
     
-    public GeneratorManager (BigDecimal p_sampleX, BigDecimal p_sampleY, BigDecimal p_timeStep, BigDecimal p_temperature, boolean p_isContinuous, ImageBuffer p_buffer, int p_wishedNumberRecombination, int p_nElectron, List<QuantumDot> p_QDList) throws DataFormatException, FileNotFoundException, IOException
+    /**
+     * @param p_numberOfWorkers the number of threads moving the electrons, so that several simulations can share the cores
+     */
+    public GeneratorManager (BigDecimal p_sampleX, BigDecimal p_sampleY, BigDecimal p_timeStep, BigDecimal p_temperature, boolean p_isContinuous, ImageBuffer p_buffer, int p_wishedNumberRecombination, int p_nElectron, List<QuantumDot> p_QDList, RecombinationRecorder p_recorder, int p_numberOfWorkers) throws DataFormatException, FileNotFoundException, IOException
     {
         m_sampleXSize = p_sampleX;
         m_sampleYSize = p_sampleY;
@@ -82,75 +122,206 @@ public class GeneratorManager implements Runnable
         m_output = p_buffer;
         m_neededRecombinations = p_wishedNumberRecombination;
         m_nElectrons = p_nElectron;
+        m_recorder = p_recorder;
+        m_numberOfWorkers = Math.max(1, p_numberOfWorkers);
 
-        m_QDList = new ArrayList<>();
+        //the grid cells are taken as big as the mean QD diameter, so that an electron only has to look in the few cells around it
+        double meanDiameter = 0;
         for (QuantumDot QD: p_QDList)
         {
-            QuantumDot toAddQQD = QD.copy();
+            meanDiameter += 2 * QD.getRadius().doubleValue() / p_QDList.size();
+        }
+        m_grid = new QDSpatialGrid(m_sampleXSize.doubleValue(), m_sampleYSize.doubleValue(), meanDiameter);
+        
+        m_QDList = new ArrayList<>();
+        m_QDArray = new QuantumDot[p_QDList.size()];
+        m_sourceQDs = new QuantumDot[p_QDList.size()];
+        m_listIndices = new int[p_QDList.size()];
+        long[] keys = new long[p_QDList.size()];
+        for (int i = 0 ; i < p_QDList.size() ; i += 1)
+        {
+            QuantumDot toAddQQD = p_QDList.get(i).copy();
+            
             m_QDList.add(toAddQQD);
-            addToMap(toAddQQD);
+            keys[i] = MortonOrder.key(toAddQQD.getX().doubleValue(), toAddQQD.getY().doubleValue(), m_sampleXSize.doubleValue(), m_sampleYSize.doubleValue());
         }
+        
+        //the QDs are added to the grid in Morton order, so that the QDs close in the sample are close in the grid and in m_QDArray
+        for (int i: MortonOrder.sortedIndices(keys))
+        {
+            QuantumDot toAddQQD = m_QDList.get(i);
+            int gridIndex = m_grid.add(toAddQQD.getX().doubleValue(), toAddQQD.getY().doubleValue(), toAddQQD.getRadius().doubleValue());
+            
+            m_QDArray[gridIndex] = toAddQQD;
+            m_sourceQDs[gridIndex] = p_QDList.get(i);
+            m_listIndices[gridIndex] = i;
+        }
+        m_distanceField = new QDDistanceField(m_grid);
     }
     
     /**
-     * Add the passed quantum dot to m_map at the right abscissa
-     * @param p_QDToAdd 
+     * Prepare a simulation of the QDs of a previous simulation, some of them having changed size, as between two fitting loops.
+     * The grid, the distance field and the QDs of p_previous are taken over: the QDs whose levels did not change are emptied, and only the other ones are copied, their radius being updated in the grid and in the distance field.
+     * @param p_indices the index in the grid of each QD of p_QDList
      */
-    private void addToMap(QuantumDot p_QDToAdd)
+    private GeneratorManager (GeneratorManager p_previous, ImageBuffer p_buffer, int p_wishedNumberRecombination, int p_nElectron, List<QuantumDot> p_QDList, RecombinationRecorder p_recorder, int[] p_indices)
     {
-        BigDecimal startAbscissa = (p_QDToAdd.getX().subtract(p_QDToAdd.getRadius())).scaleByPowerOfTen(PhysicsVariables.UnitsPrefix.NANO.getScale());
-        BigDecimal endAbscissa = (p_QDToAdd.getX().add(p_QDToAdd.getRadius())).scaleByPowerOfTen(PhysicsVariables.UnitsPrefix.NANO.getScale());
+        m_sampleXSize = p_previous.m_sampleXSize;
+        m_sampleYSize = p_previous.m_sampleYSize;
+        m_timeStep = p_previous.m_timeStep;
+        m_vth = p_previous.m_vth;
+        m_continuousIntegration = p_previous.m_continuousIntegration;
+        m_output = p_buffer;
+        m_neededRecombinations = p_wishedNumberRecombination;
+        m_nElectrons = p_nElectron;
+        m_recorder = p_recorder;
+        m_numberOfWorkers = p_previous.m_numberOfWorkers;
+        m_grid = p_previous.m_grid;
+        m_distanceField = p_previous.m_distanceField;
+        m_QDArray = p_previous.m_QDArray;
+        m_sourceQDs = p_previous.m_sourceQDs;
+        m_listIndices = p_previous.m_listIndices;
         
-        for (BigDecimal currentAbscissa = startAbscissa ; currentAbscissa.compareTo(endAbscissa) <= 0 ; currentAbscissa = currentAbscissa.add(BigDecimal.ONE))
+        m_QDList = new ArrayList<>(p_QDList.size());
+        for (int i = 0 ; i < p_QDList.size() ; i += 1)
         {
-            BigInteger index = currentAbscissa.toBigInteger();
+            QuantumDot QD = p_QDList.get(i);
+            int gridIndex = p_indices[i];
             
-            Set<QuantumDot> currentSet = m_map.get(index);
-            if (currentSet == null)
+            if (QD.hasSameLevels(m_sourceQDs[gridIndex]))
             {
-                currentSet = new HashSet<>();
-                currentSet.add(p_QDToAdd);
-                m_map.put(index, currentSet);
+                m_QDArray[gridIndex].empty();
             }
             else
             {
-                currentSet.add(p_QDToAdd);
+                m_QDArray[gridIndex] = QD.copy();
+                if (m_grid.getRadius(gridIndex) != m_QDArray[gridIndex].getRadius().doubleValue())
+                {
+                    m_grid.setRadius(gridIndex, m_QDArray[gridIndex].getRadius().doubleValue());
+                    m_distanceField.update(m_grid, gridIndex);
+                }
             }
+            
+            m_QDList.add(m_QDArray[gridIndex]);
+            m_sourceQDs[gridIndex] = QD;
+            m_listIndices[gridIndex] = i;
         }
     }
     
-    public static BigDecimal formatBigDecimal(BigDecimal p_toFormat)
-    {
-        return p_toFormat.stripTrailingZeros();
-    }
-    
-    public HashSet<Electron> getFinalElectronList()
+    /**
+     * Build the GeneratorManager of the next simulation of a fit, reusing the grid of p_previous if p_QDList has the QDs of p_previous at the same positions.
+     * Otherwise, or if p_previous is null or simulates another sample, the GeneratorManager is built from scratch.
+     * WARNING: p_previous should not be run after this call, its grid and its QDs being modified
+     * @param p_previous the GeneratorManager of the previous simulation, can be null
+     * @return 
+     */
+    public static GeneratorManager generatorWithPreviousGrid (GeneratorManager p_previous, BigDecimal p_sampleX, BigDecimal p_sampleY, BigDecimal p_timeStep, BigDecimal p_temperature, boolean p_isContinuous, ImageBuffer p_buffer, int p_wishedNumberRecombination, int p_nElectron, List<QuantumDot> p_QDList, RecombinationRecorder p_recorder) throws DataFormatException, FileNotFoundException, IOException
     {
-        HashSet<Electron> result = new HashSet<>();
-        if (m_finalElectronList.size() >= m_neededRecombinations)
+        boolean reusable = p_previous != null && p_previous.m_sourceQDs.length == p_QDList.size() && p_previous.m_sampleXSize.compareTo(p_sampleX) == 0 && p_previous.m_sampleYSize.compareTo(p_sampleY) == 0 && p_previous.m_timeStep.compareTo(p_timeStep) == 0 && p_previous.m_continuousIntegration == p_isContinuous && p_previous.m_vth.compareTo(formatBigDecimal((PhysicsVariables.KB.multiply(p_temperature).divide(PhysicsVariables.ME, MathContext.DECIMAL128)).sqrt(MathContext.DECIMAL128))) == 0;
+        
+        int[] indices = new int[p_QDList.size()];
+        boolean[] isTaken = new boolean[p_QDList.size()];
+        for (int i = 0 ; reusable && i < p_QDList.size() ; i += 1)
         {
-            int newID = m_nElectrons;
+            int gridIndex = p_previous.m_grid.indexOf(p_QDList.get(i).getX().doubleValue(), p_QDList.get(i).getY().doubleValue());
             
-            for(Electron el: m_finalElectronList)
+            if (gridIndex < 0 || isTaken[gridIndex])
+            {
+                reusable = false;
+            }
+            else
             {
-                result.add(el.copy(newID));
-                newID += 1;
+                indices[i] = gridIndex;
+                isTaken[gridIndex] = true;
             }
         }
         
-        return result;
+        GeneratorManager generator;
+        if (reusable)
+        {
+            generator = new GeneratorManager(p_previous, p_buffer, p_wishedNumberRecombination, p_nElectron, p_QDList, p_recorder, indices);
+        }
+        else
+        {
+            generator = new GeneratorManager(p_sampleX, p_sampleY, p_timeStep, p_temperature, p_isContinuous, p_buffer, p_wishedNumberRecombination, p_nElectron, p_QDList, p_recorder);
+        }
+        
+        return generator;
+    }
+    
+    /**
+     * Sort the free electrons in Morton order and give each mover a contiguous range of them, so that each worker moves electrons close to each other and scans the same QDs
+     * The movers share p_electrons, in which the electrons keep their slot: the free electrons exchange their states, so that sorting again does not allocate nor scatter the electrons in memory.
+     * @param p_electrons
+     * @param p_movers
+     * @param p_sorter an ElectronSorter of the capacity of p_electrons, reused by the sorts
+     * @param p_sampleXSize in meters
+     * @param p_sampleYSize in meters
+     */
+    public static void dealElectrons(Electron[] p_electrons, ElectronMover[] p_movers, ElectronSorter p_sorter, double p_sampleXSize, double p_sampleYSize)
+    {
+        p_sorter.sort(p_electrons, p_sampleXSize, p_sampleYSize);
+        
+        for (int i = 0 ; i < p_movers.length ; i += 1)
+        {
+            p_movers[i].setElectrons(p_electrons, i * p_electrons.length / p_movers.length, (i + 1) * p_electrons.length / p_movers.length);
+        }
+    }
+    
+    public static BigDecimal formatBigDecimal(BigDecimal p_toFormat)
+    {
+        return p_toFormat.stripTrailingZeros();
+    }
+    
+    /**
+     * Stop the simulation before the needed number of recombinations once the relative errors on the spectrum and on the mean recombination time are under p_relativeError
+     * @param p_relativeError the target relative error. The adaptive stop is not used if it is not positive.
+     */
+    public void setConvergenceTarget(double p_relativeError)
+    {
+        m_convergence = p_relativeError > 0 ? new ConvergenceEstimator(p_relativeError) : null;
+    }
+    
+    /**
+     * Let the free electrons far from the QDs do all the steps they would do before approaching one in a single move. The results are the same, with less steps calculated.
+     * @param p_adaptiveStep
+     */
+    public void setAdaptiveStep(boolean p_adaptiveStep)
+    {
+        m_adaptiveStep = p_adaptiveStep;
+    }
+    
+    /**
+     * @return the estimation of the errors of the simulation, or null if the simulation does not stop on convergence
+     */
+    public ConvergenceEstimator getConvergence()
+    {
+        return m_convergence;
+    }
+    
+    public boolean isConverged()
+    {
+        return m_isConverged;
+    }
+    
+    /**
+     * @return true if the simulation reached the needed number of recombinations or converged, its recombinations being then all in the recorder
+     */
+    public boolean isFinished()
+    {
+        return m_numberOfRecombinations >= m_neededRecombinations || m_isConverged;
     }
     
     public BigDecimal getTime()
     {
-        return new BigDecimal(m_timeElapsed.toString());
+        return m_timeStep.multiply(BigDecimal.valueOf(m_numberOfSteps));
     }
     
     @Override
     public void run()
     {
         //generating electrons
-        List<Electron> electronList = new ArrayList<>();
+        Electron[] electrons = new Electron[m_nElectrons];
         for (int i = 0 ; i < m_nElectrons ; i += 1)
         {
             BigDecimal x = formatBigDecimal((new BigDecimal(m_randomGenerator.nextDouble())).multiply(m_sampleXSize));
@@ -159,90 +330,128 @@ public class GeneratorManager implements Runnable
             BigDecimal v_x = formatBigDecimal((new BigDecimal(m_randomGenerator.nextGaussian())).multiply(m_vth));
             BigDecimal v_y = formatBigDecimal((new BigDecimal(m_randomGenerator.nextGaussian())).multiply(m_vth));
             
-            electronList.add(new Electron(i, x, y, v_x, v_y));
-        }
-        
-        //cutting calculation into chunks to distribute it between cores
-        int numberOfChunks = Integer.min(Runtime.getRuntime().availableProcessors(), electronList.size());
-        Iterator<Electron> electronIterator = electronList.iterator();
-        ArrayList<Electron>[] electronChunks = new ArrayList[numberOfChunks];
-        for (int i = 0 ; i < numberOfChunks ; i += 1)
-        {
-            electronChunks[i] = new ArrayList<>();
-        }
-        
-        int nElectronTreated = 0;
-        while (electronIterator.hasNext())
-        {
-            electronChunks[nElectronTreated % numberOfChunks].add(electronIterator.next());
-            nElectronTreated += 1;
+            electrons[i] = new Electron(i, x, y, v_x, v_y);
         }
         
-        Thread[] workerArray = new Thread[numberOfChunks];
+        //cutting calculation into chunks to distribute it between the workers
+        //the last chunk is moved by this thread, the others by a pool of workers kept for the whole simulation
+        int numberOfChunks = Math.max(1, Integer.min(m_numberOfWorkers, electrons.length));
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, numberOfChunks - 1));
+        Future<?>[] moves = new Future<?>[numberOfChunks - 1];
         ElectronMover[] moverArray = new ElectronMover[numberOfChunks];
         for (int i = 0 ; i < numberOfChunks ; i += 1)
         {
-            moverArray[i] = new ElectronMover(m_sampleXSize, m_sampleYSize, m_timeStep, m_vth, electronChunks[i], m_map);
+            moverArray[i] = new ElectronMover(m_sampleXSize, m_sampleYSize, m_timeStep, m_vth, new ArrayList<>(), m_grid, m_distanceField, m_QDArray, m_adaptiveStep);
         }
+        ElectronSorter electronSorter = new ElectronSorter(electrons.length);
+        dealElectrons(electrons, moverArray, electronSorter, m_sampleXSize.doubleValue(), m_sampleYSize.doubleValue());
+        
+        //the list drawn is a view of the electrons array, which is sorted in place
+        List<Electron> electronList = Arrays.asList(electrons);
         
         //calculation start!
-        m_output.logObjects(electronList, m_neededRecombinations, m_QDList, m_timeElapsed);
-        List<Electron> recalculatedELectronList;
+        double timeStep = m_timeStep.doubleValue();
+        m_output.logObjects(electronList, m_numberOfRecombinations, m_neededRecombinations, m_QDList, 0);
+        double sampleXSize = m_sampleXSize.doubleValue();
+        double sampleYSize = m_sampleYSize.doubleValue();
+        double vth = m_vth.doubleValue();
+        //the errors are estimated each time the number of recombinations grew by a tenth, their estimation costing more than recording them
+        int nextConvergenceCheck = 0;
         try
         {
-            while(m_finalElectronList.size() < m_neededRecombinations)
+            while(m_numberOfRecombinations < m_neededRecombinations && !m_isConverged)
             {
-                recalculatedELectronList = new ArrayList<>();
-                
                 //advancing time logger (can be done before the calculation, the time logger is not taken into them)
-                m_timeElapsed = m_timeElapsed.add(m_timeStep);
+                m_numberOfSteps += 1;
+                
+                //the electrons spread out of their range as they move, so they are sorted again periodically
+                if (m_numberOfSteps % SORT_PERIOD == 0)
+                {
+                    dealElectrons(electrons, moverArray, electronSorter, sampleXSize, sampleYSize);
+                }
                 
                 //calculating the electrons movement
-                for (int i = 0 ; i < numberOfChunks ; i += 1)
+                //a chunk failing is logged and the simulation goes on, as it did when each chunk had its own thread
+                for (int i = 0 ; i < numberOfChunks - 1 ; i += 1)
                 {
-                    workerArray[i] = new Thread(moverArray[i]);
-                    workerArray[i].start();
+                    moves[i] = workers.submit(moverArray[i]);
                 }
-                for (int i = 0 ; i < numberOfChunks ; i += 1)
+                try
+                {
+                    moverArray[numberOfChunks - 1].run();
+                }
+                catch (RuntimeException ex)
+                {
+                    Logger.getLogger(GeneratorManager.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                for (int i = 0 ; i < numberOfChunks - 1 ; i += 1)
                 {
                     //waiting for the worker to finish
-                    workerArray[i].join();
-                    
-                    //adding the electrons to the list to be drawn
-                    List<Electron> finishedList = moverArray[i].getElectronList();
-                    recalculatedELectronList.addAll(finishedList);
-                    
-                    //logging the recombined electrons
-                    for (Electron electron: finishedList)
+                    try
                     {
-                        if (electron.isRecombined())
+                        moves[i].get();
+                    }
+                    catch (ExecutionException ex)
+                    {
+                        Logger.getLogger(GeneratorManager.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+                
+                //logging the recombined electrons
+                for (Electron electron: electrons)
+                {
+                    if (electron.isRecombined())
+                    {
+                        if (!m_finalElectronList.contains(electron))
                         {
-                            if (!m_finalElectronList.contains(electron))
+                            try
                             {
-                                m_finalElectronList.add(electron);
+                                double recombinationTime = electron.getRecombinationTime().doubleValue();
+                                double recombinationEnergy = electron.getRecombinationEnergy().doubleValue();
                                 
-                                //if we are in continuous mode, a new electron is added each time one recombine, so we are at a constant number of electron
-                                if (m_continuousIntegration)
+                                m_recorder.record(recombinationTime, recombinationEnergy, m_listIndices[electron.getCapturingQDIndex()], electron.getID());
+                                if (m_convergence != null)
                                 {
-                                    BigDecimal x = formatBigDecimal((new BigDecimal(m_randomGenerator.nextDouble())).multiply(m_sampleXSize));
-                                    BigDecimal y = formatBigDecimal((new BigDecimal(m_randomGenerator.nextDouble())).multiply(m_sampleYSize));
-
-                                    BigDecimal v_x = formatBigDecimal((new BigDecimal(m_randomGenerator.nextGaussian())).multiply(m_vth));
-                                    BigDecimal v_y = formatBigDecimal((new BigDecimal(m_randomGenerator.nextGaussian())).multiply(m_vth));
-                                    
-                                    moverArray[i].addElectron(new Electron(m_nElectrons, x, y, v_x, v_y));
-                                    m_nElectrons += 1;
+                                    m_convergence.add(recombinationTime, recombinationEnergy, electron.getID());
                                 }
+                                m_numberOfRecombinations += 1;
+                            }
+                            catch (AbsentInformationException ex)
+                            {
+                                Logger.getLogger(GeneratorManager.class.getName()).log(Level.SEVERE, null, ex);
+                            }
+                            
+                            //if we are in continuous mode, the recombined electron is respawned as a new electron in its slot, so we are at a constant number of electrons and memory
+                            if (m_continuousIntegration)
+                            {
+                                double x = m_randomGenerator.nextDouble() * sampleXSize;
+                                double y = m_randomGenerator.nextDouble() * sampleYSize;
+                                
+                                double v_x = m_randomGenerator.nextGaussian() * vth;
+                                double v_y = m_randomGenerator.nextGaussian() * vth;
+                                
+                                electron.respawn(m_nElectrons, x, y, v_x, v_y);
+                                m_nElectrons += 1;
+                            }
+                            else
+                            {
+                                m_finalElectronList.add(electron);
                             }
                         }
                     }
                 }
-
+                
                 //sending the new data to the visualisation interface
-                m_output.logObjects(recalculatedELectronList, m_neededRecombinations, m_QDList, m_timeElapsed);
+                m_output.logObjects(electronList, m_numberOfRecombinations, m_neededRecombinations, m_QDList, m_numberOfSteps * timeStep);
+                
+                if (m_convergence != null && m_numberOfRecombinations >= nextConvergenceCheck)
+                {
+                    m_isConverged = m_convergence.isConverged();
+                    nextConvergenceCheck = m_numberOfRecombinations + Math.max(1, m_numberOfRecombinations / 10);
+                }
                 
                 //reorganizing electrons in a QD if a recombination occured in it
-                for (QuantumDot qd: m_QDList)
+                for (QuantumDot qd: m_QDArray)
                 {
                     if (qd.hasRecombined())
                     {
@@ -255,5 +464,10 @@ public class GeneratorManager implements Runnable
         {
             Logger.getLogger(GeneratorManager.class.getName()).log(Level.SEVERE, null, ex);
         }
+        finally
+        {
+            workers.shutdown();
+            m_recorder.close();
+        }
     }
 }
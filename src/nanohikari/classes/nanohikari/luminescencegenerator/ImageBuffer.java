@@ -16,7 +16,6 @@
  */
 package nanohikari.luminescencegenerator;
 
-import java.math.BigDecimal;
 import java.util.List;
 
 /**
@@ -25,5 +24,5 @@ import java.util.List;
  */
 public interface ImageBuffer
 {
-    public void logObjects(List<Electron> p_electronsList, int p_neededRecombinations, List<QuantumDot> p_qdsToDraw, BigDecimal p_time);
+    public void logObjects(List<Electron> p_electronsList, int p_numberOfRecombinations, int p_neededRecombinations, List<QuantumDot> p_qdsToDraw, double p_time);
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.luminescencegenerator;
+
+import java.util.Arrays;
+
+/**
+ * Z-order (Morton) keys of the positions in the sample: both coordinates are quantized on BITS bits, and the bits of the key alternate between them.
+ * Positions close in the sample mostly have close keys, so objects sorted by key are stored next to their neighbours. The QDs and the electrons being both sorted, the electrons moved by a worker scan QDs close in memory, which stay in cache.
+ * @author Alban Lafuente
+ */
+public class MortonOrder
+{
+    //number of bits of each coordinate in the key, small enough for the key to be shifted above an int index without reaching the sign bit
+    static final int BITS = 15;
+    //number of bits of the key sorted at each pass of sort, dividing 2 * BITS
+    static final int RADIX_BITS = 10;
+    
+    //the buffers of sort, allocated once so that the keys can be sorted again during the simulation without allocating
+    private final long[] m_keys;
+    private final long[] m_buffer;
+    private final int[] m_counts = new int[(1 << RADIX_BITS) + 1];
+    private final int[] m_indices;
+    
+    /**
+     * @param p_capacity the number of keys this MortonOrder can sort
+     */
+    public MortonOrder (int p_capacity)
+    {
+        m_keys = new long[p_capacity];
+        m_buffer = new long[p_capacity];
+        m_indices = new int[p_capacity];
+    }
+    
+    /**
+     * @param p_x in meters
+     * @param p_y in meters
+     * @param p_sampleXSize in meters
+     * @param p_sampleYSize in meters
+     * @return the key of the position, between 0 and 2^(2 * BITS) - 1
+     */
+    public static long key (double p_x, double p_y, double p_sampleXSize, double p_sampleYSize)
+    {
+        return spread(quantize(p_x, p_sampleXSize)) | (spread(quantize(p_y, p_sampleYSize)) << 1);
+    }
+    
+    /**
+     * @param p_keys
+     * @return the indices of p_keys, ordered by increasing key. Equal keys keep their order.
+     */
+    public static int[] sortedIndices (long[] p_keys)
+    {
+        //the index is stored in the lowest bits, so that a single sort of primitives orders the keys
+        long[] packed = new long[p_keys.length];
+        for (int i = 0 ; i < p_keys.length ; i += 1)
+        {
+            packed[i] = (p_keys[i] << Integer.SIZE) | i;
+        }
+        Arrays.sort(packed);
+        
+        int[] indices = new int[p_keys.length];
+        for (int i = 0 ; i < p_keys.length ; i += 1)
+        {
+            indices[i] = (int) packed[i];
+        }
+        
+        return indices;
+    }
+    
+    /**
+     * @param p_index the index of the key, lower than the count given to sort
+     * @param p_key its key
+     */
+    public void setKey (int p_index, long p_key)
+    {
+        m_keys[p_index] = p_key;
+    }
+    
+    /**
+     * Order the first p_count keys given with setKey. Equal keys keep their order.
+     * The keys are sorted by a radix sort, in a time proportional to their number and without allocating.
+     * @param p_count at most the capacity of this MortonOrder
+     * @return the indices of the keys, ordered by increasing key, in a buffer reused by the next sort
+     */
+    public int[] sort (int p_count)
+    {
+        //the index is stored in the lowest bits, so that it follows its key through the passes
+        long[] source = m_keys;
+        long[] destination = m_buffer;
+        for (int i = 0 ; i < p_count ; i += 1)
+        {
+            source[i] = (source[i] << Integer.SIZE) | i;
+        }
+        
+        //each pass is stable, so that the keys end sorted on all their bits
+        int digitMask = (1 << RADIX_BITS) - 1;
+        for (int shift = Integer.SIZE ; shift < Integer.SIZE + 2 * BITS ; shift += RADIX_BITS)
+        {
+            Arrays.fill(m_counts, 0);
+            for (int i = 0 ; i < p_count ; i += 1)
+            {
+                m_counts[(int) ((source[i] >>> shift) & digitMask) + 1] += 1;
+            }
+            for (int digit = 0 ; digit < digitMask + 1 ; digit += 1)
+            {
+                m_counts[digit + 1] += m_counts[digit];
+            }
+            for (int i = 0 ; i < p_count ; i += 1)
+            {
+                int digit = (int) ((source[i] >>> shift) & digitMask);
+                destination[m_counts[digit]] = source[i];
+                m_counts[digit] += 1;
+            }
+            
+            long[] sorted = destination;
+            destination = source;
+            source = sorted;
+        }
+        
+        for (int i = 0 ; i < p_count ; i += 1)
+        {
+            m_indices[i] = (int) source[i];
+        }
+        
+        return m_indices;
+    }
+    
+    private static int quantize (double p_position, double p_size)
+    {
+        int maximum = (1 << BITS) - 1;
+        
+        return p_size > 0 ? Math.min(maximum, Math.max(0, (int) (p_position / p_size * maximum))) : 0;
+    }
+    
+    /**
+     * @return p_value with a 0 inserted before each of its 16 lowest bits
+     */
+    private static long spread (int p_value)
+    {
+        long spread = p_value;
+        
+        spread = (spread | (spread << 8)) & 0x00FF00FFL;
+        spread = (spread | (spread << 4)) & 0x0F0F0F0FL;
+        spread = (spread | (spread << 2)) & 0x33333333L;
+        spread = (spread | (spread << 1)) & 0x55555555L;
+        
+        return spread;
+    }
+}
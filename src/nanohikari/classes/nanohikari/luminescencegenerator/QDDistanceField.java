@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.luminescencegenerator;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Distance from the sample to the QDs of a QDSpatialGrid, precomputed on pixels a fraction of a grid cell wide, so that the distance to the closest QD is known without scanning the grid.
+ * The pixels overlapping a QD are marked, then the distance between the pixels centers and the closest marked pixel is computed with the exact euclidean distance transform of Felzenszwalb and Huttenlocher, first along the columns and then along the rows, each line being transformed in parallel.
+ * A point of a pixel and a point of a QD being at most half a pixel diagonal away from their pixels centers, the distance to the closest QD edge is at least the pixel distance minus a pixel diagonal, which is the stored value.
+ * @author Alban Lafuente
+ */
+public class QDDistanceField
+{
+    //number of pixels along the side of a grid cell
+    static final int PIXELS_PER_CELL = 4;
+    //above this number of pixels, the pixels are enlarged to keep the memory footprint reasonable
+    private static final int MAX_PIXELS = 1 << 22;
+    //squared distance of the pixels far from any QD, finite so that the transform never computes infinity - infinity
+    private static final double FAR = 1e30;
+    
+    private final double m_pixelSize;
+    private final int m_columns;
+    private final int m_rows;
+    //lower bound of the distance between any point of each pixel and the closest QD edge, in meters
+    private final float[] m_distances;
+    //the biggest of m_distances, so that a QD getting bigger only updates the pixels it can get closer to than that
+    private final double m_maxDistance;
+    
+    /**
+     * @param p_grid the QDs, which should only change through setRadius afterward, followed by a call to update
+     */
+    public QDDistanceField (QDSpatialGrid p_grid)
+    {
+        double sampleXSize = p_grid.getSampleXSize();
+        double sampleYSize = p_grid.getSampleYSize();
+        double pixelSize = Math.max(p_grid.getCellSize() / PIXELS_PER_CELL, Math.sqrt(sampleXSize * sampleYSize / MAX_PIXELS));
+        
+        m_pixelSize = pixelSize;
+        m_columns = Math.max(1, (int) Math.ceil(sampleXSize / pixelSize));
+        m_rows = Math.max(1, (int) Math.ceil(sampleYSize / pixelSize));
+        
+        //marking the pixels overlapped by a QD, the squared distances being in pixels
+        double[] squaredDistances = new double[m_columns * m_rows];
+        Arrays.fill(squaredDistances, FAR);
+        IntStream.range(0, p_grid.size()).parallel().forEach(index ->
+        {
+            double x = p_grid.getX(index);
+            double y = p_grid.getY(index);
+            double radius = p_grid.getRadius(index);
+            int lastColumn = column(x + radius);
+            int lastRow = row(y + radius);
+            
+            for (int j = row(y - radius) ; j <= lastRow ; j += 1)
+            {
+                for (int i = column(x - radius) ; i <= lastColumn ; i += 1)
+                {
+                    //closest point of the pixel to the QD center
+                    double deltaX = Math.max(i * pixelSize, Math.min(x, (i + 1) * pixelSize)) - x;
+                    double deltaY = Math.max(j * pixelSize, Math.min(y, (j + 1) * pixelSize)) - y;
+                    
+                    if (deltaX * deltaX + deltaY * deltaY <= radius * radius)
+                    {
+                        squaredDistances[i + m_columns * j] = 0;
+                    }
+                }
+            }
+        });
+        
+        IntStream.range(0, m_columns).parallel().forEach(i -> transform(squaredDistances, i, m_columns, m_rows));
+        IntStream.range(0, m_rows).parallel().forEach(j -> transform(squaredDistances, j * m_columns, 1, m_columns));
+        
+        double margin = pixelSize * Math.sqrt(2);
+        m_distances = new float[m_columns * m_rows];
+        IntStream.range(0, m_distances.length).parallel().forEach(k -> m_distances[k] = (float) (Math.sqrt(squaredDistances[k]) * pixelSize - margin));
+        
+        double maxDistance = Double.NEGATIVE_INFINITY;
+        for (float distance: m_distances)
+        {
+            maxDistance = Math.max(maxDistance, distance);
+        }
+        m_maxDistance = maxDistance;
+    }
+    
+    /**
+     * Take into account the new radius of a QD of the grid, only updating the pixels around it.
+     * A pixel further from the QD edge than the biggest distance of the field keeps a lower bound, so only the closer ones get the distance to the QD, when it is smaller than their bound.
+     * A QD getting smaller leaves bounds lower than needed, which only makes the free flights around it shorter.
+     * @param p_grid the grid this field was computed from
+     * @param p_index the index of the QD whose radius changed
+     */
+    public void update (QDSpatialGrid p_grid, int p_index)
+    {
+        double x = p_grid.getX(p_index);
+        double y = p_grid.getY(p_index);
+        double radius = p_grid.getRadius(p_index);
+        double range = radius + m_maxDistance;
+        int lastColumn = column(x + range);
+        int lastRow = row(y + range);
+        
+        for (int j = row(y - range) ; j <= lastRow ; j += 1)
+        {
+            for (int i = column(x - range) ; i <= lastColumn ; i += 1)
+            {
+                //closest point of the pixel to the QD center
+                double deltaX = Math.max(i * m_pixelSize, Math.min(x, (i + 1) * m_pixelSize)) - x;
+                double deltaY = Math.max(j * m_pixelSize, Math.min(y, (j + 1) * m_pixelSize)) - y;
+                
+                m_distances[i + m_columns * j] = Math.min(m_distances[i + m_columns * j], (float) (Math.sqrt(deltaX * deltaX + deltaY * deltaY) - radius));
+            }
+        }
+    }
+    
+    /**
+     * @param p_x in meters
+     * @param p_y in meters
+     * @return a lower bound of the distance between (p_x, p_y) and the closest QD edge, in meters. It can be negative close to the QDs.
+     */
+    public double lowerBound (double p_x, double p_y)
+    {
+        return m_distances[column(p_x) + m_columns * row(p_y)];
+    }
+    
+    private int column (double p_x)
+    {
+        return Math.min(m_columns - 1, Math.max(0, (int) Math.floor(p_x / m_pixelSize)));
+    }
+    
+    private int row (double p_y)
+    {
+        return Math.min(m_rows - 1, Math.max(0, (int) Math.floor(p_y / m_pixelSize)));
+    }
+    
+    /**
+     * One dimensional squared distance transform of the lower envelope of parabolas, done in place
+     * @param p_values the squared distances of all the pixels
+     * @param p_start the index of the first pixel of the line
+     * @param p_stride the index difference between two consecutive pixels of the line
+     * @param p_length the number of pixels of the line
+     */
+    private static void transform (double[] p_values, int p_start, int p_stride, int p_length)
+    {
+        double[] line = new double[p_length];
+        for (int q = 0 ; q < p_length ; q += 1)
+        {
+            line[q] = p_values[p_start + q * p_stride];
+        }
+        
+        //v contains the position of the parabolas of the envelope, z the boundaries between them
+        int[] v = new int[p_length];
+        double[] z = new double[p_length + 1];
+        int k = 0;
+        z[0] = Double.NEGATIVE_INFINITY;
+        z[1] = Double.POSITIVE_INFINITY;
+        for (int q = 1 ; q < p_length ; q += 1)
+        {
+            double intersection = ((line[q] + (double) q * q) - (line[v[k]] + (double) v[k] * v[k])) / (2.0 * (q - v[k]));
+            while (intersection <= z[k])
+            {
+                k -= 1;
+                intersection = ((line[q] + (double) q * q) - (line[v[k]] + (double) v[k] * v[k])) / (2.0 * (q - v[k]));
+            }
+            k += 1;
+            v[k] = q;
+            z[k] = intersection;
+            z[k + 1] = Double.POSITIVE_INFINITY;
+        }
+        
+        k = 0;
+        for (int q = 0 ; q < p_length ; q += 1)
+        {
+            while (z[k + 1] < q)
+            {
+                k += 1;
+            }
+            p_values[p_start + q * p_stride] = (double) (q - v[k]) * (q - v[k]) + line[v[k]];
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.luminescencegenerator;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the sample, each cell containing the index of the QDs whose center is inside it.
+ * Positions and radii are stored in primitive arrays, in meters, so that the grid can be queried before any QuantumDot is built.
+ * A disk of radius r centered in (x, y) can only overlap a QD whose center is closer than r + (biggest radius stored), so only the cells in that range are scanned.
+ * @author Alban Lafuente
+ */
+public class QDSpatialGrid
+{
+    //above this number of cells, the cells are enlarged to keep the memory footprint reasonable
+    private static final int MAX_CELLS = 1 << 22;
+    
+    private final double m_cellSize;
+    private final double m_sampleXSize;
+    private final double m_sampleYSize;
+    private final int m_columns;
+    private final int m_rows;
+    private final int[][] m_cells;
+    private final int[] m_cellsCount;
+    
+    private double[] m_x = new double[16];
+    private double[] m_y = new double[16];
+    private double[] m_radius = new double[16];
+    private double m_maxRadius = 0;
+    private int m_size = 0;
+    
+    /**
+     * @param p_sampleXSize the size of the sample in x, in meters
+     * @param p_sampleYSize the size of the sample in y, in meters
+     * @param p_cellSize the wished size of a cell, in meters. A good value is the mean QD diameter.
+     */
+    public QDSpatialGrid (double p_sampleXSize, double p_sampleYSize, double p_cellSize)
+    {
+        double cellSize = Math.max(p_cellSize, Math.sqrt(p_sampleXSize * p_sampleYSize / MAX_CELLS));
+        
+        m_sampleXSize = p_sampleXSize;
+        m_sampleYSize = p_sampleYSize;
+        m_columns = Math.max(1, (int) Math.ceil(p_sampleXSize / cellSize));
+        m_rows = Math.max(1, (int) Math.ceil(p_sampleYSize / cellSize));
+        m_cellSize = cellSize;
+        m_cells = new int[m_columns * m_rows][];
+        m_cellsCount = new int[m_columns * m_rows];
+    }
+    
+    /**
+     * Add a QD to the grid
+     * @param p_x the QD center abscissa, in meters
+     * @param p_y the QD center ordinate, in meters
+     * @param p_radius the QD radius, in meters
+     * @return the index of the added QD
+     */
+    public int add (double p_x, double p_y, double p_radius)
+    {
+        if (m_size == m_x.length)
+        {
+            int newCapacity = m_size * 2;
+            m_x = Arrays.copyOf(m_x, newCapacity);
+            m_y = Arrays.copyOf(m_y, newCapacity);
+            m_radius = Arrays.copyOf(m_radius, newCapacity);
+        }
+        
+        int index = m_size;
+        m_x[index] = p_x;
+        m_y[index] = p_y;
+        m_radius[index] = p_radius;
+        m_maxRadius = Math.max(m_maxRadius, p_radius);
+        m_size += 1;
+        
+        int cell = column(p_x) + m_columns * row(p_y);
+        int[] content = m_cells[cell];
+        if (content == null)
+        {
+            content = new int[4];
+            m_cells[cell] = content;
+        }
+        else if (m_cellsCount[cell] == content.length)
+        {
+            content = Arrays.copyOf(content, content.length * 2);
+            m_cells[cell] = content;
+        }
+        content[m_cellsCount[cell]] = index;
+        m_cellsCount[cell] += 1;
+        
+        return index;
+    }
+    
+    /**
+     * Change the radius of a QD already in the grid. Its center, and so its cell, stays the same.
+     * The biggest radius is not lowered when a QD shrinks, which only makes the scans a bit wider.
+     * @param p_index the QD index
+     * @param p_radius the new radius, in meters
+     */
+    public void setRadius (int p_index, double p_radius)
+    {
+        m_radius[p_index] = p_radius;
+        m_maxRadius = Math.max(m_maxRadius, p_radius);
+    }
+    
+    /**
+     * Find a QD from its center, only looking in the cell containing it
+     * @param p_x the QD center abscissa, in meters
+     * @param p_y the QD center ordinate, in meters
+     * @return the index of the QD centered at (p_x, p_y), or -1 if there is none
+     */
+    public int indexOf (double p_x, double p_y)
+    {
+        int cell = column(p_x) + m_columns * row(p_y);
+        int index = -1;
+        
+        for (int k = 0 ; k < m_cellsCount[cell] && index < 0 ; k += 1)
+        {
+            int candidate = m_cells[cell][k];
+            if (m_x[candidate] == p_x && m_y[candidate] == p_y)
+            {
+                index = candidate;
+            }
+        }
+        
+        return index;
+    }
+    
+    /**
+     * Test if a disk would overlap with one of the QDs already in the grid.
+     * As in the original brute force test, two QDs touching each other are considered overlapping.
+     * The scan stops at the first overlapping QD found.
+     * @param p_x the disk center abscissa, in meters
+     * @param p_y the disk center ordinate, in meters
+     * @param p_radius the disk radius, in meters
+     * @return true if the disk does not overlap any QD
+     */
+    public boolean isFree (double p_x, double p_y, double p_radius)
+    {
+        double range = p_radius + m_maxRadius;
+        int firstColumn = column(p_x - range);
+        int lastColumn = column(p_x + range);
+        int firstRow = row(p_y - range);
+        int lastRow = row(p_y + range);
+        
+        for (int j = firstRow ; j <= lastRow ; j += 1)
+        {
+            for (int i = firstColumn ; i <= lastColumn ; i += 1)
+            {
+                int cell = i + m_columns * j;
+                int[] content = m_cells[cell];
+                for (int k = 0 ; k < m_cellsCount[cell] ; k += 1)
+                {
+                    int index = content[k];
+                    double deltaX = m_x[index] - p_x;
+                    double deltaY = m_y[index] - p_y;
+                    double minimalDistance = m_radius[index] + p_radius;
+                    
+                    if (deltaX * deltaX + deltaY * deltaY <= minimalDistance * minimalDistance)
+                    {
+                        return false;
+                    }
+                }
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Index of the cell containing the position (p_column, p_row), to be used with getCellContent and getCellCount
+     * @param p_column
+     * @param p_row
+     * @return 
+     */
+    public int cellIndex (int p_column, int p_row)
+    {
+        return p_column + m_columns * p_row;
+    }
+    
+    public int column (double p_x)
+    {
+        return Math.min(m_columns - 1, Math.max(0, (int) Math.floor(p_x / m_cellSize)));
+    }
+    
+    public int row (double p_y)
+    {
+        return Math.min(m_rows - 1, Math.max(0, (int) Math.floor(p_y / m_cellSize)));
+    }
+    
+    /**
+     * WARNING: the returned array is the one used by the grid, and may be longer than the number of QDs in the cell (see getCellCount)
+     * @param p_cell the cell index
+     * @return the index of the QDs in the cell, or null if no QD was ever added to it
+     */
+    public int[] getCellContent (int p_cell)
+    {
+        return m_cells[p_cell];
+    }
+    
+    public int getCellCount (int p_cell)
+    {
+        return m_cellsCount[p_cell];
+    }
+    
+    public double getCellSize()
+    {
+        return m_cellSize;
+    }
+    
+    public double getX (int p_index)
+    {
+        return m_x[p_index];
+    }
+    
+    public double getY (int p_index)
+    {
+        return m_y[p_index];
+    }
+    
+    public double getRadius (int p_index)
+    {
+        return m_radius[p_index];
+    }
+    
+    public double getMaxRadius()
+    {
+        return m_maxRadius;
+    }
+    
+    public double getSampleXSize()
+    {
+        return m_sampleXSize;
+    }
+    
+    public double getSampleYSize()
+    {
+        return m_sampleYSize;
+    }
+    
+    public int size()
+    {
+        return m_size;
+    }
+}
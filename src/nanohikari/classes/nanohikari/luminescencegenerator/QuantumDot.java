@@ -38,9 +38,17 @@ import org.nevec.rjm.BigDecimalMath;
  */
 public class QuantumDot extends AbsorberObject
 {
+    private static final BigDecimal SQRT_PI = BigDecimalMath.sqrt(BigDecimalMath.pi(MathContext.DECIMAL128), MathContext.DECIMAL128);
+    //kT at 300 K, in J, used for the occupation of the levels
+    private static final double THERMAL_ENERGY = PhysicsVariables.KB.multiply(new BigDecimal("300")).doubleValue();
+    //returned by recombine when the electron did not recombine, shared so that the captured electrons do not allocate at each step
+    private static final BigDecimal NOT_RECOMBINED = BigDecimal.ONE.negate();
+    
     private final ArrayList<BigDecimal> m_listOfStates;
     private final BigDecimal m_radius;
     private final BigDecimal m_height;
+    //x, y, radius and height as doubles, so that they can be written without BigDecimal operations
+    private final double[] m_geometry;
     private final BigDecimal m_meanQDEnergy;
     private final double m_baseCaptureProbability;
     private final double m_escapeProbability;
@@ -67,36 +75,25 @@ public class QuantumDot extends AbsorberObject
      * @param p_electrons
      * @param p_nbFreeLevels 
      */
-    private QuantumDot (ArrayList<BigDecimal> p_states, BigDecimal p_positionX, BigDecimal p_positionY, BigDecimal p_radius, BigDecimal p_height, BigDecimal p_meanEnergy, double p_captureProba, double p_escapeProba, double p_recombinationProba, Map<BigDecimal, BigDecimal> p_energyLevelsPopProba, Map<BigDecimal, Integer> p_freeStates, Map<Electron, BigDecimal> p_electrons, boolean p_recombined, int p_nbFreeLevels)
+    private QuantumDot (ArrayList<BigDecimal> p_states, BigDecimal p_positionX, BigDecimal p_positionY, BigDecimal p_radius, BigDecimal p_height, BigDecimal p_meanEnergy, double p_captureProba, double p_escapeProba, double p_recombinationProba, HashMap<BigDecimal, BigDecimal> p_energyLevelsPopProba, Map<BigDecimal, Integer> p_freeStates, Map<Electron, BigDecimal> p_electrons, boolean p_recombined, int p_nbFreeLevels)
     {
-        m_positionX = new BigDecimal(p_positionX.toString());
-        m_positionY = new BigDecimal(p_positionY.toString());
-        m_radius = new BigDecimal(p_radius.toString());
-        m_height = new BigDecimal(p_height.toString());
-        m_meanQDEnergy = new BigDecimal(p_meanEnergy.toString());
+        //BigDecimal being immutable and the states and occupation probabilities never changing after the construction, they are shared with the original QD
+        m_positionX = p_positionX;
+        m_positionY = p_positionY;
+        m_radius = p_radius;
+        m_height = p_height;
+        m_geometry = new double[] {m_positionX.doubleValue(), m_positionY.doubleValue(), m_radius.doubleValue(), m_height.doubleValue()};
+        m_meanQDEnergy = p_meanEnergy;
         m_baseCaptureProbability = p_captureProba;
         m_escapeProbability = p_escapeProba;
         m_recombinationProbability = p_recombinationProba;
         m_numberOfFreeStates = p_nbFreeLevels;
         m_hasRecombined = p_recombined;
+        m_listOfStates = p_states;
+        m_flatOccupationProbabilities = p_energyLevelsPopProba;
         
-        m_listOfStates = new ArrayList<>();
-        for (BigDecimal state: p_states)
-        {
-            m_listOfStates.add(new BigDecimal(state.toString()));
-        }
-        
-        m_flatOccupationProbabilities = new HashMap<>();
-        for (BigDecimal level: p_energyLevelsPopProba.keySet())
-        {
-            m_flatOccupationProbabilities.put(new BigDecimal(level.toString()), p_energyLevelsPopProba.get(level));
-        }
-        
-        m_levelsFreeStates = new HashMap<>();
-        for (BigDecimal level: p_freeStates.keySet())
-        {
-            m_levelsFreeStates.put(new BigDecimal(level.toString()), p_freeStates.get(level));
-        }
+        //only the occupation of the levels is specific to each copy
+        m_levelsFreeStates = new HashMap<>(p_freeStates);
         
         m_electronsEnergy = new HashMap<>();
         for (Electron electron: p_electrons.keySet())
@@ -108,17 +105,19 @@ public class QuantumDot extends AbsorberObject
     public QuantumDot (BigDecimal p_positionX, BigDecimal p_positionY, BigDecimal p_radius, BigDecimal p_height, BigDecimal p_timeStep, Metamaterial p_sampleMaterial)
     {
         BigDecimal two = new BigDecimal("2");
-        Material QDMaterial = p_sampleMaterial.getMaterial("QD");
-        Material barrierMaterial = p_sampleMaterial.getMaterial("barrier");
+        TransitionProbabilityTable probabilities = TransitionProbabilityTable.getTable(p_sampleMaterial, p_timeStep);
+        Material QDMaterial = probabilities.getQDMaterial();
+        Material barrierMaterial = probabilities.getBarrierMaterial();
         
         m_positionX = p_positionX;
         m_positionY = p_positionY;
         
         m_radius = p_radius.multiply(BigDecimal.ONE);
         m_height = p_height.multiply(BigDecimal.ONE);
-        BigDecimal equivalentSquareSide = m_radius.multiply(BigDecimalMath.sqrt(BigDecimalMath.pi(MathContext.DECIMAL128), MathContext.DECIMAL128));
+        m_geometry = new double[] {m_positionX.doubleValue(), m_positionY.doubleValue(), m_radius.doubleValue(), m_height.doubleValue()};
+        BigDecimal equivalentSquareSide = m_radius.multiply(SQRT_PI);
         
-        BigDecimal CBOffset = p_sampleMaterial.getOffset(QDMaterial.getMaterialName(), barrierMaterial.getMaterialName()); //from https://aip.scitation.org/doi/abs/10.1063/1.125965
+        BigDecimal CBOffset = probabilities.getCBOffset(); //from https://aip.scitation.org/doi/abs/10.1063/1.125965
 
         //calculating hole confinement energy, only considering one level
         BigDecimal VBOffset = barrierMaterial.getBandgap().subtract(QDMaterial.getBandgap()).subtract(CBOffset);
@@ -190,7 +189,7 @@ public class QuantumDot extends AbsorberObject
         else
         {
             //else, the capture probability is calculated using P_capture = 1 - exp(-Δt/tau_capture), with tau_capture given in https://aip.scitation.org/doi/10.1063/1.1512694
-            m_baseCaptureProbability = (BigDecimal.ONE.subtract(BigDecimalMath.exp(p_timeStep.negate().divide(QDMaterial.getCaptureTime(m_radius), MathContext.DECIMAL128)))).doubleValue();
+            m_baseCaptureProbability = probabilities.getCaptureProbability(m_geometry[2]);
             
             /**CAPTURE PROBA PER LEVEL
              * calculate probability for each level using Fermi-Dirac distribution and the energy calculated from the QD material CB position
@@ -202,7 +201,7 @@ public class QuantumDot extends AbsorberObject
             HashMap<BigDecimal, BigDecimal> levelsProbabilities = new HashMap<>();
             for (BigDecimal energy: energyLevels)
             {
-                BigDecimal fermiDiracProba = BigDecimal.ONE.divide(BigDecimal.ONE.add(BigDecimalMath.exp((energy.subtract(BigDecimal.ZERO)).divide(PhysicsVariables.KB.multiply(new BigDecimal("300")), MathContext.DECIMAL128), MathContext.DECIMAL128)), MathContext.DECIMAL128);
+                BigDecimal fermiDiracProba = new BigDecimal(1 / (1 + Math.exp(energy.doubleValue() / THERMAL_ENERGY)));
                 sumOfProba = sumOfProba.add(fermiDiracProba);
                 levelsProbabilities.put(energy, fermiDiracProba);
                 
@@ -224,10 +223,10 @@ public class QuantumDot extends AbsorberObject
         }
         
         //the escape probability is calculated using P_capture = 1 - exp(-Δt/tau_escape) with tau_escape from https://aip.scitation.org/doi/10.1063/1.4824469
-        m_escapeProbability = (BigDecimal.ONE.subtract(BigDecimalMath.exp(p_timeStep.negate().divide(QDMaterial.getEscapeTime(m_radius), MathContext.DECIMAL128)))).doubleValue();
+        m_escapeProbability = probabilities.getEscapeProbability(m_geometry[2]);
         
         //according to Andreev et al., the electron lifetime in GaN/AlN QD is 3.6 ns https://doi.org/10.1063/1.1386405. I didn't found data on GaAs/InAs for the lifetime once it was captured
-        m_recombinationProbability = (BigDecimal.ONE.subtract(BigDecimalMath.exp(p_timeStep.negate().divide(QDMaterial.getRecombinationTime(m_radius), MathContext.DECIMAL128)))).doubleValue();
+        m_recombinationProbability = probabilities.getRecombinationProbability(m_geometry[2]);
         
         m_electronsEnergy = new HashMap<>();
         m_hasRecombined = false;
@@ -253,101 +252,133 @@ public class QuantumDot extends AbsorberObject
      * @param electronSpan the circle containing the position the electron can reach
      * @return whether the electron has been captured or not
      */
-    synchronized public boolean capture(PcgRSFast p_RNG, Electron electronToCapture, BigDecimal electronDistance, BigDecimal electronSpan)
+    public boolean capture(PcgRSFast p_RNG, Electron electronToCapture, BigDecimal electronDistance, BigDecimal electronSpan)
+    {
+        return capture(p_RNG, electronToCapture, electronDistance.doubleValue(), electronSpan.doubleValue());
+    }
+    
+    /**
+     * Same as the BigDecimal version, the probability for the electron to reach the QD being read in ReachingProbabilityTable before locking the QD as it only depends on its size.
+     * The lock is only taken to test and update the occupation of the levels.
+     * @param p_RNG the random number generator
+     * @param electronToCapture
+     * @param electronDistance the distance between the electron and the QD, in m
+     * @param electronSpan the radius of the circle containing the position the electron can reach, in m
+     * @return whether the electron has been captured or not
+     */
+    public boolean capture(PcgRSFast p_RNG, Electron electronToCapture, double electronDistance, double electronSpan)
     {
-        double reachingProbability = 0;
         boolean result = false;
         
-        /** calculating the probability of the electron to reach the QD
-        *   This is done by calculating how many of the position the electron can reach are occupied by the QD
-        *   case if the electron is entirely inside the QD
-        */
-        if (canCapture())
+        if (m_baseCaptureProbability > 0)
         {
-            if (electronDistance.add(electronSpan).compareTo(m_radius) <= 0)
+            double reachingProbability = ReachingProbabilityTable.getProbability(electronDistance, electronSpan, m_geometry[2]);
+            
+            if (reachingProbability < 0 || reachingProbability > 1)
             {
-                reachingProbability = 1;
+                System.out.println("Probability has to be bound between 0 and 1");
+                Logger.getLogger(QuantumDot.class.getName()).log(Level.SEVERE, null, new ArithmeticException("Probability has to be bound between 0 and 1"));
             }
-            else
+            
+            synchronized (this)
             {
-                //if the QD is entirely in the electron span
-                if (electronDistance.add(m_radius).compareTo(electronSpan) <= 0)
-                {
-                    reachingProbability = (m_radius.pow(2).divide(electronSpan.pow(2), MathContext.DECIMAL128)).doubleValue();
-                }
-                else
+                if (m_numberOfFreeStates > 0)
                 {
-                    BigDecimal overlapArea = BigDecimal.ZERO;
-
-                    //we compare the distance to sqrt(abs(radius^2 - electronSpan^2))
-                    BigDecimal radiusDiff = BigDecimalMath.sqrt(((m_radius.pow(2)).subtract(electronSpan.pow(2))).abs(), MathContext.DECIMAL128);
-
-                    //if the QD center is farther away than the intersection points
-                    if (electronDistance.compareTo(radiusDiff) >= 0)
+                    //the complete capture probability is the probability to reach the QD multiplied by the probability to be captured multiplied by the ratio of remaining free states
+                    if (p_RNG.nextDouble() < reachingProbability * m_baseCaptureProbability * ((double) m_numberOfFreeStates / m_listOfStates.size()))
                     {
-                        //the base of the triangle for the calculation here is (electronSpan^2 + electronDistance^2 - QDradius^2) / (2 * electronDistance)
-                        BigDecimal triangleBase = (electronSpan.pow(2).add(electronDistance.pow(2)).subtract(m_radius.pow(2))).divide(electronDistance.multiply(new BigDecimal("2")), MathContext.DECIMAL128);
+                        //finding the levels available to the electrons and getting the sum of their probability
+                        TreeSet<BigDecimal> availableStates = new TreeSet<>();
+                        for (BigDecimal state: m_levelsFreeStates.keySet())
+                        {
+                            if (m_levelsFreeStates.get(state) > 0)
+                            {
+                                availableStates.add(state);
+                            }
+                        }
 
-                        BigDecimal electronSlice = electronSpan.pow(2).multiply(BigDecimalMath.acos(triangleBase.divide(electronSpan, MathContext.DECIMAL128)));
-                        BigDecimal QDSlice = m_radius.pow(2).multiply(BigDecimalMath.acos((electronDistance.subtract(triangleBase)).divide(m_radius, MathContext.DECIMAL128)));
-                        BigDecimal triangleCorrection = electronDistance.multiply(BigDecimalMath.sqrt(electronSpan.pow(2).subtract(triangleBase.pow(2)), MathContext.DECIMAL128));
+                        HashMap<Double, BigDecimal> statesProba = getStatesProba(availableStates);
 
-                        overlapArea = electronSlice.add(QDSlice).subtract(triangleCorrection);
-                    }
-                    else
-                    {
-                        //the base of the triangle for the calculation here is (electronSpan^2 - electronDistance^2 - QDradius^2) / (2 * electronDistance)
-                        BigDecimal triangleBase = (electronSpan.pow(2).subtract(electronDistance.pow(2)).subtract(m_radius.pow(2))).divide(electronDistance.multiply(new BigDecimal("2")), MathContext.DECIMAL128);
+                        //getting the level where the electron will be stored
+                        double randomNumber = p_RNG.nextDouble();
+                        TreeSet<Double> probaSet = new TreeSet(statesProba.keySet());
+                        Iterator<Double> probaIterator = probaSet.iterator();
+                        double proba = probaSet.first();
+                        while (probaIterator.hasNext() && (proba = probaIterator.next()) < randomNumber){}
+                        BigDecimal populatedState = statesProba.get(proba);
 
-                        BigDecimal electronSlice = electronSpan.pow(2).multiply(BigDecimalMath.acos((triangleBase.add(electronDistance)).divide(electronSpan, MathContext.DECIMAL128)));
-                        BigDecimal QDSlice = m_radius.pow(2).multiply(BigDecimalMath.pi(MathContext.DECIMAL128).subtract(BigDecimalMath.acos(triangleBase.divide(m_radius, MathContext.DECIMAL128))));
-                        BigDecimal triangleCorrection = electronDistance.multiply(BigDecimalMath.sqrt(m_radius.pow(2).subtract(triangleBase.pow(2)), MathContext.DECIMAL128));
+                        m_levelsFreeStates.put(populatedState, m_levelsFreeStates.get(populatedState) - 1);
+                        m_electronsEnergy.put(electronToCapture, populatedState);
 
-                        overlapArea = electronSlice.add(QDSlice).subtract(triangleCorrection);
+                        m_numberOfFreeStates -= 1;
+                        result = true;
                     }
-
-                    reachingProbability = overlapArea.divide(BigDecimalMath.pi(MathContext.DECIMAL128).multiply(electronSpan.pow(2)), MathContext.DECIMAL128).doubleValue();
                 }
             }
-
-            if (reachingProbability < 0 || reachingProbability > 1)
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Probability for an electron to reach a QD, calculated as the overlap between the QD and the circle containing the positions the electron can reach, divided by the area of that circle.
+     * The four cases are the ones described in capture. The arguments of acos and sqrt are bound to their domain, so that the rounding errors close to the limits between the cases cannot give NaN.
+     * @param p_distance the distance between the electron and the QD, in m
+     * @param p_span the radius of the circle containing the position the electron can reach, in m
+     * @param p_radius the QD radius, in m
+     * @return 
+     */
+    public static double reachingProbability(double p_distance, double p_span, double p_radius)
+    {
+        double probability;
+        double squaredSpan = p_span * p_span;
+        double squaredRadius = p_radius * p_radius;
+        
+        //if the electron is entirely inside the QD
+        if (p_distance + p_span <= p_radius)
+        {
+            probability = 1;
+        }
+        //if the QD is entirely in the electron span
+        else if (p_distance + p_radius <= p_span)
+        {
+            probability = squaredRadius / squaredSpan;
+        }
+        else
+        {
+            double overlapArea;
+            
+            //if the QD center is farther away than the intersection points
+            if (p_distance >= Math.sqrt(Math.abs(squaredRadius - squaredSpan)))
             {
-                System.out.println("Probability has to be bound between 0 and 1");
-                Logger.getLogger(QuantumDot.class.getName()).log(Level.SEVERE, null, new ArithmeticException("Probability has to be bound between 0 and 1"));
+                double triangleBase = (squaredSpan + p_distance * p_distance - squaredRadius) / (2 * p_distance);
+                
+                double electronSlice = squaredSpan * Math.acos(boundCosine(triangleBase / p_span));
+                double QDSlice = squaredRadius * Math.acos(boundCosine((p_distance - triangleBase) / p_radius));
+                double triangleCorrection = p_distance * Math.sqrt(Math.max(0, squaredSpan - triangleBase * triangleBase));
+                
+                overlapArea = electronSlice + QDSlice - triangleCorrection;
             }
-            
-            //the complete capture probability is the probability to reach the QD multiplied by the probability to be captured multiplied by the ratio of remaining free states
-            if (p_RNG.nextDouble() < reachingProbability * m_baseCaptureProbability * (m_numberOfFreeStates / m_listOfStates.size()))
+            else
             {
-                //finding the levels available to the electrons and getting the sum of their probability
-                TreeSet<BigDecimal> availableStates = new TreeSet<>();
-                for (BigDecimal state: m_levelsFreeStates.keySet())
-                {
-                    if (m_levelsFreeStates.get(state) > 0)
-                    {
-                        availableStates.add(state);
-                    }
-                }
-
-                HashMap<Double, BigDecimal> statesProba = getStatesProba(availableStates);
-
-                //getting the level where the electron will be stored
-                double randomNumber = p_RNG.nextDouble();
-                TreeSet<Double> probaSet = new TreeSet(statesProba.keySet());
-                Iterator<Double> probaIterator = probaSet.iterator();
-                double proba = probaSet.first();
-                while (probaIterator.hasNext() && (proba = probaIterator.next()) < randomNumber){}
-                BigDecimal populatedState = statesProba.get(proba);
-
-                m_levelsFreeStates.put(populatedState, m_levelsFreeStates.get(populatedState) - 1);
-                m_electronsEnergy.put(electronToCapture, populatedState);
-
-                m_numberOfFreeStates -= 1;
-                result = true;
+                double triangleBase = (squaredSpan - p_distance * p_distance - squaredRadius) / (2 * p_distance);
+                
+                double electronSlice = squaredSpan * Math.acos(boundCosine((triangleBase + p_distance) / p_span));
+                double QDSlice = squaredRadius * (Math.PI - Math.acos(boundCosine(triangleBase / p_radius)));
+                double triangleCorrection = p_distance * Math.sqrt(Math.max(0, squaredRadius - triangleBase * triangleBase));
+                
+                overlapArea = electronSlice + QDSlice - triangleCorrection;
             }
+            
+            probability = overlapArea / (Math.PI * squaredSpan);
         }
         
-        return result;
+        return probability;
+    }
+    
+    private static double boundCosine(double p_cosine)
+    {
+        return Math.max(-1, Math.min(1, p_cosine));
     }
     
     /**
@@ -359,8 +390,24 @@ public class QuantumDot extends AbsorberObject
         return new QuantumDot(m_listOfStates, m_positionX, m_positionY, m_radius, m_height, m_meanQDEnergy, m_baseCaptureProbability, m_escapeProbability, m_recombinationProbability, m_flatOccupationProbabilities, m_levelsFreeStates, m_electronsEnergy, m_hasRecombined, m_numberOfFreeStates);
     }
     
+    /**
+     * Tell if p_other is a copy of this QD, or this QD a copy of p_other, so that they have the same size and levels
+     * @param p_other
+     * @return 
+     */
+    public boolean hasSameLevels(QuantumDot p_other)
+    {
+        return m_listOfStates == p_other.m_listOfStates;
+    }
+    
     public QuantumDot copyWithSizeChange(BigDecimal p_sizeMultiplier, BigDecimal p_timeStep, Metamaterial p_sampleMaterial)
     {
+        //the levels are only computed again if the size changes
+        if (p_sizeMultiplier.compareTo(BigDecimal.ONE) == 0)
+        {
+            return copy();
+        }
+        
         BigDecimal newRadius = m_radius;
         BigDecimal newHeight = m_height;
         
@@ -556,6 +603,34 @@ public class QuantumDot extends AbsorberObject
         return listOfStates;
     }
     
+    /**
+     * Write x, y, radius and height, in m, in p_destination, starting at p_offset
+     * @param p_destination
+     * @param p_offset 
+     */
+    public void copyGeometryTo(double[] p_destination, int p_offset)
+    {
+        System.arraycopy(m_geometry, 0, p_destination, p_offset, m_geometry.length);
+    }
+    
+    public int getNumberOfStates()
+    {
+        return m_listOfStates.size();
+    }
+    
+    /**
+     * Write the energy of the states, in J, in p_destination, starting at p_offset
+     * @param p_destination an array with at least getNumberOfStates() places after p_offset
+     * @param p_offset
+     */
+    public void copyStatesTo(double[] p_destination, int p_offset)
+    {
+        for (int i = 0 ; i < m_listOfStates.size() ; i += 1)
+        {
+            p_destination[p_offset + i] = m_listOfStates.get(i).doubleValue();
+        }
+    }
+    
     synchronized public BigDecimal recombine(PcgRSFast p_RNG, Electron p_electronToRecombine)
     {
         BigDecimal result;
@@ -570,7 +645,7 @@ public class QuantumDot extends AbsorberObject
         }
         else
         {
-            result = BigDecimal.ONE.negate();
+            result = NOT_RECOMBINED;
         }
         
         return result;
@@ -580,9 +655,14 @@ public class QuantumDot extends AbsorberObject
     {
         TreeSet<BigDecimal> availableStates = new TreeSet(m_levelsFreeStates.keySet());
         
+        //each level gets back all its states, the degenerate levels having more than two
         for (BigDecimal state: availableStates)
         {
-            m_levelsFreeStates.put(state, 2);
+            m_levelsFreeStates.put(state, 0);
+        }
+        for (BigDecimal state: m_listOfStates)
+        {
+            m_levelsFreeStates.put(state, m_levelsFreeStates.get(state) + 1);
         }
         
         HashMap<Double, BigDecimal> statesProba = getStatesProba(availableStates);
@@ -611,6 +691,24 @@ public class QuantumDot extends AbsorberObject
         m_hasRecombined = false;
     }
     
+    /**
+     * Free all the states of this QD, so that a new simulation can use it instead of a copy
+     */
+    synchronized public void empty()
+    {
+        for (BigDecimal state: m_levelsFreeStates.keySet())
+        {
+            m_levelsFreeStates.put(state, 0);
+        }
+        for (BigDecimal state: m_listOfStates)
+        {
+            m_levelsFreeStates.put(state, m_levelsFreeStates.get(state) + 1);
+        }
+        m_electronsEnergy.clear();
+        m_numberOfFreeStates = m_listOfStates.size();
+        m_hasRecombined = false;
+    }
+    
     public String scaledString(BigDecimal p_sizeScale)
     {
         //new scale: number.scale() - number.precision() gives the number of digits after the point in scientific notation. Setting the scale to this + 11 gives us at least 10 digits after the points, which is enough
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.luminescencegenerator;
+
+/**
+ * Probability for an electron to reach a QD, as given by QuantumDot.reachingProbability, tabulated so that a capture test only costs a look up.
+ * The probability only depends on the distance and the QD radius divided by the electron span, so a single table serves all the QDs and all the electron speeds.
+ * The cases where the circles do not intersect have an exact expression and are not tabulated. The intersecting cases, between |radius - span| and radius + span, are mapped on [0, 1] for each radius, and interpolated linearly between SIZE + 1 samples along both directions.
+ * The ratios between the radius and the span above MAX_RATIO are computed directly: the electrons only testing the QDs closer than their span, the circles never intersect there.
+ * @author Alban Lafuente
+ */
+public class ReachingProbabilityTable
+{
+    //number of intervals along each direction of the table
+    static final int SIZE = 256;
+    //highest ratio between the QD radius and the electron span in the table
+    static final double MAX_RATIO = 2;
+    
+    //probabilities of the intersecting cases, the ratio being the row and the mapped distance the column
+    private static final double[] TABLE = build();
+    
+    /**
+     * @param p_distance the distance between the electron and the QD, in m
+     * @param p_span the radius of the circle containing the position the electron can reach, in m
+     * @param p_radius the QD radius, in m
+     * @return the same probability as QuantumDot.reachingProbability, up to the interpolation error
+     */
+    public static double getProbability (double p_distance, double p_span, double p_radius)
+    {
+        double distance = p_distance / p_span;
+        double radius = p_radius / p_span;
+        double probability;
+        
+        //if the electron is entirely inside the QD
+        if (distance + 1 <= radius)
+        {
+            probability = 1;
+        }
+        //if the QD is entirely in the electron span
+        else if (distance + radius <= 1)
+        {
+            probability = radius * radius;
+        }
+        //outside of the table, or if the span is 0
+        else if (!(radius < MAX_RATIO && distance < radius + 1))
+        {
+            probability = QuantumDot.reachingProbability(p_distance, p_span, p_radius);
+        }
+        else
+        {
+            double row = radius / MAX_RATIO * SIZE;
+            int i = (int) row;
+            double rowWeight = row - i;
+            
+            double column = mappedDistance(distance, radius) * SIZE;
+            int j = Math.min((int) column, SIZE - 1);
+            double columnWeight = column - j;
+            
+            int index = i * (SIZE + 1) + j;
+            double lower = TABLE[index] + columnWeight * (TABLE[index + 1] - TABLE[index]);
+            double upper = TABLE[index + SIZE + 1] + columnWeight * (TABLE[index + SIZE + 2] - TABLE[index + SIZE + 1]);
+            
+            probability = lower + rowWeight * (upper - lower);
+        }
+        
+        return probability;
+    }
+    
+    /**
+     * @return the position of the distance between |radius - 1| and radius + 1, both divided by the span
+     */
+    private static double mappedDistance (double p_distance, double p_radius)
+    {
+        double closest = Math.abs(p_radius - 1);
+        
+        return Math.max(0, Math.min(1, (p_distance - closest) / (p_radius + 1 - closest)));
+    }
+    
+    private static double[] build ()
+    {
+        double[] table = new double[(SIZE + 1) * (SIZE + 1)];
+        
+        for (int i = 0 ; i <= SIZE ; i += 1)
+        {
+            double radius = i * MAX_RATIO / SIZE;
+            double closest = Math.abs(radius - 1);
+            
+            for (int j = 0 ; j <= SIZE ; j += 1)
+            {
+                double distance = closest + (radius + 1 - closest) * j / SIZE;
+                table[i * (SIZE + 1) + j] = QuantumDot.reachingProbability(distance, 1, radius);
+            }
+        }
+        
+        return table;
+    }
+}
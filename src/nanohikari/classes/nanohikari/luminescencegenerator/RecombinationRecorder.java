@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.luminescencegenerator;
+
+/**
+ * Receive every recombination as it happens during a simulation
+ * @author Alban Lafuente
+ */
+public interface RecombinationRecorder
+{
+    /**
+     * @param p_time the recombination time, in s
+     * @param p_energy the recombination energy, in J
+     * @param p_QDIndex the index of the QD in the list given to the GeneratorManager
+     * @param p_electronID the id of the electron
+     */
+    public void record(double p_time, double p_energy, int p_QDIndex, int p_electronID);
+    
+    /**
+     * Called once the simulation is over, no event is recorded afterward
+     */
+    public void close();
+}
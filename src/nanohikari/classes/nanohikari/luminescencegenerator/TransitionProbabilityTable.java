@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2020-2021 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nanohikari.luminescencegenerator;
+
+import albanlafuente.physicstools.physics.Material;
+import albanlafuente.physicstools.physics.Metamaterial;
+import albanlafuente.physicstools.physics.PhysicsVariables;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Function;
+
+/**
+ * Capture, escape and recombination probabilities during a time step, for QD radii between 0 and MAX_RADIUS.
+ * The times given by the material are sampled every RADIUS_STEP. They are linear between the points of their files, so a linear interpolation between two samples gives the same time as the material, except when a point of the file falls between the samples: these intervals are detected when the table is built and computed directly instead.
+ * The probability is then P = 1 - exp(-Δt/tau), computed as -expm1(-Δt/tau) which stays accurate when Δt is much smaller than tau.
+ * A table is built once for each metamaterial and time step and shared by all the QDs. The radii outside of the table (or where a time function is not defined) are computed directly.
+ * @author Alban Lafuente
+ */
+public class TransitionProbabilityTable
+{
+    static final double RADIUS_STEP = 0.01 * PhysicsVariables.UnitsPrefix.NANO.getMultiplier().doubleValue();
+    static final double MAX_RADIUS = 50 * PhysicsVariables.UnitsPrefix.NANO.getMultiplier().doubleValue();
+    //relative difference accepted between a time and its interpolation, above the rounding of the BigDecimal to double conversions
+    private static final double LINEARITY_TOLERANCE = 1e-9;
+    
+    //the metamaterials do not redefine equals, so the tables are found by identity and forgotten with their metamaterial
+    private static final Map<Metamaterial, Map<BigDecimal, TransitionProbabilityTable>> TABLES = new WeakHashMap<>();
+    
+    private final Material m_QDMaterial;
+    private final Material m_barrierMaterial;
+    private final BigDecimal m_CBOffset;
+    private final double m_timeStep;
+    //times at each sample, a NaN making the two intervals around the sample computed directly
+    private final double[] m_captureTimes;
+    private final double[] m_escapeTimes;
+    private final double[] m_recombinationTimes;
+    
+    private TransitionProbabilityTable (Metamaterial p_sampleMaterial, BigDecimal p_timeStep)
+    {
+        //Metamaterial.getMaterial returns a new copy at each call, so the materials are kept here
+        m_QDMaterial = p_sampleMaterial.getMaterial("QD");
+        m_barrierMaterial = p_sampleMaterial.getMaterial("barrier");
+        m_CBOffset = p_sampleMaterial.getOffset(m_QDMaterial.getMaterialName(), m_barrierMaterial.getMaterialName());
+        m_timeStep = p_timeStep.doubleValue();
+        
+        int numberOfSamples = (int) Math.round(MAX_RADIUS / RADIUS_STEP) + 1;
+        m_captureTimes = sample(m_QDMaterial::getCaptureTime, numberOfSamples);
+        m_escapeTimes = sample(m_QDMaterial::getEscapeTime, numberOfSamples);
+        m_recombinationTimes = sample(m_QDMaterial::getRecombinationTime, numberOfSamples);
+    }
+    
+    /**
+     * @param p_sampleMaterial
+     * @param p_timeStep
+     * @return the table of p_sampleMaterial for p_timeStep, built at the first call
+     */
+    public static TransitionProbabilityTable getTable (Metamaterial p_sampleMaterial, BigDecimal p_timeStep)
+    {
+        synchronized (TABLES)
+        {
+            Map<BigDecimal, TransitionProbabilityTable> materialTables = TABLES.computeIfAbsent(p_sampleMaterial, material -> new HashMap<>());
+            //the time step is used by value, 1E-12 and 1.0E-12 giving the same table
+            return materialTables.computeIfAbsent(p_timeStep.stripTrailingZeros(), timeStep -> new TransitionProbabilityTable(p_sampleMaterial, timeStep));
+        }
+    }
+    
+    public double getCaptureProbability (double p_radius)
+    {
+        return lookUp(m_captureTimes, p_radius, m_QDMaterial::getCaptureTime);
+    }
+    
+    public double getEscapeProbability (double p_radius)
+    {
+        return lookUp(m_escapeTimes, p_radius, m_QDMaterial::getEscapeTime);
+    }
+    
+    public double getRecombinationProbability (double p_radius)
+    {
+        return lookUp(m_recombinationTimes, p_radius, m_QDMaterial::getRecombinationTime);
+    }
+    
+    /**
+     * WARNING: the returned material is shared by all the QDs using this table, and should not be modified
+     * @return the material of the QDs
+     */
+    public Material getQDMaterial ()
+    {
+        return m_QDMaterial;
+    }
+    
+    /**
+     * WARNING: the returned material is shared by all the QDs using this table, and should not be modified
+     * @return the material of the barrier
+     */
+    public Material getBarrierMaterial ()
+    {
+        return m_barrierMaterial;
+    }
+    
+    /**
+     * @return the conduction band offset between the QD and the barrier, in J
+     */
+    public BigDecimal getCBOffset ()
+    {
+        return m_CBOffset;
+    }
+    
+    private static double[] sample (Function<BigDecimal, BigDecimal> p_timeFunction, int p_numberOfSamples)
+    {
+        double[] times = new double[p_numberOfSamples];
+        
+        for (int i = 0 ; i < p_numberOfSamples ; i += 1)
+        {
+            times[i] = time(p_timeFunction, i * RADIUS_STEP);
+        }
+        
+        //if the time in the middle of an interval is not the mean of its ends, a point of the file is inside and the interval cannot be interpolated
+        for (int i = 0 ; i < p_numberOfSamples - 1 ; i += 1)
+        {
+            double middleTime = time(p_timeFunction, (i + 0.5) * RADIUS_STEP);
+            double interpolatedTime = (times[i] + times[i + 1]) / 2;
+            
+            if (!(Math.abs(middleTime - interpolatedTime) <= LINEARITY_TOLERANCE * Math.abs(middleTime)))
+            {
+                times[i] = Double.NaN;
+            }
+        }
+        
+        return times;
+    }
+    
+    /**
+     * @return the time at p_radius, or NaN if the function is not defined there
+     */
+    private static double time (Function<BigDecimal, BigDecimal> p_timeFunction, double p_radius)
+    {
+        try
+        {
+            return p_timeFunction.apply(new BigDecimal(p_radius)).doubleValue();
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            return Double.NaN;
+        }
+    }
+    
+    private double lookUp (double[] p_times, double p_radius, Function<BigDecimal, BigDecimal> p_timeFunction)
+    {
+        double position = p_radius / RADIUS_STEP;
+        int index = (int) position;
+        double time = Double.NaN;
+        
+        if (position >= 0 && index < p_times.length - 1)
+        {
+            double weight = position - index;
+            time = p_times[index] + weight * (p_times[index + 1] - p_times[index]);
+        }
+        if (Double.isNaN(time))
+        {
+            time = p_timeFunction.apply(new BigDecimal(p_radius)).doubleValue();
+        }
+        
+        return probability(time);
+    }
+    
+    //P = 1 - exp(-Δt/tau)
+    private double probability (double p_time)
+    {
+        return -Math.expm1(-m_timeStep / p_time);
+    }
+}